@@ -0,0 +1,70 @@
+package com.valdisdot.util.jtinyexpr.jmh;
+
+import com.valdisdot.util.jtinyexpr.Argument;
+import com.valdisdot.util.jtinyexpr.BytecodeExpressionCompiler;
+import com.valdisdot.util.jtinyexpr.CompiledExpressionCache;
+import com.valdisdot.util.jtinyexpr.Expression;
+import com.valdisdot.util.jtinyexpr.ExpressionCompiler;
+import com.valdisdot.util.jtinyexpr.ExpressionCompilerException;
+import com.valdisdot.util.jtinyexpr.Function;
+import com.valdisdot.util.jtinyexpr.TinyExpressionCompiler;
+import com.valdisdot.util.jtinyexpr.Variable;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+//compile, interpret and validate paths, one expression string per run
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--enable-native-access=ALL-UNNAMED")
+public class CompileBenchmark {
+    @Param({"native", "cached", "bytecode"})
+    public String compiler;
+
+    @Param({"1 + 2 * 3", "sqrt(x*x + y*y) + f(x, y) - 2^x"})
+    public String expression;
+
+    private ExpressionCompiler expressionCompiler;
+    private List<Argument> arguments;
+
+    @Setup
+    public void setUp() {
+        expressionCompiler = switch (compiler) {
+            case "native" -> new TinyExpressionCompiler();
+            case "cached" -> new TinyExpressionCompiler(new CompiledExpressionCache(1024));
+            case "bytecode" -> new BytecodeExpressionCompiler();
+            default -> throw new IllegalArgumentException(compiler);
+        };
+        arguments = List.of(
+                Argument.of("x", new Variable(3)),
+                Argument.of("y", new Variable(4)),
+                Argument.of("f", (Function.TwoArgs) (a, b) -> a * b)
+        );
+    }
+
+    @Benchmark
+    public double compileAndEvaluate() throws Exception {
+        try (Expression expr = expressionCompiler.compile(expression, arguments)) {
+            return expr.evaluate();
+        }
+    }
+
+    @Benchmark
+    public boolean validate() {
+        return expressionCompiler.validate(expression, arguments);
+    }
+
+    @Benchmark
+    public double interpret() {
+        try {
+            return expressionCompiler.interpret(expression);
+        } catch (ExpressionCompilerException e) {
+            //variable expression, measures the error path
+            return Double.NaN;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.valdisdot.util.jtinyexpr.jmh;
+
+import com.valdisdot.util.jtinyexpr.Argument;
+import com.valdisdot.util.jtinyexpr.BytecodeExpressionCompiler;
+import com.valdisdot.util.jtinyexpr.Expression;
+import com.valdisdot.util.jtinyexpr.ExpressionCompiler;
+import com.valdisdot.util.jtinyexpr.SharedExpression;
+import com.valdisdot.util.jtinyexpr.TinyExpressionCompiler;
+import com.valdisdot.util.jtinyexpr.Variable;
+import com.valdisdot.util.jtinyexpr.VariableFrame;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+//multithreaded evaluation: one shared expression with per-thread frames against one compiled expression per thread
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--enable-native-access=ALL-UNNAMED")
+@Threads(Threads.MAX)
+public class ConcurrentBenchmark {
+    private static final String EXPRESSION = "sqrt(x*x + y*y) * 2";
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        @Param({"native", "bytecode"})
+        public String compiler;
+
+        ExpressionCompiler expressionCompiler;
+        SharedExpression expression;
+
+        @Setup
+        public void setUp() throws Exception {
+            expressionCompiler = "native".equals(compiler) ? new TinyExpressionCompiler() : new BytecodeExpressionCompiler();
+            expression = expressionCompiler.compileShared(EXPRESSION, Argument.of("x", new Variable(3)), Argument.of("y", new Variable(4)));
+        }
+
+        @TearDown
+        public void tearDown() {
+            expression.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class PerThread {
+        VariableFrame frame;
+        Variable x;
+        Expression expression;
+
+        @Setup
+        public void setUp(Shared shared) throws Exception {
+            frame = shared.expression.newFrame();
+            x = new Variable(3);
+            expression = shared.expressionCompiler.compile(EXPRESSION, Argument.of("x", x), Argument.of("y", new Variable(4)));
+        }
+
+        @TearDown
+        public void tearDown() throws Exception {
+            expression.close();
+        }
+    }
+
+    @Benchmark
+    public double sharedWithFrame(Shared shared, PerThread thread) {
+        thread.frame.set(0, thread.frame.get(0) + 1);
+        return shared.expression.evaluate(thread.frame);
+    }
+
+    @Benchmark
+    public double sharedWithValues(Shared shared) {
+        return shared.expression.evaluate(3, 4);
+    }
+
+    @Benchmark
+    public double compiledPerThread(PerThread thread) {
+        thread.x.increment();
+        return thread.expression.evaluate();
+    }
+}
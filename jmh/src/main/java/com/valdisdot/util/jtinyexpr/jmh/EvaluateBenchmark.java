@@ -0,0 +1,82 @@
+package com.valdisdot.util.jtinyexpr.jmh;
+
+import com.valdisdot.util.jtinyexpr.Argument;
+import com.valdisdot.util.jtinyexpr.BytecodeExpressionCompiler;
+import com.valdisdot.util.jtinyexpr.Expression;
+import com.valdisdot.util.jtinyexpr.ExpressionCompiler;
+import com.valdisdot.util.jtinyexpr.TinyExpressionCompiler;
+import com.valdisdot.util.jtinyexpr.Variable;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+//evaluate() of a compiled expression: constant, bound variables, variable updates and batches
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--enable-native-access=ALL-UNNAMED")
+public class EvaluateBenchmark {
+    private static final int ROWS = 4096;
+
+    @Param({"native", "bytecode"})
+    public String compiler;
+
+    private Expression constant;
+    private Expression variables;
+    private Variable x;
+    private Variable y;
+    private double[][] columns;
+    private double[] out;
+
+    @Setup
+    public void setUp() throws Exception {
+        ExpressionCompiler expressionCompiler = "native".equals(compiler) ? new TinyExpressionCompiler() : new BytecodeExpressionCompiler();
+        x = new Variable(3);
+        y = new Variable(4);
+        constant = expressionCompiler.compile("sqrt(3*3 + 4*4) * 2");
+        variables = expressionCompiler.compile("sqrt(x*x + y*y) * 2", Argument.of("x", x), Argument.of("y", y));
+        columns = new double[2][ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            columns[0][i] = i;
+            columns[1][i] = ROWS - i;
+        }
+        out = new double[ROWS];
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        constant.close();
+        variables.close();
+    }
+
+    @Benchmark
+    public double evaluateConstant() {
+        return constant.evaluate();
+    }
+
+    @Benchmark
+    public double evaluateVariables() {
+        return variables.evaluate();
+    }
+
+    @Benchmark
+    public double updateAndEvaluate() {
+        x.increment();
+        y.decrement();
+        return variables.evaluate();
+    }
+
+    @Benchmark
+    public void updateOnly() {
+        x.increment();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public double[] evaluateBatch() {
+        variables.evaluateBatch(columns, out);
+        return out;
+    }
+}
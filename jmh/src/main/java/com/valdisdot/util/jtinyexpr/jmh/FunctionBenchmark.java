@@ -0,0 +1,57 @@
+package com.valdisdot.util.jtinyexpr.jmh;
+
+import com.valdisdot.util.jtinyexpr.Argument;
+import com.valdisdot.util.jtinyexpr.BytecodeExpressionCompiler;
+import com.valdisdot.util.jtinyexpr.Expression;
+import com.valdisdot.util.jtinyexpr.ExpressionCompiler;
+import com.valdisdot.util.jtinyexpr.Function;
+import com.valdisdot.util.jtinyexpr.TinyExpressionCompiler;
+import com.valdisdot.util.jtinyexpr.Variable;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+//cost of one custom Function call per evaluation (an upcall for the native compiler), arities 0-7
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--enable-native-access=ALL-UNNAMED")
+public class FunctionBenchmark {
+    @Param({"native", "bytecode"})
+    public String compiler;
+
+    @Param({"0", "1", "2", "3", "4", "5", "6", "7"})
+    public int arity;
+
+    private Expression expression;
+
+    @Setup
+    public void setUp() throws Exception {
+        ExpressionCompiler expressionCompiler = "native".equals(compiler) ? new TinyExpressionCompiler() : new BytecodeExpressionCompiler();
+        Function function = switch (arity) {
+            case 0 -> (Function.NoArgs) () -> 1;
+            case 1 -> (Function.OneArgs) a -> a;
+            case 2 -> (Function.TwoArgs) (a, b) -> a + b;
+            case 3 -> (Function.ThreeArgs) (a, b, c) -> a + b + c;
+            case 4 -> (Function.FourArgs) (a, b, c, d) -> a + b + c + d;
+            case 5 -> (Function.FiveArgs) (a, b, c, d, e) -> a + b + c + d + e;
+            case 6 -> (Function.SixArgs) (a, b, c, d, e, f) -> a + b + c + d + e + f;
+            case 7 -> (Function.SevenArgs) (a, b, c, d, e, f, g) -> a + b + c + d + e + f + g;
+            default -> throw new IllegalArgumentException("arity " + arity);
+        };
+        String call = "f(" + String.join(", ", java.util.Collections.nCopies(arity, "x")) + ")";
+        expression = expressionCompiler.compile(call, Argument.of("x", new Variable(1)), Argument.of("f", function));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        expression.close();
+    }
+
+    @Benchmark
+    public double evaluate() {
+        return expression.evaluate();
+    }
+}
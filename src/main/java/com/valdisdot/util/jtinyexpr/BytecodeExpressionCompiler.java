@@ -0,0 +1,492 @@
+package com.valdisdot.util.jtinyexpr;
+
+import java.lang.classfile.ClassFile;
+import java.lang.classfile.CodeBuilder;
+import java.lang.classfile.TypeKind;
+import java.lang.constant.ClassDesc;
+import java.lang.constant.ConstantDescs;
+import java.lang.constant.DynamicConstantDesc;
+import java.lang.constant.MethodTypeDesc;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+pure java compiler: parses the tinyexpr grammar and emits a hidden class with a straight-line evaluate()
+no native library, no downcalls and no upcalls, variables and functions are class data constants, so C2 can inline Function.*Args.apply
+built-ins are evaluated with java.lang.Math, results may differ from libm in the last ulp
+ */
+public class BytecodeExpressionCompiler implements ExpressionCompiler {
+    private static final ClassDesc CD_COMPILED = ClassDesc.of(Compiled.class.getName());
+    private static final ClassDesc CD_COMPILED_PROGRAM = ClassDesc.of(CompiledProgram.class.getName());
+    private static final ClassDesc CD_GENERATED = ClassDesc.of(BytecodeExpressionCompiler.class.getPackageName(), "GeneratedExpression");
+    private static final ClassDesc CD_BUILTIN = ClassDesc.of(Node.Builtin.class.getName());
+    private static final ClassDesc CD_MATH = ClassDesc.of(Math.class.getName());
+    private static final MethodTypeDesc MTD_INIT = MethodTypeDesc.of(ConstantDescs.CD_void, ConstantDescs.CD_List, ConstantDescs.CD_double.arrayType());
+    private static final MethodTypeDesc MTD_PROGRAM_INIT = MethodTypeDesc.of(ConstantDescs.CD_void, ConstantDescs.CD_List, ConstantDescs.CD_double.arrayType(), ConstantDescs.CD_List);
+    private static final MethodTypeDesc MTD_RUN = MethodTypeDesc.of(ConstantDescs.CD_void, ConstantDescs.CD_double.arrayType());
+    private static final MethodTypeDesc MTD_EVALUATE = MethodTypeDesc.of(ConstantDescs.CD_double);
+    private static final MethodTypeDesc MTD_EVALUATE_FRAME = MethodTypeDesc.of(ConstantDescs.CD_double, ClassDesc.of(MemorySegment.class.getName()));
+    private static final MethodTypeDesc MTD_READ = MethodTypeDesc.of(ConstantDescs.CD_double, ClassDesc.of(MemorySegment.class.getName()), ConstantDescs.CD_int);
+    private static final MethodTypeDesc MTD_D_D = MethodTypeDesc.of(ConstantDescs.CD_double, ConstantDescs.CD_double);
+    private static final MethodTypeDesc MTD_DD_D = MethodTypeDesc.of(ConstantDescs.CD_double, ConstantDescs.CD_double, ConstantDescs.CD_double);
+    private static final DynamicConstantDesc<double[]> SLOTS = DynamicConstantDesc.ofNamed(ConstantDescs.BSM_CLASS_DATA_AT, ConstantDescs.DEFAULT_NAME, ConstantDescs.CD_double.arrayType(), 0);
+
+    private final boolean optimize;
+
+    public BytecodeExpressionCompiler() {
+        this(false);
+    }
+
+    //with the optimizing pass, shared subexpressions are kept in locals of the generated evaluate()
+    public BytecodeExpressionCompiler(boolean optimize) {
+        this.optimize = optimize;
+    }
+
+    @Override
+    public ExpressionCompiler optimizing() {
+        return optimize ? this : new BytecodeExpressionCompiler(true);
+    }
+
+    @Override
+    public boolean validate(String constantExpression) {
+        return validate(constantExpression, List.of());
+    }
+
+    @Override
+    public boolean validate(String nonConstantExpression, Argument... args) {
+        return validate(nonConstantExpression, Arrays.asList(args));
+    }
+
+    @Override
+    public boolean validate(String nonConstantExpression, Collection<Argument> args) {
+        return check(nonConstantExpression, args).valid();
+    }
+
+    @Override
+    public double interpret(String constantExpression) throws ExpressionCompilerException {
+        return TinyExprParser.parse(constantExpression, List.of()).root().evaluate(new double[0]);
+    }
+
+    @Override
+    public Expression compile(String constantExpression) throws ExpressionCompilerException {
+        return compile(constantExpression, List.of());
+    }
+
+    @Override
+    public Expression compile(String nonConstantExpression, Argument... args) throws ExpressionCompilerException {
+        return compile(nonConstantExpression, Arrays.asList(args));
+    }
+
+    @Override
+    public Expression compile(String nonConstantExpression, Collection<Argument> args) throws ExpressionCompilerException {
+        return compile(TinyExprParser.parse(nonConstantExpression, args));
+    }
+
+    @Override
+    public Expression load(MemorySegment image, Argument... args) throws ExpressionCompilerException {
+        return load(image, Arrays.asList(args));
+    }
+
+    @Override
+    public Expression load(MemorySegment image, Collection<Argument> args) throws ExpressionCompilerException {
+        return compile(ExpressionImage.decode(image, args));
+    }
+
+    private Expression compile(TinyExprParser.Parsed parsed) throws ExpressionCompilerException {
+        double[] slots = new double[parsed.variables().size()];
+        Compiled compiled = define(root(parsed), slots, bind(parsed.variables(), slots));
+        compiled.parsed = parsed;
+        return compiled;
+    }
+
+    @Override
+    public Expression compile(String nonConstantExpression, VariableFrame frame, Argument... args) throws ExpressionCompilerException {
+        return compile(nonConstantExpression, frame, Arrays.asList(args));
+    }
+
+    @Override
+    public Expression compile(String nonConstantExpression, VariableFrame frame, Collection<Argument> args) throws ExpressionCompilerException {
+        TinyExprParser.Parsed parsed = TinyExprParser.parse(nonConstantExpression, args);
+        if (frame.size() < parsed.variables().size()) throw new ExpressionCompilerException(String.format("Frame holds %d values, expression needs %d", frame.size(), parsed.variables().size()));
+        return new FrameCompiled(define(root(parsed), new double[parsed.variables().size()], List.of()), frame, parsed.variables().size());
+    }
+
+    @Override
+    public SharedExpression compileShared(String nonConstantExpression, Argument... args) throws ExpressionCompilerException {
+        return compileShared(nonConstantExpression, Arrays.asList(args));
+    }
+
+    @Override
+    public SharedExpression compileShared(String nonConstantExpression, Collection<Argument> args) throws ExpressionCompilerException {
+        TinyExprParser.Parsed parsed = TinyExprParser.parse(nonConstantExpression, args);
+        double[] defaults = parsed.variables().stream().mapToDouble(a -> ((Variable) a.value()).value()).toArray();
+        return new SharedCompiled(define(root(parsed), new double[defaults.length], List.of()), parsed.variables().stream().map(Argument::name).toList(), defaults);
+    }
+
+    @Override
+    public ExpressionProgram compileAll(Map<String, String> formulas, Argument... args) throws ExpressionCompilerException {
+        return compileAll(formulas, Arrays.asList(args));
+    }
+
+    //one hidden class for the whole sheet, subtrees repeated across formulas are computed once per evaluation
+    @Override
+    public ExpressionProgram compileAll(Map<String, String> formulas, Collection<Argument> args) throws ExpressionCompilerException {
+        List<List<Argument>> perFormula = Programs.arguments(formulas, args);
+        List<Node> roots = new ArrayList<>(formulas.size());
+        int i = 0;
+        for (String formula : formulas.values()) roots.add(TinyExprParser.parse(formula, perFormula.get(i++)).root());
+        roots = Optimizer.optimizeAll(roots, optimize);
+
+        List<Argument> variables = args.stream().filter(a -> a.value() instanceof Variable).toList();
+        double[] slots = new double[variables.size()];
+        List<Variable> bound = bind(variables, slots);
+        List<Object> classData = new ArrayList<>();
+        classData.add(slots);
+        try {
+            byte[] bytes = generateProgram(roots, slots.length, classData);
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClassWithClassData(bytes, List.copyOf(classData), true);
+            return (CompiledProgram) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class, List.class, double[].class, List.class))
+                    .invoke(bound, slots, List.copyOf(formulas.keySet()));
+        } catch (Throwable t) {
+            for (int k = 0; k < bound.size(); k++) bound.get(k).unbind(Compiled.slot(slots, k));
+            throw new ExpressionCompilerException(t);
+        }
+    }
+
+    private Node root(TinyExprParser.Parsed parsed) {
+        return optimize ? Optimizer.optimize(parsed.root()).root() : parsed.root();
+    }
+
+    private static Compiled define(Node root, double[] slots, List<Variable> variables) throws ExpressionCompilerException {
+        List<Object> classData = new ArrayList<>();
+        classData.add(slots);
+        try {
+            byte[] bytes = generate(root, classData);
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClassWithClassData(bytes, List.copyOf(classData), true);
+            return (Compiled) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class, List.class, double[].class)).invoke(variables, slots);
+        } catch (Throwable t) {
+            for (int i = 0; i < variables.size(); i++) variables.get(i).unbind(Compiled.slot(slots, i));
+            throw new ExpressionCompilerException(t);
+        }
+    }
+
+    private static List<Variable> bind(List<Argument> arguments, double[] slots) {
+        List<Variable> variables = new ArrayList<>(arguments.size());
+        for (int i = 0; i < arguments.size(); i++) {
+            Variable v = (Variable) arguments.get(i).value();
+            v.bind(Compiled.slot(slots, i));
+            variables.add(v);
+        }
+        return variables;
+    }
+
+    private static byte[] generate(Node root, List<Object> classData) {
+        Map<Function, Integer> functions = new IdentityHashMap<>();
+        Set<Node> shared = Optimizer.shared(List.of(root));
+        return ClassFile.of().build(CD_GENERATED, clb -> clb
+                .withFlags(ClassFile.ACC_FINAL | ClassFile.ACC_SUPER | ClassFile.ACC_SYNTHETIC)
+                .withSuperclass(CD_COMPILED)
+                .withMethodBody(ConstantDescs.INIT_NAME, MTD_INIT, ClassFile.ACC_PUBLIC, cob -> cob
+                        .aload(0)
+                        .aload(1)
+                        .aload(2)
+                        .invokespecial(CD_COMPILED, ConstantDescs.INIT_NAME, MTD_INIT)
+                        .return_())
+                .withMethodBody("evaluate", MTD_EVALUATE, ClassFile.ACC_PUBLIC | ClassFile.ACC_FINAL, cob -> {
+                    emit(cob, root, false, classData, functions, shared, new IdentityHashMap<>());
+                    cob.dreturn();
+                })
+                .withMethodBody("evaluate", MTD_EVALUATE_FRAME, ClassFile.ACC_PUBLIC | ClassFile.ACC_FINAL, cob -> {
+                    emit(cob, root, true, classData, functions, shared, new IdentityHashMap<>());
+                    cob.dreturn();
+                }));
+    }
+
+    //outputs are kept in locals, references to earlier outputs (slots past the variables) load them
+    private static byte[] generateProgram(List<Node> roots, int variableCount, List<Object> classData) {
+        Map<Function, Integer> functions = new IdentityHashMap<>();
+        Set<Node> shared = Optimizer.shared(roots);
+        Map<Integer, List<Node>> outputReads = new HashMap<>();
+        for (Node root : roots) collectOutputReads(root, variableCount, outputReads);
+        return ClassFile.of().build(CD_GENERATED, clb -> clb
+                .withFlags(ClassFile.ACC_FINAL | ClassFile.ACC_SUPER | ClassFile.ACC_SYNTHETIC)
+                .withSuperclass(CD_COMPILED_PROGRAM)
+                .withMethodBody(ConstantDescs.INIT_NAME, MTD_PROGRAM_INIT, ClassFile.ACC_PUBLIC, cob -> cob
+                        .aload(0)
+                        .aload(1)
+                        .aload(2)
+                        .aload(3)
+                        .invokespecial(CD_COMPILED_PROGRAM, ConstantDescs.INIT_NAME, MTD_PROGRAM_INIT)
+                        .return_())
+                .withMethodBody("run", MTD_RUN, ClassFile.ACC_FINAL, cob -> {
+                    Map<Node, Integer> locals = new IdentityHashMap<>();
+                    for (int i = 0; i < roots.size(); i++) {
+                        emit(cob, roots.get(i), false, classData, functions, shared, locals);
+                        int local = cob.allocateLocal(TypeKind.DOUBLE);
+                        cob.dstore(local).aload(1).loadConstant(i).dload(local).dastore();
+                        for (Node read : outputReads.getOrDefault(variableCount + i, List.of())) locals.put(read, local);
+                    }
+                    cob.return_();
+                }));
+    }
+
+    private static void collectOutputReads(Node node, int variableCount, Map<Integer, List<Node>> reads) {
+        switch (node) {
+            case Node.Bound b when b.slot() >= variableCount -> reads.computeIfAbsent(b.slot(), k -> new ArrayList<>()).add(b);
+            case Node.Call call -> call.args().forEach(arg -> collectOutputReads(arg, variableCount, reads));
+            default -> {
+            }
+        }
+    }
+
+    /*
+    framed code reads variables from the MemorySegment argument instead of the bound slots
+    a shared node (optimized DAG) is stored into a local the first time it is computed and loaded afterwards,
+    the code is straight-line, so the first emission is always the first evaluation
+     */
+    private static void emit(CodeBuilder cob, Node node, boolean framed, List<Object> classData, Map<Function, Integer> functions, Set<Node> shared, Map<Node, Integer> locals) {
+        Integer local = locals.get(node);
+        if (local != null) {
+            cob.dload(local);
+            return;
+        }
+        emitNode(cob, node, framed, classData, functions, shared, locals);
+        if (shared.contains(node)) {
+            local = cob.allocateLocal(TypeKind.DOUBLE);
+            cob.dup2().dstore(local);
+            locals.put(node, local);
+        }
+    }
+
+    private static void emitNode(CodeBuilder cob, Node node, boolean framed, List<Object> classData, Map<Function, Integer> functions, Set<Node> shared, Map<Node, Integer> locals) {
+        switch (node) {
+            case Node.Constant c -> cob.loadConstant(c.value());
+            case Node.Bound b when framed -> cob.aload(1).loadConstant(b.slot()).invokestatic(CD_COMPILED, "read", MTD_READ);
+            case Node.Bound b -> cob.loadConstant(SLOTS).loadConstant(b.slot()).daload();
+            case Node.Call call when call.callee() instanceof Node.Custom custom -> {
+                int index = functions.computeIfAbsent(custom.function(), f -> {
+                    classData.add(f);
+                    return classData.size() - 1;
+                });
+                ClassDesc type = ClassDesc.of(Functions.type(custom.arity()).getName());
+                cob.loadConstant(DynamicConstantDesc.ofNamed(ConstantDescs.BSM_CLASS_DATA_AT, ConstantDescs.DEFAULT_NAME, type, index));
+                for (Node arg : call.args()) emit(cob, arg, framed, classData, functions, shared, locals);
+                ClassDesc[] params = new ClassDesc[custom.arity()];
+                Arrays.fill(params, ConstantDescs.CD_double);
+                cob.invokeinterface(type, "apply", MethodTypeDesc.of(ConstantDescs.CD_double, params));
+            }
+            case Node.Call call -> {
+                Node.Builtin builtin = (Node.Builtin) call.callee();
+                if (builtin == Node.Builtin.COMMA) {
+                    emit(cob, call.args().get(0), framed, classData, functions, shared, locals);
+                    cob.pop2();
+                    emit(cob, call.args().get(1), framed, classData, functions, shared, locals);
+                    return;
+                }
+                for (Node arg : call.args()) emit(cob, arg, framed, classData, functions, shared, locals);
+                switch (builtin) {
+                    case ADD -> cob.dadd();
+                    case SUB -> cob.dsub();
+                    case MUL -> cob.dmul();
+                    case DIV -> cob.ddiv();
+                    case FMOD -> cob.drem();
+                    case NEGATE -> cob.dneg();
+                    case POW, POWF -> cob.invokestatic(CD_MATH, "pow", MTD_DD_D);
+                    case ATAN2 -> cob.invokestatic(CD_MATH, "atan2", MTD_DD_D);
+                    case E -> cob.loadConstant(Math.E);
+                    case PI -> cob.loadConstant(Math.PI);
+                    case LN -> cob.invokestatic(CD_MATH, "log", MTD_D_D);
+                    case LOG -> cob.invokestatic(CD_MATH, "log10", MTD_D_D);
+                    case FAC -> cob.invokestatic(CD_BUILTIN, "fac", MTD_D_D);
+                    case NCR -> cob.invokestatic(CD_BUILTIN, "ncr", MTD_DD_D);
+                    case NPR -> cob.invokestatic(CD_BUILTIN, "npr", MTD_DD_D);
+                    //abs, acos, asin, atan, ceil, cos, cosh, exp, floor, log10, sin, sinh, sqrt, tan, tanh
+                    default -> cob.invokestatic(CD_MATH, builtin.symbol(), MTD_D_D);
+                }
+            }
+        }
+    }
+
+    //superclass of the generated hidden classes, they only implement evaluate()
+    abstract static class Compiled implements Expression, Specializable {
+        private final List<Variable> variables;
+        private final double[] slots;
+        //the tree before the optimizing pass, set once right after the class is defined
+        private TinyExprParser.Parsed parsed;
+
+        protected Compiled(List<Variable> variables, double[] slots) {
+            this.variables = variables;
+            this.slots = slots;
+        }
+
+        @Override
+        public void evaluateBatch(double[][] columns, double[] out) {
+            checkColumns(columns.length);
+            for (double[] column : columns) {
+                if (column.length < out.length) throw new IllegalArgumentException("Column is shorter than the output");
+            }
+            double[] saved = slots.clone();
+            try {
+                for (int row = 0; row < out.length; row++) {
+                    for (int i = 0; i < columns.length; i++) slots[i] = columns[i][row];
+                    out[row] = evaluate();
+                }
+            } finally {
+                System.arraycopy(saved, 0, slots, 0, slots.length);
+            }
+        }
+
+        @Override
+        public void evaluateBatch(MemorySegment[] columns, MemorySegment out, long rows) {
+            checkColumns(columns.length);
+            double[] saved = slots.clone();
+            try {
+                for (long row = 0; row < rows; row++) {
+                    for (int i = 0; i < columns.length; i++) slots[i] = columns[i].getAtIndex(ValueLayout.JAVA_DOUBLE, row);
+                    out.setAtIndex(ValueLayout.JAVA_DOUBLE, row, evaluate());
+                }
+            } finally {
+                System.arraycopy(saved, 0, slots, 0, slots.length);
+            }
+        }
+
+        @Override
+        public TinyExprParser.Parsed parsed() {
+            if (parsed == null) throw new IllegalArgumentException("Expression does not keep its tree");
+            return parsed;
+        }
+
+        //variable values of the framed evaluate(MemorySegment)
+        abstract double evaluate(MemorySegment frame);
+
+        static double read(MemorySegment frame, int index) {
+            return frame.getAtIndex(ValueLayout.JAVA_DOUBLE, index);
+        }
+
+        private void checkColumns(int count) {
+            if (count != slots.length) throw new IllegalArgumentException(String.format("Expected %d columns, one per variable, got %d", slots.length, count));
+        }
+
+        static MemorySegment slot(double[] slots, int index) {
+            return MemorySegment.ofArray(slots).asSlice(index * ValueLayout.JAVA_DOUBLE.byteSize(), ValueLayout.JAVA_DOUBLE);
+        }
+
+        @Override
+        public void close() {
+            for (int i = 0; i < variables.size(); i++) variables.get(i).unbind(slot(slots, i));
+        }
+    }
+
+    //superclass of generated programs, they only implement run(), which writes every output
+    abstract static class CompiledProgram implements ExpressionProgram {
+        private final List<Variable> variables;
+        private final double[] slots;
+        private final List<String> outputs;
+
+        protected CompiledProgram(List<Variable> variables, double[] slots, List<String> outputs) {
+            this.variables = variables;
+            this.slots = slots;
+            this.outputs = outputs;
+        }
+
+        @Override
+        public List<String> outputs() {
+            return outputs;
+        }
+
+        @Override
+        public void evaluateInto(double[] out) {
+            if (out.length < outputs.size()) throw new IllegalArgumentException(String.format("Expected room for %d outputs, got %d", outputs.size(), out.length));
+            run(out);
+        }
+
+        abstract void run(double[] out);
+
+        @Override
+        public void close() {
+            for (int i = 0; i < variables.size(); i++) variables.get(i).unbind(Compiled.slot(slots, i));
+        }
+    }
+
+    private record SharedCompiled(Compiled compiled, List<String> variables, double[] defaults) implements SharedExpression {
+        @Override
+        public VariableFrame newFrame() {
+            return new VariableFrame(defaults.length).set(defaults);
+        }
+
+        @Override
+        public double evaluate(VariableFrame frame) {
+            if (frame.size() < defaults.length) throw new IllegalArgumentException(String.format("Expected a frame of %d variables, got %d", defaults.length, frame.size()));
+            return compiled.evaluate(frame.segment());
+        }
+
+        @Override
+        public double evaluate(double... values) {
+            if (values.length != defaults.length) throw new IllegalArgumentException(String.format("Expected %d values, got %d", defaults.length, values.length));
+            return compiled.evaluate(VariableFrame.scratch(values).segment());
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    //variables live in the frame, they are read on every evaluation, so frame updates are plain stores
+    private record FrameCompiled(Compiled compiled, VariableFrame frame, int variableCount) implements Expression {
+        @Override
+        public double evaluate() {
+            return compiled.evaluate(frame.segment());
+        }
+
+        @Override
+        public void evaluateBatch(double[][] columns, double[] out) {
+            checkColumns(columns.length);
+            for (double[] column : columns) {
+                if (column.length < out.length) throw new IllegalArgumentException("Column is shorter than the output");
+            }
+            MemorySegment values = frame.segment();
+            double[] saved = values.asSlice(0, variableCount * ValueLayout.JAVA_DOUBLE.byteSize()).toArray(ValueLayout.JAVA_DOUBLE);
+            try {
+                for (int row = 0; row < out.length; row++) {
+                    for (int i = 0; i < columns.length; i++) values.setAtIndex(ValueLayout.JAVA_DOUBLE, i, columns[i][row]);
+                    out[row] = compiled.evaluate(values);
+                }
+            } finally {
+                frame.set(saved);
+            }
+        }
+
+        @Override
+        public void evaluateBatch(MemorySegment[] columns, MemorySegment out, long rows) {
+            checkColumns(columns.length);
+            MemorySegment values = frame.segment();
+            double[] saved = values.asSlice(0, variableCount * ValueLayout.JAVA_DOUBLE.byteSize()).toArray(ValueLayout.JAVA_DOUBLE);
+            try {
+                for (long row = 0; row < rows; row++) {
+                    for (int i = 0; i < columns.length; i++) values.setAtIndex(ValueLayout.JAVA_DOUBLE, i, columns[i].getAtIndex(ValueLayout.JAVA_DOUBLE, row));
+                    out.setAtIndex(ValueLayout.JAVA_DOUBLE, row, compiled.evaluate(values));
+                }
+            } finally {
+                frame.set(saved);
+            }
+        }
+
+        private void checkColumns(int count) {
+            if (count != variableCount) throw new IllegalArgumentException(String.format("Expected %d columns, one per variable, got %d", variableCount, count));
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
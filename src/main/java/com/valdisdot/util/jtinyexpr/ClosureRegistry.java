@@ -0,0 +1,116 @@
+package com.valdisdot.util.jtinyexpr;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+one long-lived upcall stub per arity, bound as TE_CLOSURE0..7
+the closure context pointer carries a handle which routes the call to the registered Function,
+so compiling an expression with custom functions creates no new upcall stubs
+writes are serialized by the class lock, upcalls read without it from any thread: elements are published through
+an AtomicReferenceArray, a grown table through the volatile field
+ */
+final class ClosureRegistry {
+    private static final MemorySegment[] STUBS = new MemorySegment[8];
+
+    private static volatile AtomicReferenceArray<Function> functions = new AtomicReferenceArray<>(64);
+    //free handles, a stack threaded through the array indexes
+    private static int[] free = new int[0];
+    private static int freeCount;
+    private static int next = 1;
+
+    private ClosureRegistry() {
+    }
+
+    static synchronized MemorySegment stub(int arity) {
+        if (STUBS[arity] == null) {
+            Class<?>[] types = new Class<?>[arity + 1];
+            ValueLayout[] params = new ValueLayout[arity + 1];
+            Arrays.fill(types, double.class);
+            Arrays.fill(params, ValueLayout.JAVA_DOUBLE);
+            types[0] = MemorySegment.class;
+            params[0] = ValueLayout.ADDRESS;
+            try {
+                MethodHandle mh = MethodHandles.lookup().findStatic(ClosureRegistry.class, "closure" + arity, MethodType.methodType(double.class, types));
+                STUBS[arity] = Linker.nativeLinker().upcallStub(mh, FunctionDescriptor.of(ValueLayout.JAVA_DOUBLE, params), Arena.global());
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return STUBS[arity];
+    }
+
+    //returns the closure context, handles are never 0 so the context is never NULL
+    static synchronized MemorySegment register(Function function) {
+        int handle;
+        if (freeCount > 0) handle = free[--freeCount];
+        else {
+            handle = next++;
+            if (handle >= functions.length()) grow();
+        }
+        functions.set(handle, function);
+        return MemorySegment.ofAddress(handle);
+    }
+
+    static synchronized void rebind(MemorySegment context, Function function) {
+        functions.set((int) context.address(), function);
+    }
+
+    static synchronized void unregister(MemorySegment context) {
+        int handle = (int) context.address();
+        functions.set(handle, null);
+        if (freeCount == free.length) free = Arrays.copyOf(free, Math.max(16, free.length * 2));
+        free[freeCount++] = handle;
+    }
+
+    private static void grow() {
+        AtomicReferenceArray<Function> current = functions;
+        AtomicReferenceArray<Function> grown = new AtomicReferenceArray<>(current.length() * 2);
+        for (int i = 0; i < current.length(); i++) grown.set(i, current.get(i));
+        functions = grown;
+    }
+
+    private static Function function(MemorySegment context) {
+        return functions.get((int) context.address());
+    }
+
+    private static double closure0(MemorySegment context) {
+        return ((Function.NoArgs) function(context)).apply();
+    }
+
+    private static double closure1(MemorySegment context, double a) {
+        return ((Function.OneArgs) function(context)).apply(a);
+    }
+
+    private static double closure2(MemorySegment context, double a, double b) {
+        return ((Function.TwoArgs) function(context)).apply(a, b);
+    }
+
+    private static double closure3(MemorySegment context, double a, double b, double c) {
+        return ((Function.ThreeArgs) function(context)).apply(a, b, c);
+    }
+
+    private static double closure4(MemorySegment context, double a, double b, double c, double d) {
+        return ((Function.FourArgs) function(context)).apply(a, b, c, d);
+    }
+
+    private static double closure5(MemorySegment context, double a, double b, double c, double d, double e) {
+        return ((Function.FiveArgs) function(context)).apply(a, b, c, d, e);
+    }
+
+    private static double closure6(MemorySegment context, double a, double b, double c, double d, double e, double f) {
+        return ((Function.SixArgs) function(context)).apply(a, b, c, d, e, f);
+    }
+
+    private static double closure7(MemorySegment context, double a, double b, double c, double d, double e, double f, double g) {
+        return ((Function.SevenArgs) function(context)).apply(a, b, c, d, e, f, g);
+    }
+}
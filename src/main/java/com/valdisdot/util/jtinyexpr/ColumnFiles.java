@@ -0,0 +1,92 @@
+package com.valdisdot.util.jtinyexpr;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/*
+evaluation over column files: raw doubles in native byte order, one file per variable, the output file has the same layout
+the files are mapped with FileChannel.map one window of rows at a time and the windows go straight to
+Expression.evaluateBatch(MemorySegment[], ...), so rows are never copied into the heap and each file is read front to back
+a window is unmapped before the next one is mapped, the mapped size stays at chunkRows doubles per file
+ */
+public final class ColumnFiles {
+    //8 MiB of doubles per file and window
+    public static final long DEFAULT_CHUNK_ROWS = 1 << 20;
+
+    private ColumnFiles() {
+    }
+
+    public static long evaluate(ExpressionCompiler compiler, String formula, Map<String, Path> columns, Path output) throws ExpressionCompilerException, IOException {
+        return evaluate(compiler, formula, columns, output, DEFAULT_CHUNK_ROWS);
+    }
+
+    public static long evaluate(ExpressionCompiler compiler, String formula, Map<String, Path> columns, Path output, long chunkRows, Argument... functions) throws ExpressionCompilerException, IOException {
+        return evaluate(compiler, formula, columns, output, chunkRows, Arrays.asList(functions));
+    }
+
+    //every column file is bound to a variable of the same name, the functions are passed to the compiler as they are
+    public static long evaluate(ExpressionCompiler compiler, String formula, Map<String, Path> columns, Path output, long chunkRows, Collection<Argument> functions) throws ExpressionCompilerException, IOException {
+        List<Argument> args = new ArrayList<>(columns.size() + functions.size());
+        List<Path> files = new ArrayList<>(columns.size());
+        columns.forEach((name, file) -> {
+            args.add(Argument.of(name, new Variable(0)));
+            files.add(file);
+        });
+        for (Argument function : functions) {
+            if (function.value() instanceof Variable) throw new IllegalArgumentException(String.format("'%s' is a variable, variables are column files", function.name()));
+            args.add(function);
+        }
+        try (Expression expression = compiler.compile(formula, args)) {
+            return evaluate(expression, files, output, chunkRows);
+        } catch (ExpressionCompilerException | IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to close the expression", e);
+        }
+    }
+
+    //columns in the order the variables were passed to the compiler, returns the number of rows written
+    public static long evaluate(Expression expression, List<Path> columns, Path output, long chunkRows) throws IOException {
+        if (chunkRows <= 0) throw new IllegalArgumentException("Chunk size must be positive");
+        long stride = ValueLayout.JAVA_DOUBLE.byteSize();
+        FileChannel[] inputs = new FileChannel[columns.size()];
+        try (FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long rows = -1;
+            for (int i = 0; i < inputs.length; i++) {
+                inputs[i] = FileChannel.open(columns.get(i), StandardOpenOption.READ);
+                long size = inputs[i].size();
+                if (size % stride != 0) throw new IOException(String.format("%s is not a column of doubles, size %d", columns.get(i), size));
+                if (rows >= 0 && size / stride != rows) throw new IOException(String.format("%s has %d rows, expected %d", columns.get(i), size / stride, rows));
+                rows = size / stride;
+            }
+            //without columns the expression is constant, there is nothing to size the output by
+            if (rows < 0) throw new IllegalArgumentException("At least one column is required");
+
+            MemorySegment[] windows = new MemorySegment[inputs.length];
+            for (long row = 0; row < rows; row += chunkRows) {
+                long count = Math.min(chunkRows, rows - row);
+                try (Arena arena = Arena.ofConfined()) {
+                    for (int i = 0; i < inputs.length; i++) {
+                        windows[i] = inputs[i].map(FileChannel.MapMode.READ_ONLY, row * stride, count * stride, arena);
+                    }
+                    expression.evaluateBatch(windows, out.map(FileChannel.MapMode.READ_WRITE, row * stride, count * stride, arena), count);
+                }
+            }
+            return rows;
+        } finally {
+            for (FileChannel input : inputs) {
+                if (input != null) input.close();
+            }
+        }
+    }
+}
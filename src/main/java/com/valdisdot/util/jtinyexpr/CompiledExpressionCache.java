@@ -0,0 +1,103 @@
+package com.valdisdot.util.jtinyexpr;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+opt-in LRU cache of native trees for TinyExpressionCompiler, keyed by expression text, optimize mode, slab and argument signature
+a cached tree is leased by one expression at a time: on a hit the new Variable and Function arguments are rebound to it,
+if the tree is already leased, a fresh uncached tree is compiled
+trees are reference counted, an evicted tree is freed when its last lease is closed
+ */
+public class CompiledExpressionCache {
+    private final int maxSize;
+    private final long maxWeight;
+    private final LinkedHashMap<TinyExpressionCompiler.CacheKey, TinyExpressionCompiler.NativeTree> trees = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    //maxWeight is an estimate of native bytes held by cached trees
+    public CompiledExpressionCache(int maxSize, long maxWeight) {
+        if (maxSize <= 0) throw new IllegalArgumentException("Cache size must be positive");
+        if (maxWeight <= 0) throw new IllegalArgumentException("Cache weight must be positive");
+        this.maxSize = maxSize;
+        this.maxWeight = maxWeight;
+    }
+
+    public CompiledExpressionCache(int maxSize) {
+        this(maxSize, Long.MAX_VALUE);
+    }
+
+    synchronized TinyExpressionCompiler.NativeTree lease(TinyExpressionCompiler.CacheKey key) {
+        TinyExpressionCompiler.NativeTree tree = trees.get(key);
+        if (tree != null && tree.tryLease()) {
+            hits++;
+            return tree;
+        }
+        misses++;
+        return null;
+    }
+
+    synchronized void offer(TinyExpressionCompiler.CacheKey key, TinyExpressionCompiler.NativeTree tree) {
+        if (trees.containsKey(key)) return;
+        tree.retain();
+        trees.put(key, tree);
+        weight += tree.weight();
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<TinyExpressionCompiler.CacheKey, TinyExpressionCompiler.NativeTree>> eldest = trees.entrySet().iterator();
+        while ((trees.size() > maxSize || weight > maxWeight) && eldest.hasNext()) {
+            TinyExpressionCompiler.NativeTree tree = eldest.next().getValue();
+            eldest.remove();
+            weight -= tree.weight();
+            evictions++;
+            tree.release();
+        }
+    }
+
+    //trees packed into the slab, called when the slab is closed
+    synchronized void evict(ExpressionSlab slab) {
+        Iterator<Map.Entry<TinyExpressionCompiler.CacheKey, TinyExpressionCompiler.NativeTree>> entries = trees.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<TinyExpressionCompiler.CacheKey, TinyExpressionCompiler.NativeTree> entry = entries.next();
+            if (entry.getKey().slab() != slab) continue;
+            entries.remove();
+            weight -= entry.getValue().weight();
+            evictions++;
+            entry.getValue().release();
+        }
+    }
+
+    public synchronized void clear() {
+        trees.values().forEach(TinyExpressionCompiler.NativeTree::release);
+        evictions += trees.size();
+        trees.clear();
+        weight = 0;
+    }
+
+    public synchronized int size() {
+        return trees.size();
+    }
+
+    public synchronized long weight() {
+        return weight;
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized long evictions() {
+        return evictions;
+    }
+}
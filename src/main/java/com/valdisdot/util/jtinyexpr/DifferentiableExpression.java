@@ -0,0 +1,23 @@
+package com.valdisdot.util.jtinyexpr;
+
+import java.util.List;
+
+/*
+expression evaluated together with its partial derivatives by forward-mode automatic differentiation:
+one pass per call instead of N+1 evaluations of finite differences
+built-ins and operators use their analytic derivatives, custom functions implementing Function.Partials theirs,
+other custom functions are differentiated by central differences around their own arguments only
+ceil, floor, fac, ncr and npr are piecewise constant, their derivative is 0
+ */
+public interface DifferentiableExpression extends AutoCloseable {
+    //the variables derivatives are taken by, in the order they were given to the compiler
+    List<String> variables();
+
+    double evaluate();
+
+    //returns the value, gradient[i] receives the partial derivative by variables().get(i)
+    double evaluate(double[] gradient);
+
+    @Override
+    void close();
+}
@@ -3,7 +3,7 @@ package com.valdisdot.util.jtinyexpr;
 /*
 the purpose of the library is to test and validate tinyexpr specific expressions outside the C code
 the library is as tiny as tinyexpr, without redundant overhead
-not all capabilities are utilized though: no usage of c-closure functions since Java method already closure based
+custom functions are bound as tinyexpr closures, one shared upcall stub per arity routes the call by the closure context
 
 compiler can:
         - validate constant (ones without variables) and non-constant expressions
@@ -16,7 +16,8 @@ public class Example {
     public static void main(String[] args) {
         /*
         core of the library is an ExpressionCompiler
-        the only implementation is the TinyExpressionCompiler which load tinyexpr library from the resourses/lib
+        the TinyExpressionCompiler loads tinyexpr library from the resourses/lib
+        the BytecodeExpressionCompiler is a pure java alternative, it generates a hidden class per expression
          */
         ExpressionCompiler expressionCompiler = new TinyExpressionCompiler();
 
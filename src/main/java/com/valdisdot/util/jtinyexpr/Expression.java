@@ -1,5 +1,19 @@
 package com.valdisdot.util.jtinyexpr;
 
+import java.lang.foreign.MemorySegment;
+
 public interface Expression extends AutoCloseable {
     double evaluate();
+
+    //columns are in the order the variables were passed to the compiler, out.length rows are evaluated
+    //bound variables keep their values, the rows do not go through Variable.update()
+    //an implementation outside this library cannot be fed rows without its variable slots, so it has to opt in
+    default void evaluateBatch(double[][] columns, double[] out) {
+        throw new UnsupportedOperationException("Batch evaluation is not supported by " + getClass().getName());
+    }
+
+    //same as above for columns of doubles, the native implementation requires native segments
+    default void evaluateBatch(MemorySegment[] columns, MemorySegment out, long rows) {
+        throw new UnsupportedOperationException("Batch evaluation is not supported by " + getClass().getName());
+    }
 }
@@ -0,0 +1,100 @@
+package com.valdisdot.util.jtinyexpr;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/*
+file of named expression images (ExpressionCompiler.save), little-endian:
+    magic "JTEC", u16 version, u16 reserved, u32 count, then per entry u16 name length + UTF-8 name, u64 offset, u32 length,
+    then the images
+open() maps the whole file, image(name) is a slice of the mapping passed to ExpressionCompiler.load as it is,
+so a warm start reads the index and the images it loads, nothing else
+the mapping is shared, images may be loaded from any thread until close()
+ */
+public final class ExpressionCatalog implements AutoCloseable {
+    static final int VERSION = 1;
+    private static final int MAGIC = 'J' | 'T' << 8 | 'E' << 16 | 'C' << 24;
+
+    private static final ValueLayout.OfShort U16 = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfInt U32 = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfLong U64 = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private final Arena arena;
+    private final Map<String, MemorySegment> images;
+
+    private ExpressionCatalog(Arena arena, Map<String, MemorySegment> images) {
+        this.arena = arena;
+        this.images = images;
+    }
+
+    public static void write(Path file, Map<String, byte[]> images) throws IOException {
+        long header = 12;
+        for (String name : images.keySet()) header += 2 + name.getBytes(StandardCharsets.UTF_8).length + 12;
+        ByteBuffer index = ByteBuffer.allocate(Math.toIntExact(header)).order(ByteOrder.LITTLE_ENDIAN);
+        index.putInt(MAGIC).putShort((short) VERSION).putShort((short) 0).putInt(images.size());
+        long offset = header;
+        for (Map.Entry<String, byte[]> image : images.entrySet()) {
+            byte[] name = image.getKey().getBytes(StandardCharsets.UTF_8);
+            if (name.length > 0xFFFF) throw new IllegalArgumentException("Image name is too long");
+            index.putShort((short) name.length).put(name).putLong(offset).putInt(image.getValue().length);
+            offset += image.getValue().length;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            channel.write(index.flip());
+            for (byte[] image : images.values()) channel.write(ByteBuffer.wrap(image));
+        }
+    }
+
+    public static ExpressionCatalog open(Path file) throws IOException {
+        Arena arena = Arena.ofShared();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MemorySegment mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+            if (mapped.byteSize() < 12 || mapped.get(U32, 0) != MAGIC) throw new IOException("Not an expression catalog: " + file);
+            int version = Short.toUnsignedInt(mapped.get(U16, 4));
+            if (version != VERSION) throw new IOException(String.format("Unsupported expression catalog version %d, expected %d", version, VERSION));
+            int count = mapped.get(U32, 8);
+            Map<String, MemorySegment> images = new LinkedHashMap<>();
+            long at = 12;
+            for (int i = 0; i < count; i++) {
+                int length = Short.toUnsignedInt(mapped.get(U16, at));
+                String name = new String(mapped.asSlice(at + 2, length).toArray(ValueLayout.JAVA_BYTE), StandardCharsets.UTF_8);
+                at += 2 + length;
+                images.put(name, mapped.asSlice(mapped.get(U64, at), Integer.toUnsignedLong(mapped.get(U32, at + 8))));
+                at += 12;
+            }
+            return new ExpressionCatalog(arena, Collections.unmodifiableMap(images));
+        } catch (IOException | RuntimeException e) {
+            arena.close();
+            if (e instanceof IndexOutOfBoundsException) throw new IOException("Corrupt expression catalog: " + file, e);
+            throw e;
+        }
+    }
+
+    public Set<String> names() {
+        return images.keySet();
+    }
+
+    public MemorySegment image(String name) {
+        MemorySegment image = images.get(name);
+        if (image == null) throw new IllegalArgumentException(String.format("Unknown expression '%s'", name));
+        return image;
+    }
+
+    //expressions loaded from the catalog stay valid, they do not reference the mapping
+    @Override
+    public void close() {
+        arena.close();
+    }
+}
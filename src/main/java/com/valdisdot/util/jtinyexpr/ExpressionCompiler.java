@@ -1,6 +1,10 @@
 package com.valdisdot.util.jtinyexpr;
 
+import java.lang.foreign.MemorySegment;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 public interface ExpressionCompiler {
     boolean validate(String constantExpression);
@@ -10,4 +14,93 @@ public interface ExpressionCompiler {
     Expression compile(String constantExpression) throws ExpressionCompilerException;
     Expression compile(String nonConstantExpression, Argument... args) throws ExpressionCompilerException;
     Expression compile(String nonConstantExpression, Collection<Argument> args) throws ExpressionCompilerException;
+    //variable arguments name the frame slots in order and are not bound, expressions read the frame directly
+    default Expression compile(String nonConstantExpression, VariableFrame frame, Argument... args) throws ExpressionCompilerException {
+        return compile(nonConstantExpression, frame, Arrays.asList(args));
+    }
+
+    default Expression compile(String nonConstantExpression, VariableFrame frame, Collection<Argument> args) throws ExpressionCompilerException {
+        throw new UnsupportedOperationException("Frame-backed expressions are not supported by " + getClass().getName());
+    }
+
+    //variables are not bound, they only name the frame slots and provide defaults
+    default SharedExpression compileShared(String nonConstantExpression, Argument... args) throws ExpressionCompilerException {
+        return compileShared(nonConstantExpression, Arrays.asList(args));
+    }
+
+    default SharedExpression compileShared(String nonConstantExpression, Collection<Argument> args) throws ExpressionCompilerException {
+        throw new UnsupportedOperationException("Shared expressions are not supported by " + getClass().getName());
+    }
+
+    //formulas are evaluated in map iteration order (use a LinkedHashMap), a formula may reference outputs before it by name
+    default ExpressionProgram compileAll(Map<String, String> formulas, Argument... args) throws ExpressionCompilerException {
+        return compileAll(formulas, Arrays.asList(args));
+    }
+
+    default ExpressionProgram compileAll(Map<String, String> formulas, Collection<Argument> args) throws ExpressionCompilerException {
+        throw new UnsupportedOperationException("Formula sheets are not supported by " + getClass().getName());
+    }
+
+    //loads an image of save(), variables and functions are rebound by name and the text is not parsed again
+    default Expression load(MemorySegment image, Argument... args) throws ExpressionCompilerException {
+        return load(image, Arrays.asList(args));
+    }
+
+    //without an override the image is printed back to text and compiled
+    default Expression load(MemorySegment image, Collection<Argument> args) throws ExpressionCompilerException {
+        TinyExprParser.Parsed parsed = ExpressionImage.decode(image, args);
+        return compile(Optimizer.print(parsed.root(), parsed.variables()), args);
+    }
+
+    //same compiler with the optimizing pass: algebraic identities, x^2 -> x*x, and on the bytecode compiler
+    //common subexpressions and pure call deduplication too, see OptimizationReport;
+    //constants are folded with Java Math, on the native compiler results may differ from compile() in the last bit;
+    //a compiler without the pass returns itself
+    default ExpressionCompiler optimizing() {
+        return this;
+    }
+
+    //parse and name resolution only, nothing is compiled or evaluated and no Function is called
+    default ValidationResult check(String nonConstantExpression, Collection<Argument> args) {
+        return TinyExprParser.check(nonConstantExpression, args);
+    }
+
+    //checked in parallel, results are in the order of the expressions
+    default List<ValidationResult> validateAll(Collection<String> expressions, Collection<Argument> args) {
+        List<Argument> shared = List.copyOf(args);
+        return expressions.parallelStream().map(expression -> check(expression, shared)).toList();
+    }
+
+    //versioned binary image of the folded tree, pure functions called with constants are already folded into it
+    default byte[] save(String nonConstantExpression, Collection<Argument> args) throws ExpressionCompilerException {
+        return ExpressionImage.encode(TinyExprParser.parse(nonConstantExpression, args));
+    }
+
+    //forward-mode automatic differentiation by the named variables, evaluated on the heap whatever the compiler
+    default DifferentiableExpression compileDifferentiable(String nonConstantExpression, List<String> variables, Argument... args) throws ExpressionCompilerException {
+        return compileDifferentiable(nonConstantExpression, variables, Arrays.asList(args));
+    }
+
+    default DifferentiableExpression compileDifferentiable(String nonConstantExpression, List<String> variables, Collection<Argument> args) throws ExpressionCompilerException {
+        return ForwardGradient.compile(nonConstantExpression, variables, args);
+    }
+
+    /*
+    partial evaluation: frozen variables become constants folded through arithmetic and pure functions, the residual
+    formula is compiled by this compiler with the other variables still bound (frozen ones are no longer bound to it)
+    the expression must come from compile() or load() of either compiler
+     */
+    default Expression specialize(Expression compiled, Map<String, Double> frozen) throws ExpressionCompilerException {
+        if (!(compiled instanceof Specializable specializable)) throw new IllegalArgumentException("Expression does not keep its tree: " + compiled.getClass().getName());
+        return PartialEvaluation.specialize(this, specializable.parsed(), frozen);
+    }
+
+    default Expression specialize(String nonConstantExpression, Map<String, Double> frozen, Collection<Argument> args) throws ExpressionCompilerException {
+        return PartialEvaluation.specialize(this, TinyExprParser.parse(nonConstantExpression, args), frozen);
+    }
+
+    //what the optimizing pass does to the expression, nothing is compiled
+    default OptimizationReport optimize(String nonConstantExpression, Collection<Argument> args) throws ExpressionCompilerException {
+        return Optimizer.optimize(TinyExprParser.parse(nonConstantExpression, args).root()).report();
+    }
 }
@@ -0,0 +1,58 @@
+package com.valdisdot.util.jtinyexpr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/*
+JFR events of TinyExpressionCompiler, they cost nothing unless a recording enables them
+ExpressionEvaluated is sampled: one evaluation out of SAMPLE_RATE per expression is recorded
+ */
+final class ExpressionEvents {
+    static final int SAMPLE_RATE = 1024;
+
+    private ExpressionEvents() {
+    }
+
+    @Name("com.valdisdot.util.jtinyexpr.ExpressionCompiled")
+    @Label("Expression Compiled")
+    @Category("TinyExpr")
+    @Description("te_compile of an expression, or a lease of a cached tree")
+    static final class Compiled extends Event {
+        @Label("Expression")
+        String expression;
+
+        @Label("Cache Hit")
+        boolean cacheHit;
+
+        @Label("Succeeded")
+        boolean succeeded;
+    }
+
+    @Name("com.valdisdot.util.jtinyexpr.ExpressionInterpreted")
+    @Label("Expression Interpreted")
+    @Category("TinyExpr")
+    static final class Interpreted extends Event {
+        @Label("Expression")
+        String expression;
+
+        @Label("Succeeded")
+        boolean succeeded;
+    }
+
+    @Name("com.valdisdot.util.jtinyexpr.ExpressionEvaluated")
+    @Label("Expression Evaluated")
+    @Category("TinyExpr")
+    @Description("Sampled te_eval calls and whole batches")
+    @StackTrace(false)
+    static final class Evaluated extends Event {
+        @Label("Expression")
+        String expression;
+
+        @Label("Rows")
+        long rows;
+    }
+}
@@ -0,0 +1,12 @@
+package com.valdisdot.util.jtinyexpr;
+
+/*
+native bytes held by one compiled expression: te_expr nodes, their postfix program (te_flatten), its variable values (0 when compiled against a frame)
+and compile-time metadata kept alive with it (argument names, te_variable array, expression text)
+slab expressions keep no metadata, their names are interned once per slab (ExpressionSlab.nameBytes())
+ */
+public record ExpressionFootprint(int nodes, long nodeBytes, long programBytes, long variableBytes, long metadataBytes, boolean slab) {
+    public long totalBytes() {
+        return nodeBytes + programBytes + variableBytes + metadataBytes;
+    }
+}
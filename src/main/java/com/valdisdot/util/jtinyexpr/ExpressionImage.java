@@ -0,0 +1,237 @@
+package com.valdisdot.util.jtinyexpr;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+binary form of a folded tree, little-endian:
+    magic "JTEX", u16 version, u16 reserved, u16 variable count, u16 function count, u32 constant count, u32 instruction count
+    variable names (u16 length + UTF-8), functions (u8 arity, u16 length + UTF-8), constants (f64)
+    postfix instructions (u8 op, u16 operand) with the ops of te_assemble: constant, variable, call, builtin (Node.Builtin ordinal)
+variables and functions are stored by name and resolved against the arguments on load, so nothing is parsed again
+ */
+final class ExpressionImage {
+    static final int VERSION = 1;
+    private static final int MAGIC = 'J' | 'T' << 8 | 'E' << 16 | 'X' << 24;
+    static final int CONSTANT = 0, VARIABLE = 1, CALL = 2, BUILTIN = 3;
+
+    private static final ValueLayout.OfShort U16 = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfInt U32 = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfDouble F64 = ValueLayout.JAVA_DOUBLE_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private ExpressionImage() {
+    }
+
+    static byte[] encode(TinyExprParser.Parsed parsed) throws ExpressionCompilerException {
+        Map<Integer, Integer> variables = new HashMap<>();
+        List<String> variableNames = new ArrayList<>();
+        Map<Node.Custom, Integer> functions = new HashMap<>();
+        List<Node.Custom> functionList = new ArrayList<>();
+        List<Double> constants = new ArrayList<>();
+        ByteArrayOutputStream code = new ByteArrayOutputStream();
+        int[] instructions = new int[1];
+        encode(parsed.root(), parsed.variables(), variables, variableNames, functions, functionList, constants, code, instructions);
+
+        ByteBuffer out = ByteBuffer.allocate(20 + names(variableNames, functionList) + constants.size() * 8 + code.size()).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(MAGIC).putShort((short) VERSION).putShort((short) 0)
+                .putShort((short) variableNames.size()).putShort((short) functionList.size())
+                .putInt(constants.size()).putInt(instructions[0]);
+        for (String name : variableNames) putName(out, name);
+        for (Node.Custom function : functionList) {
+            out.put((byte) function.arity());
+            putName(out, function.symbol());
+        }
+        for (double constant : constants) out.putDouble(constant);
+        out.put(code.toByteArray());
+        return out.array();
+    }
+
+    private static void encode(Node node, List<Argument> slots, Map<Integer, Integer> variables, List<String> variableNames,
+                               Map<Node.Custom, Integer> functions, List<Node.Custom> functionList, List<Double> constants,
+                               ByteArrayOutputStream code, int[] instructions) throws ExpressionCompilerException {
+        switch (node) {
+            case Node.Constant c -> {
+                constants.add(c.value());
+                instruction(code, CONSTANT, constants.size() - 1);
+            }
+            case Node.Bound b -> {
+                Integer index = variables.get(b.slot());
+                if (index == null) {
+                    index = variableNames.size();
+                    variables.put(b.slot(), index);
+                    variableNames.add(slots.get(b.slot()).name());
+                }
+                instruction(code, VARIABLE, index);
+            }
+            case Node.Call call -> {
+                for (Node arg : call.args()) encode(arg, slots, variables, variableNames, functions, functionList, constants, code, instructions);
+                if (call.callee() instanceof Node.Builtin builtin) {
+                    instruction(code, BUILTIN, builtin.ordinal());
+                } else {
+                    Node.Custom custom = (Node.Custom) call.callee();
+                    Integer index = functions.get(custom);
+                    if (index == null) {
+                        index = functionList.size();
+                        functions.put(custom, index);
+                        functionList.add(custom);
+                    }
+                    instruction(code, CALL, index);
+                }
+            }
+        }
+        instructions[0]++;
+    }
+
+    private static void instruction(ByteArrayOutputStream code, int op, int operand) throws ExpressionCompilerException {
+        if (operand > 0xFFFF) throw new ExpressionCompilerException("Expression is too large for an image");
+        code.write(op);
+        code.write(operand & 0xFF);
+        code.write(operand >>> 8);
+    }
+
+    private static int names(List<String> variables, List<Node.Custom> functions) {
+        int size = 0;
+        for (String name : variables) size += 2 + name.getBytes(StandardCharsets.UTF_8).length;
+        for (Node.Custom function : functions) size += 3 + function.symbol().getBytes(StandardCharsets.UTF_8).length;
+        return size;
+    }
+
+    private static void putName(ByteBuffer out, String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        out.putShort((short) bytes.length).put(bytes);
+    }
+
+    //variables get the slots the parser would give them: variable arguments in order, the first of a name wins
+    static TinyExprParser.Parsed decode(MemorySegment image, Collection<Argument> args) throws ExpressionCompilerException {
+        List<Argument> slots = new ArrayList<>();
+        Map<String, Integer> variableSlots = new HashMap<>();
+        Map<String, Function> functionArgs = new HashMap<>();
+        for (Argument arg : args) {
+            if (arg.value() instanceof Variable) {
+                variableSlots.putIfAbsent(arg.name(), slots.size());
+                slots.add(arg);
+            } else if (arg.value() instanceof Function f) {
+                functionArgs.putIfAbsent(arg.name(), f);
+            } else throw new ExpressionCompilerException(String.format("Unknown argument value type: %s", arg.value().getClass()));
+        }
+
+        try {
+            if (image.get(U32, 0) != MAGIC) throw new ExpressionCompilerException("Not an expression image");
+            int version = Short.toUnsignedInt(image.get(U16, 4));
+            if (version != VERSION) throw new ExpressionCompilerException(String.format("Unsupported expression image version %d, expected %d", version, VERSION));
+            int variableCount = Short.toUnsignedInt(image.get(U16, 8));
+            int functionCount = Short.toUnsignedInt(image.get(U16, 10));
+            int constantCount = image.get(U32, 12);
+            int instructionCount = image.get(U32, 16);
+            if (constantCount < 0 || instructionCount < 0 || constantCount * 8L + instructionCount * 3L > image.byteSize()) throw new ExpressionCompilerException("Corrupt expression image");
+            long at = 20;
+
+            int[] variables = new int[variableCount];
+            for (int i = 0; i < variableCount; i++) {
+                String name = name(image, at);
+                at += 2 + Short.toUnsignedInt(image.get(U16, at));
+                Integer slot = variableSlots.get(name);
+                if (slot == null) throw new ExpressionCompilerException(String.format("Variable '%s' is not provided", name));
+                variables[i] = slot;
+            }
+            Node.Custom[] functions = new Node.Custom[functionCount];
+            for (int i = 0; i < functionCount; i++) {
+                int arity = Byte.toUnsignedInt(image.get(ValueLayout.JAVA_BYTE, at));
+                String name = name(image, at + 1);
+                at += 3 + Short.toUnsignedInt(image.get(U16, at + 1));
+                Function function = functionArgs.get(name);
+                if (function == null || Functions.arity(function) != arity) throw new ExpressionCompilerException(String.format("Function '%s' of %d arguments is not provided", name, arity));
+                functions[i] = new Node.Custom(name, function, arity);
+            }
+            double[] constants = new double[constantCount];
+            for (int i = 0; i < constantCount; i++, at += 8) constants[i] = image.get(F64, at);
+
+            Node.Builtin[] builtins = Node.Builtin.values();
+            Deque<Node> stack = new ArrayDeque<>();
+            for (int i = 0; i < instructionCount; i++, at += 3) {
+                int op = Byte.toUnsignedInt(image.get(ValueLayout.JAVA_BYTE, at));
+                int operand = Short.toUnsignedInt(image.get(U16, at + 1));
+                switch (op) {
+                    case CONSTANT -> stack.push(new Node.Constant(constants[operand]));
+                    case VARIABLE -> stack.push(new Node.Bound(variables[operand]));
+                    case CALL -> stack.push(call(functions[operand], stack));
+                    case BUILTIN -> stack.push(call(builtins[operand], stack));
+                    default -> throw new ExpressionCompilerException(String.format("Unknown instruction %d in expression image", op));
+                }
+            }
+            if (stack.size() != 1) throw new ExpressionCompilerException("Corrupt expression image");
+            return new TinyExprParser.Parsed(stack.pop(), List.copyOf(slots));
+        } catch (IndexOutOfBoundsException e) {
+            throw new ExpressionCompilerException("Corrupt expression image");
+        }
+    }
+
+    private static Node call(Node.Callee callee, Deque<Node> stack) throws ExpressionCompilerException {
+        if (stack.size() < callee.arity()) throw new ExpressionCompilerException("Corrupt expression image");
+        Node[] args = new Node[callee.arity()];
+        for (int i = args.length - 1; i >= 0; i--) args[i] = stack.pop();
+        return new Node.Call(callee, List.of(args));
+    }
+
+    private static String name(MemorySegment image, long at) {
+        int length = Short.toUnsignedInt(image.get(U16, at));
+        return new String(image.asSlice(at + 2, length).toArray(ValueLayout.JAVA_BYTE), StandardCharsets.UTF_8);
+    }
+
+    //postfix code and constants for te_assemble, operands index the te_variable array of the tree (functions by identity)
+    record Assembly(int[] code, double[] constants) {
+        static Assembly of(Node root, int[] variableEntries, Map<Function, Integer> functionEntries) {
+            Assembler assembler = new Assembler(variableEntries, functionEntries);
+            assembler.emit(root);
+            return new Assembly(Arrays.copyOf(assembler.code, assembler.size), Arrays.copyOf(assembler.constants, assembler.constantCount));
+        }
+    }
+
+    private static final class Assembler {
+        private final int[] variableEntries;
+        private final Map<Function, Integer> functionEntries;
+        private int[] code = new int[32];
+        private int size;
+        private double[] constants = new double[8];
+        private int constantCount;
+
+        private Assembler(int[] variableEntries, Map<Function, Integer> functionEntries) {
+            this.variableEntries = variableEntries;
+            this.functionEntries = functionEntries;
+        }
+
+        private void emit(Node node) {
+            switch (node) {
+                case Node.Constant c -> {
+                    if (constantCount == constants.length) constants = Arrays.copyOf(constants, constantCount * 2);
+                    constants[constantCount] = c.value();
+                    add(CONSTANT, constantCount++);
+                }
+                case Node.Bound b -> add(VARIABLE, variableEntries[b.slot()]);
+                case Node.Call call -> {
+                    for (Node arg : call.args()) emit(arg);
+                    if (call.callee() instanceof Node.Builtin builtin) add(BUILTIN, builtin.ordinal());
+                    else add(CALL, functionEntries.get(((Node.Custom) call.callee()).function()));
+                }
+            }
+        }
+
+        private void add(int op, int operand) {
+            if (size + 2 > code.length) code = Arrays.copyOf(code, code.length * 2);
+            code[size++] = op;
+            code[size++] = operand;
+        }
+    }
+}
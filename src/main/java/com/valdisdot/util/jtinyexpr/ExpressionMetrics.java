@@ -0,0 +1,242 @@
+package com.valdisdot.util.jtinyexpr;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+opt-in instrumentation of TinyExpressionCompiler: counters and latency histograms for compile, interpret, evaluate
+and Java upcalls of custom functions, gauges for live expressions and native bytes held by compiled trees
+one instance may be shared by several compilers and threads, a compiler without metrics skips all timing
+ */
+public class ExpressionMetrics {
+    private final Latency compile = new Latency();
+    private final Latency interpret = new Latency();
+    private final Latency evaluate = new Latency();
+    private final Latency upcall = new Latency();
+    private final LongAdder errors = new LongAdder();
+    private final AtomicLong liveExpressions = new AtomicLong();
+    private final AtomicLong nativeBytes = new AtomicLong();
+
+    public Latency compile() {
+        return compile;
+    }
+
+    public Latency interpret() {
+        return interpret;
+    }
+
+    //single evaluations, batches count every row and record the latency of the whole batch
+    public Latency evaluate() {
+        return evaluate;
+    }
+
+    //time spent in custom functions called back from native code, it is part of the evaluate latency
+    public Latency upcall() {
+        return upcall;
+    }
+
+    //failed compilations and interpretations
+    public long errors() {
+        return errors.sum();
+    }
+
+    //open expressions, shared ones included
+    public long liveExpressions() {
+        return liveExpressions.get();
+    }
+
+    //estimate of native memory held by live and cached trees
+    public long nativeBytes() {
+        return nativeBytes.get();
+    }
+
+    public void reset() {
+        compile.reset();
+        interpret.reset();
+        evaluate.reset();
+        upcall.reset();
+        errors.reset();
+    }
+
+    void error() {
+        errors.increment();
+    }
+
+    void opened() {
+        liveExpressions.incrementAndGet();
+    }
+
+    void closed() {
+        liveExpressions.decrementAndGet();
+    }
+
+    void allocated(long bytes) {
+        nativeBytes.addAndGet(bytes);
+    }
+
+    void freed(long bytes) {
+        nativeBytes.addAndGet(-bytes);
+    }
+
+    //same arity and purity, the call is recorded into the upcall latency
+    Function timed(Function function) {
+        Latency latency = upcall;
+        boolean pure = function.isPure();
+        return switch (function) {
+            case Function.NoArgs fn -> new Function.NoArgs() {
+                @Override public double apply() {
+                    long start = System.nanoTime();
+                    try {
+                        return fn.apply();
+                    } finally {
+                        latency.record(System.nanoTime() - start);
+                    }
+                }
+                @Override public boolean isPure() { return pure; }
+            };
+            case Function.OneArgs fn -> new Function.OneArgs() {
+                @Override public double apply(double a) {
+                    long start = System.nanoTime();
+                    try {
+                        return fn.apply(a);
+                    } finally {
+                        latency.record(System.nanoTime() - start);
+                    }
+                }
+                @Override public boolean isPure() { return pure; }
+            };
+            case Function.TwoArgs fn -> new Function.TwoArgs() {
+                @Override public double apply(double a, double b) {
+                    long start = System.nanoTime();
+                    try {
+                        return fn.apply(a, b);
+                    } finally {
+                        latency.record(System.nanoTime() - start);
+                    }
+                }
+                @Override public boolean isPure() { return pure; }
+            };
+            case Function.ThreeArgs fn -> new Function.ThreeArgs() {
+                @Override public double apply(double a, double b, double c) {
+                    long start = System.nanoTime();
+                    try {
+                        return fn.apply(a, b, c);
+                    } finally {
+                        latency.record(System.nanoTime() - start);
+                    }
+                }
+                @Override public boolean isPure() { return pure; }
+            };
+            case Function.FourArgs fn -> new Function.FourArgs() {
+                @Override public double apply(double a, double b, double c, double d) {
+                    long start = System.nanoTime();
+                    try {
+                        return fn.apply(a, b, c, d);
+                    } finally {
+                        latency.record(System.nanoTime() - start);
+                    }
+                }
+                @Override public boolean isPure() { return pure; }
+            };
+            case Function.FiveArgs fn -> new Function.FiveArgs() {
+                @Override public double apply(double a, double b, double c, double d, double e) {
+                    long start = System.nanoTime();
+                    try {
+                        return fn.apply(a, b, c, d, e);
+                    } finally {
+                        latency.record(System.nanoTime() - start);
+                    }
+                }
+                @Override public boolean isPure() { return pure; }
+            };
+            case Function.SixArgs fn -> new Function.SixArgs() {
+                @Override public double apply(double a, double b, double c, double d, double e, double f) {
+                    long start = System.nanoTime();
+                    try {
+                        return fn.apply(a, b, c, d, e, f);
+                    } finally {
+                        latency.record(System.nanoTime() - start);
+                    }
+                }
+                @Override public boolean isPure() { return pure; }
+            };
+            case Function.SevenArgs fn -> new Function.SevenArgs() {
+                @Override public double apply(double a, double b, double c, double d, double e, double f, double g) {
+                    long start = System.nanoTime();
+                    try {
+                        return fn.apply(a, b, c, d, e, f, g);
+                    } finally {
+                        latency.record(System.nanoTime() - start);
+                    }
+                }
+                @Override public boolean isPure() { return pure; }
+            };
+            default -> throw new IllegalArgumentException(String.format("Unknown function type: %s", function.getClass()));
+        };
+    }
+
+    //lock-free histogram with power-of-two nanosecond buckets, percentiles are bucket upper bounds
+    public static final class Latency {
+        private final LongAdder[] buckets = new LongAdder[64];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        private Latency() {
+            for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+        }
+
+        void record(long nanos) {
+            record(1, nanos);
+        }
+
+        void record(long operations, long nanos) {
+            nanos = Math.max(nanos, 0);
+            //bucket i holds [2^(i-1), 2^i - 1]
+            buckets[64 - Long.numberOfLeadingZeros(nanos)].increment();
+            count.add(operations);
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long totalNanos() {
+            return totalNanos.sum();
+        }
+
+        public long maxNanos() {
+            return maxNanos.get();
+        }
+
+        public double meanNanos() {
+            long n = count();
+            return n == 0 ? 0 : (double) totalNanos() / n;
+        }
+
+        //upper bound of the bucket holding the given fraction (0..1] of recorded samples
+        public long percentileNanos(double fraction) {
+            if (!(fraction > 0 && fraction <= 1)) throw new IllegalArgumentException("Fraction must be in (0, 1]");
+            long[] counts = new long[buckets.length];
+            long samples = 0;
+            for (int i = 0; i < counts.length; i++) samples += counts[i] = buckets[i].sum();
+            if (samples == 0) return 0;
+            long rank = (long) Math.ceil(samples * fraction);
+            for (int i = 0; i < counts.length; i++) {
+                rank -= counts[i];
+                if (rank <= 0) return i == 0 ? 0 : (1L << i) - 1;
+            }
+            return maxNanos();
+        }
+
+        private void reset() {
+            for (LongAdder bucket : buckets) bucket.reset();
+            count.reset();
+            totalNanos.reset();
+            maxNanos.reset();
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package com.valdisdot.util.jtinyexpr;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+keyed pool of compiled expressions, each instance with its own Variables, so a borrower sets values without affecting others
+    - define() compiles minPerKey instances right away (pre-warming), borrow() compiles more on demand up to maxPerKey,
+      then waits for a return
+    - a returned instance gets its variables reset to their initial values and becomes the first one borrowed next (warm caches)
+    - instances idle for longer than idleTimeout are closed, which frees their native memory, down to minPerKey per key;
+      eviction runs on borrow and return of the same key, evictIdle() sweeps every key
+waiting is done on j.u.c. primitives only, borrowers on virtual threads park without pinning their carrier
+native instances are not confined to a thread, a lease may be returned from another thread than the one that borrowed it
+functions of the definition are shared by every instance and called concurrently
+ */
+public final class ExpressionPool<K> implements AutoCloseable {
+    private final ExpressionCompiler compiler;
+    private final int minPerKey;
+    private final int maxPerKey;
+    private final long idleNanos;
+    private final Map<K, Definition> definitions = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    private final class Definition {
+        private final String formula;
+        private final List<Argument> template;
+        private final Semaphore permits = new Semaphore(maxPerKey, true);
+        //most recently returned first
+        private final ConcurrentLinkedDeque<Instance> idle = new ConcurrentLinkedDeque<>();
+        private final AtomicInteger size = new AtomicInteger();
+
+        private Definition(String formula, List<Argument> template) {
+            this.formula = formula;
+            this.template = template;
+        }
+
+        private Instance create() throws ExpressionCompilerException {
+            Map<String, Variable> variables = new LinkedHashMap<>();
+            List<Argument> args = new ArrayList<>(template.size());
+            for (Argument argument : template) {
+                if (argument.value() instanceof Variable variable) {
+                    Variable own = variables.computeIfAbsent(argument.name(), name -> new Variable(variable.value()));
+                    args.add(Argument.of(argument.name(), own));
+                } else args.add(argument);
+            }
+            Expression expression = compiler instanceof TinyExpressionCompiler tiny ? tiny.compileDetached(formula, args) : compiler.compile(formula, args);
+            size.incrementAndGet();
+            return new Instance(expression, variables);
+        }
+
+        //the oldest idle instances are at the tail
+        private void evict(long now) {
+            while (size.get() > minPerKey) {
+                Instance oldest = idle.pollLast();
+                if (oldest == null) return;
+                if (now - oldest.idleSince < idleNanos) {
+                    idle.offerLast(oldest);
+                    return;
+                }
+                destroy(oldest);
+            }
+        }
+
+        private void destroy(Instance instance) {
+            size.decrementAndGet();
+            instance.close();
+        }
+    }
+
+    private static final class Instance {
+        private final Expression expression;
+        private final Map<String, Variable> variables;
+        private long idleSince;
+
+        private Instance(Expression expression, Map<String, Variable> variables) {
+            this.expression = expression;
+            this.variables = variables;
+        }
+
+        private void close() {
+            try {
+                expression.close();
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    public final class Lease implements AutoCloseable {
+        private final Definition definition;
+        private final Instance instance;
+        private boolean returned;
+
+        private Lease(Definition definition, Instance instance) {
+            this.definition = definition;
+            this.instance = instance;
+        }
+
+        public Expression expression() {
+            checkLeased();
+            return instance.expression;
+        }
+
+        //the variable of this instance bound under the name
+        public Variable variable(String name) {
+            checkLeased();
+            Variable variable = instance.variables.get(name);
+            if (variable == null) throw new IllegalArgumentException(String.format("Unknown variable '%s'", name));
+            return variable;
+        }
+
+        public double evaluate() {
+            checkLeased();
+            return instance.expression.evaluate();
+        }
+
+        private void checkLeased() {
+            if (returned) throw new IllegalStateException("Expression is returned to the pool");
+        }
+
+        //returns the instance to the pool, a second call does nothing
+        @Override
+        public void close() {
+            if (returned) return;
+            returned = true;
+            release(definition, instance);
+        }
+    }
+
+    public ExpressionPool(ExpressionCompiler compiler, int minPerKey, int maxPerKey, Duration idleTimeout) {
+        if (minPerKey < 0) throw new IllegalArgumentException("Minimum pool size is negative");
+        if (maxPerKey <= 0 || maxPerKey < minPerKey) throw new IllegalArgumentException("Maximum pool size must be positive and not less than the minimum");
+        if (idleTimeout.isNegative()) throw new IllegalArgumentException("Idle timeout is negative");
+        this.compiler = compiler;
+        this.minPerKey = minPerKey;
+        this.maxPerKey = maxPerKey;
+        this.idleNanos = idleTimeout.toNanos();
+    }
+
+    public void define(K key, String formula, Argument... args) throws ExpressionCompilerException {
+        define(key, formula, Arrays.asList(args));
+    }
+
+    //variables of args are templates, every instance gets its own variables starting at their current values
+    public void define(K key, String formula, Collection<Argument> args) throws ExpressionCompilerException {
+        checkOpen();
+        Definition definition = new Definition(formula, List.copyOf(args));
+        //one instance is compiled even with minPerKey = 0, so a broken formula fails here and not on borrow
+        List<Instance> warm = new ArrayList<>();
+        try {
+            for (int i = 0; i < Math.max(minPerKey, 1); i++) warm.add(definition.create());
+        } catch (ExpressionCompilerException e) {
+            warm.forEach(Instance::close);
+            throw e;
+        }
+        if (definitions.putIfAbsent(key, definition) != null) {
+            warm.forEach(Instance::close);
+            throw new IllegalArgumentException(String.format("Key '%s' is already defined", key));
+        }
+        long now = System.nanoTime();
+        for (Instance instance : warm) {
+            instance.idleSince = now;
+            definition.idle.offerFirst(instance);
+        }
+    }
+
+    //waits while maxPerKey instances of the key are borrowed
+    public Lease borrow(K key) throws InterruptedException {
+        Definition definition = definition(key);
+        definition.permits.acquire();
+        return lease(definition);
+    }
+
+    //null if no instance became available within the timeout
+    public Lease borrow(K key, Duration timeout) throws InterruptedException {
+        Definition definition = definition(key);
+        if (!definition.permits.tryAcquire(timeout.toNanos(), TimeUnit.NANOSECONDS)) return null;
+        return lease(definition);
+    }
+
+    private Lease lease(Definition definition) {
+        try {
+            checkOpen();
+            Instance instance = definition.idle.pollFirst();
+            if (instance == null) instance = definition.create();
+            definition.evict(System.nanoTime());
+            return new Lease(definition, instance);
+        } catch (ExpressionCompilerException | RuntimeException e) {
+            definition.permits.release();
+            if (e instanceof RuntimeException runtime) throw runtime;
+            throw new IllegalStateException("Failed to compile a pooled expression", e);
+        }
+    }
+
+    private void release(Definition definition, Instance instance) {
+        try {
+            if (closed) {
+                definition.destroy(instance);
+                return;
+            }
+            instance.variables.values().forEach(Variable::reset);
+            long now = System.nanoTime();
+            instance.idleSince = now;
+            definition.idle.offerFirst(instance);
+            definition.evict(now);
+        } finally {
+            definition.permits.release();
+        }
+    }
+
+    //closes instances idle for longer than the timeout in every key, returns how many were closed
+    public int evictIdle() {
+        long now = System.nanoTime();
+        int evicted = 0;
+        for (Definition definition : definitions.values()) {
+            int before = definition.size.get();
+            definition.evict(now);
+            evicted += before - definition.size.get();
+        }
+        return evicted;
+    }
+
+    //instances of the key, borrowed and idle
+    public int size(K key) {
+        return definition(key).size.get();
+    }
+
+    public int idle(K key) {
+        return definition(key).idle.size();
+    }
+
+    private Definition definition(K key) {
+        Definition definition = definitions.get(key);
+        if (definition == null) throw new IllegalArgumentException(String.format("Unknown key '%s'", key));
+        return definition;
+    }
+
+    private void checkOpen() {
+        if (closed) throw new IllegalStateException("Pool is closed");
+    }
+
+    //idle instances are closed now, borrowed ones when they are returned
+    @Override
+    public void close() {
+        closed = true;
+        for (Definition definition : definitions.values()) {
+            Instance instance;
+            while ((instance = definition.idle.pollFirst()) != null) definition.destroy(instance);
+        }
+    }
+}
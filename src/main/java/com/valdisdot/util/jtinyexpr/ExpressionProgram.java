@@ -0,0 +1,24 @@
+package com.valdisdot.util.jtinyexpr;
+
+import java.util.List;
+
+/*
+formula sheet compiled as one unit: outputs are evaluated in order by a single call,
+bound variables are shared by all formulas and a formula may read earlier outputs by name
+ */
+public interface ExpressionProgram extends AutoCloseable {
+    //output names in evaluation order
+    List<String> outputs();
+
+    //out[i] receives outputs().get(i), out must hold at least outputs().size() values
+    void evaluateInto(double[] out);
+
+    default double[] evaluate() {
+        double[] out = new double[outputs().size()];
+        evaluateInto(out);
+        return out;
+    }
+
+    @Override
+    void close();
+}
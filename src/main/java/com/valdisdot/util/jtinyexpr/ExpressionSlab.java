@@ -0,0 +1,132 @@
+package com.valdisdot.util.jtinyexpr;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+bump allocator for trees of TinyExpressionCompiler.withSlab(): nodes of a tree are packed into one contiguous block
+in pre-order, variable values follow, and argument names are interned once per slab instead of once per expression
+    - one malloc per node and the per-expression arena are gone, many small expressions share a few large chunks
+    - compile-time metadata (te_variable array, text) lives in a temporary arena closed right after compilation
+memory is only reclaimed by close(): closing an expression marks its bytes as released, they are not reused,
+so a slab suits expressions of a similar lifetime (a rule set, a catalog) rather than a stream of short-lived ones
+expressions of the slab must not be evaluated after close(), close() evicts the slab's trees from every cache they were
+offered to and later compiles on the slab fail; the slab is shared and may be used from any thread, but not closed
+while it is compiling
+ */
+public final class ExpressionSlab implements AutoCloseable {
+    public static final long DEFAULT_CHUNK = 1 << 20;
+
+    private final Arena arena = Arena.ofShared();
+    private final long chunkSize;
+    private final Map<String, MemorySegment> names = new HashMap<>();
+    //caches holding trees of this slab, emptied by close()
+    private final Set<CompiledExpressionCache> caches = Collections.newSetFromMap(new IdentityHashMap<>());
+    private MemorySegment chunk;
+    private long offset;
+    private long reserved;
+    private long used;
+    private long released;
+    private long nameBytes;
+    private boolean closed;
+
+    public ExpressionSlab() {
+        this(DEFAULT_CHUNK);
+    }
+
+    public ExpressionSlab(long chunkSize) {
+        if (chunkSize < 64) throw new IllegalArgumentException("Chunk size must be at least 64 bytes");
+        this.chunkSize = chunkSize;
+    }
+
+    //blocks larger than a quarter chunk get their own allocation, so a big tree does not waste the rest of a chunk
+    synchronized MemorySegment allocate(long bytes, long alignment) {
+        checkOpen();
+        if (bytes > chunkSize / 4) {
+            reserved += bytes;
+            used += bytes;
+            return arena.allocate(bytes, alignment);
+        }
+        long start = (offset + alignment - 1) & -alignment;
+        if (chunk == null || start + bytes > chunkSize) {
+            chunk = arena.allocate(chunkSize, 16);
+            reserved += chunkSize;
+            start = 0;
+        }
+        offset = start + bytes;
+        used += bytes;
+        return chunk.asSlice(start, bytes);
+    }
+
+    //NUL-terminated UTF-8 name, the same segment for every expression of the slab
+    synchronized MemorySegment name(String name) {
+        MemorySegment segment = names.get(name);
+        if (segment == null) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            segment = allocate(bytes.length + 1L, 1);
+            MemorySegment.copy(bytes, 0, segment, ValueLayout.JAVA_BYTE, 0, bytes.length);
+            segment.set(ValueLayout.JAVA_BYTE, bytes.length, (byte) 0);
+            names.put(name, segment);
+            nameBytes += segment.byteSize();
+        }
+        return segment;
+    }
+
+    //called before a cache lookup, so a closed slab never hands out a cached tree
+    synchronized void attach(CompiledExpressionCache cache) {
+        checkOpen();
+        caches.add(cache);
+    }
+
+    synchronized void checkOpen() {
+        if (closed) throw new IllegalStateException("Slab is closed");
+    }
+
+    synchronized void release(long bytes) {
+        released += bytes;
+    }
+
+    //bytes taken from the system, chunks included in full
+    public synchronized long reservedBytes() {
+        return reserved;
+    }
+
+    //bytes handed out to expressions and names, released ones included
+    public synchronized long usedBytes() {
+        return used;
+    }
+
+    //bytes of closed expressions, dead until the slab is closed
+    public synchronized long releasedBytes() {
+        return released;
+    }
+
+    public synchronized int names() {
+        return names.size();
+    }
+
+    public synchronized long nameBytes() {
+        return nameBytes;
+    }
+
+    @Override
+    public void close() {
+        List<CompiledExpressionCache> attached;
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            attached = List.copyOf(caches);
+            caches.clear();
+        }
+        for (CompiledExpressionCache cache : attached) cache.evict(this);
+        arena.close();
+    }
+}
@@ -0,0 +1,237 @@
+package com.valdisdot.util.jtinyexpr;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.DoubleStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/*
+adapters from row sources to expression results, rows are collected into column chunks and go through Expression.evaluateBatch,
+so at most one chunk of rows and results is held at a time, whatever the size of the input
+a row holds one value per variable, in the order the variables were passed to the compiler
+the expression is used by one consumer at a time, the returned streams are sequential
+ */
+public final class ExpressionStreams {
+    public static final int DEFAULT_CHUNK = 1024;
+
+    private ExpressionStreams() {
+    }
+
+    public static DoubleStream evaluate(Expression expression, Stream<double[]> rows) {
+        return evaluate(expression, rows, DEFAULT_CHUNK);
+    }
+
+    public static DoubleStream evaluate(Expression expression, Stream<double[]> rows, int chunkSize) {
+        return stream(evaluate(expression, rows.iterator(), chunkSize)).onClose(rows::close);
+    }
+
+    //single-variable expressions
+    public static DoubleStream evaluate(Expression expression, DoubleStream values) {
+        return evaluate(expression, values, DEFAULT_CHUNK);
+    }
+
+    public static DoubleStream evaluate(Expression expression, DoubleStream values, int chunkSize) {
+        return stream(new Chunks(expression, values.iterator(), chunkSize)).onClose(values::close);
+    }
+
+    public static PrimitiveIterator.OfDouble evaluate(Expression expression, Iterator<double[]> rows, int chunkSize) {
+        return new Chunks(expression, rows, chunkSize);
+    }
+
+    /*
+    results are published as one double[] per chunk, a request for n items asks upstream for n * chunkSize rows,
+    the last chunk may be shorter
+    signals are serial but may come from different threads, so the expression must not be confined to its creating thread
+    (the native compiler confines expressions unless they come from a cache), only one subscriber at a time is served
+     */
+    public static Flow.Publisher<double[]> evaluate(Expression expression, Flow.Publisher<double[]> rows, int chunkSize) {
+        checkChunkSize(chunkSize);
+        AtomicBoolean subscribed = new AtomicBoolean();
+        return subscriber -> {
+            if (!subscribed.compareAndSet(false, true)) {
+                subscriber.onSubscribe(new Flow.Subscription() {
+                    @Override
+                    public void request(long n) {
+                    }
+
+                    @Override
+                    public void cancel() {
+                    }
+                });
+                subscriber.onError(new IllegalStateException("Expression is already evaluated for another subscriber"));
+                return;
+            }
+            rows.subscribe(new ChunkSubscriber(expression, chunkSize, subscriber, () -> subscribed.set(false)));
+        };
+    }
+
+    private static DoubleStream stream(PrimitiveIterator.OfDouble results) {
+        return StreamSupport.doubleStream(Spliterators.spliteratorUnknownSize(results, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    private static void checkChunkSize(int chunkSize) {
+        if (chunkSize <= 0) throw new IllegalArgumentException("Chunk size must be positive");
+    }
+
+    //column-major buffer of one chunk, the width is taken from the first row
+    private static final class Chunk {
+        private final Expression expression;
+        private final int size;
+        private double[][] columns;
+        private double[] out;
+        private int rows;
+
+        private Chunk(Expression expression, int size) {
+            checkChunkSize(size);
+            this.expression = expression;
+            this.size = size;
+        }
+
+        void add(double[] row) {
+            if (columns == null) {
+                columns = new double[row.length][size];
+                out = new double[size];
+            }
+            if (row.length != columns.length) throw new IllegalArgumentException(String.format("Expected rows of %d values, got %d", columns.length, row.length));
+            for (int i = 0; i < row.length; i++) columns[i][rows] = row[i];
+            rows++;
+        }
+
+        void add(double value) {
+            if (columns == null) {
+                columns = new double[1][size];
+                out = new double[size];
+            }
+            columns[0][rows++] = value;
+        }
+
+        boolean full() {
+            return rows == size;
+        }
+
+        boolean empty() {
+            return rows == 0;
+        }
+
+        //results of the buffered rows, the returned array is reused by the next full chunk
+        double[] evaluate() {
+            double[] results = rows == size ? out : new double[rows];
+            expression.evaluateBatch(columns, results);
+            rows = 0;
+            return results;
+        }
+    }
+
+    private static final class Chunks implements PrimitiveIterator.OfDouble {
+        private final Iterator<?> source;
+        private final Chunk chunk;
+        private double[] results = new double[0];
+        private int next;
+
+        private Chunks(Expression expression, Iterator<?> source, int chunkSize) {
+            this.source = source;
+            this.chunk = new Chunk(expression, chunkSize);
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next < results.length) return true;
+            while (!chunk.full() && source.hasNext()) {
+                if (source instanceof PrimitiveIterator.OfDouble values) chunk.add(values.nextDouble());
+                else chunk.add((double[]) source.next());
+            }
+            if (chunk.empty()) return false;
+            results = chunk.evaluate();
+            next = 0;
+            return true;
+        }
+
+        @Override
+        public double nextDouble() {
+            if (!hasNext()) throw new NoSuchElementException();
+            return results[next++];
+        }
+    }
+
+    private static final class ChunkSubscriber implements Flow.Subscriber<double[]> {
+        private final Chunk chunk;
+        private final int chunkSize;
+        private final Flow.Subscriber<? super double[]> downstream;
+        private final Runnable done;
+        private Flow.Subscription upstream;
+        private boolean finished;
+
+        private ChunkSubscriber(Expression expression, int chunkSize, Flow.Subscriber<? super double[]> downstream, Runnable done) {
+            this.chunk = new Chunk(expression, chunkSize);
+            this.chunkSize = chunkSize;
+            this.downstream = downstream;
+            this.done = done;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.upstream = subscription;
+            downstream.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                    if (n <= 0) {
+                        subscription.request(n);
+                        return;
+                    }
+                    subscription.request(n > Long.MAX_VALUE / chunkSize ? Long.MAX_VALUE : n * chunkSize);
+                }
+
+                @Override
+                public void cancel() {
+                    subscription.cancel();
+                    finish();
+                }
+            });
+        }
+
+        @Override
+        public void onNext(double[] row) {
+            if (finished) return;
+            try {
+                chunk.add(row);
+                //a copy, the chunk buffer is reused while the subscriber may still hold the array
+                if (chunk.full()) downstream.onNext(chunk.evaluate().clone());
+            } catch (RuntimeException e) {
+                upstream.cancel();
+                onError(e);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            if (finished) return;
+            finish();
+            downstream.onError(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            if (finished) return;
+            try {
+                if (!chunk.empty()) downstream.onNext(chunk.evaluate());
+            } catch (RuntimeException e) {
+                onError(e);
+                return;
+            }
+            finish();
+            downstream.onComplete();
+        }
+
+        private void finish() {
+            if (finished) return;
+            finished = true;
+            done.run();
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package com.valdisdot.util.jtinyexpr;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+DifferentiableExpression over the optimized tree: one register per node of the DAG in post-order, every register
+holds a value and a tangent row (its derivatives by the chosen variables)
+a call combines the tangent rows of its operands weighted by its local partial derivatives, a zero tangent skips its term,
+so pow(x, 2) of negative x does not turn into NaN through the ln(x) of the exponent term
+registers that do not depend on a chosen variable keep a zero row and are never combined
+variables are bound to heap slots like BytecodeExpressionCompiler does, not thread-safe
+ */
+final class ForwardGradient implements DifferentiableExpression {
+    private static final int CONSTANT = 0, VARIABLE = 1, CALL = 2;
+    //cube root of the double epsilon, the step that minimizes the error of a central difference
+    private static final double STEP = 6.055454452393343e-6;
+
+    private final List<String> variables;
+    private final int width;
+    private final double[] slots;
+    private final List<Variable> bound;
+    private final int[] kinds;
+    //slot of a VARIABLE, column of a chosen variable in the tangent row or -1
+    private final int[] slotOf;
+    private final int[] columnOf;
+    private final Node.Callee[] callees;
+    private final int[][] operands;
+    private final boolean[] live;
+    private final double[][] args;
+    private final double[][] partials;
+    private final double[] values;
+    private final double[] tangents;
+    private final int result;
+    private boolean closed;
+
+    private ForwardGradient(List<String> variables, List<Argument> slotArguments, int[] columns, List<Node> order, Map<Node, Integer> registers) {
+        this.variables = variables;
+        this.width = variables.size();
+        this.slots = new double[slotArguments.size()];
+        int count = order.size();
+        this.kinds = new int[count];
+        this.slotOf = new int[count];
+        this.columnOf = new int[count];
+        this.callees = new Node.Callee[count];
+        this.operands = new int[count][];
+        this.live = new boolean[count];
+        this.args = new double[count][];
+        this.partials = new double[count][];
+        this.values = new double[count];
+        this.tangents = new double[count * width];
+        for (int r = 0; r < count; r++) {
+            switch (order.get(r)) {
+                case Node.Constant c -> {
+                    kinds[r] = CONSTANT;
+                    values[r] = c.value();
+                }
+                case Node.Bound b -> {
+                    kinds[r] = VARIABLE;
+                    slotOf[r] = b.slot();
+                    columnOf[r] = columns[b.slot()];
+                    live[r] = columnOf[r] >= 0;
+                    //the seed: d variable / d itself = 1
+                    if (live[r]) tangents[r * width + columnOf[r]] = 1.0;
+                }
+                case Node.Call call -> {
+                    kinds[r] = CALL;
+                    callees[r] = call.callee();
+                    operands[r] = new int[call.args().size()];
+                    for (int k = 0; k < operands[r].length; k++) {
+                        operands[r][k] = registers.get(call.args().get(k));
+                        live[r] |= live[operands[r][k]];
+                    }
+                    args[r] = new double[operands[r].length];
+                    partials[r] = new double[operands[r].length];
+                }
+            }
+        }
+        this.result = count - 1;
+        this.bound = new ArrayList<>(slotArguments.size());
+        for (int i = 0; i < slotArguments.size(); i++) {
+            Variable v = (Variable) slotArguments.get(i).value();
+            v.bind(slot(i));
+            bound.add(v);
+        }
+    }
+
+    static ForwardGradient compile(String expression, List<String> variables, Collection<Argument> args) throws ExpressionCompilerException {
+        TinyExprParser.Parsed parsed = TinyExprParser.parse(expression, args);
+        List<Argument> slotArguments = parsed.variables();
+        int[] columns = new int[slotArguments.size()];
+        Arrays.fill(columns, -1);
+        for (int column = 0; column < variables.size(); column++) {
+            String name = variables.get(column);
+            int slot = -1;
+            for (int i = 0; i < slotArguments.size() && slot < 0; i++) {
+                if (slotArguments.get(i).name().equals(name)) slot = i;
+            }
+            if (slot < 0) throw new ExpressionCompilerException(String.format("Variable '%s' is not provided", name));
+            if (columns[slot] >= 0) throw new ExpressionCompilerException(String.format("Variable '%s' is listed twice", name));
+            columns[slot] = column;
+        }
+        Node root = Optimizer.optimize(parsed.root()).root();
+        List<Node> order = new ArrayList<>();
+        Map<Node, Integer> registers = new IdentityHashMap<>();
+        lower(root, registers, order);
+        return new ForwardGradient(List.copyOf(variables), slotArguments, columns, order, registers);
+    }
+
+    //post-order, a shared node of the optimized DAG gets one register
+    private static void lower(Node node, Map<Node, Integer> registers, List<Node> order) {
+        if (registers.containsKey(node)) return;
+        if (node instanceof Node.Call call) {
+            for (Node arg : call.args()) lower(arg, registers, order);
+        }
+        registers.put(node, order.size());
+        order.add(node);
+    }
+
+    private MemorySegment slot(int index) {
+        return MemorySegment.ofArray(slots).asSlice(index * ValueLayout.JAVA_DOUBLE.byteSize(), ValueLayout.JAVA_DOUBLE);
+    }
+
+    @Override
+    public List<String> variables() {
+        return variables;
+    }
+
+    @Override
+    public double evaluate() {
+        checkOpen();
+        try {
+            run(false);
+        } catch (RuntimeException e) {
+            throw new RuntimeException("Evaluation failed", e);
+        }
+        return values[result];
+    }
+
+    @Override
+    public double evaluate(double[] gradient) {
+        checkOpen();
+        if (gradient.length < width) throw new IllegalArgumentException(String.format("Gradient holds %d values, expected %d", gradient.length, width));
+        try {
+            run(true);
+        } catch (RuntimeException e) {
+            throw new RuntimeException("Evaluation failed", e);
+        }
+        System.arraycopy(tangents, result * width, gradient, 0, width);
+        return values[result];
+    }
+
+    private void run(boolean differentiate) {
+        for (int r = 0; r < kinds.length; r++) {
+            if (kinds[r] == VARIABLE) values[r] = slots[slotOf[r]];
+            else if (kinds[r] == CALL) {
+                int[] from = operands[r];
+                double[] a = args[r];
+                for (int k = 0; k < from.length; k++) a[k] = values[from[k]];
+                values[r] = callees[r].apply(a);
+                if (differentiate && live[r]) differentiate(r);
+            }
+        }
+    }
+
+    private void differentiate(int r) {
+        int[] from = operands[r];
+        double[] c = partials[r];
+        if (callees[r] instanceof Node.Builtin builtin) partials(builtin, args[r], values[r], c);
+        else {
+            Node.Custom custom = (Node.Custom) callees[r];
+            for (int k = 0; k < from.length; k++) c[k] = live[from[k]] ? partial(custom, args[r], k) : 0.0;
+        }
+        int row = r * width;
+        Arrays.fill(tangents, row, row + width, 0.0);
+        for (int k = 0; k < from.length; k++) {
+            if (!live[from[k]]) continue;
+            int operand = from[k] * width;
+            for (int j = 0; j < width; j++) {
+                double t = tangents[operand + j];
+                if (t != 0.0) tangents[row + j] += c[k] * t;
+            }
+        }
+    }
+
+    //local partial derivatives of a built-in by each argument, v is the value already computed
+    private static void partials(Node.Builtin builtin, double[] a, double v, double[] c) {
+        switch (builtin) {
+            case ADD -> {
+                c[0] = 1.0;
+                c[1] = 1.0;
+            }
+            case SUB -> {
+                c[0] = 1.0;
+                c[1] = -1.0;
+            }
+            case MUL -> {
+                c[0] = a[1];
+                c[1] = a[0];
+            }
+            case DIV -> {
+                c[0] = 1.0 / a[1];
+                c[1] = -v / a[1];
+            }
+            case POW, POWF -> {
+                c[0] = a[1] * Math.pow(a[0], a[1] - 1.0);
+                c[1] = v * Math.log(a[0]);
+            }
+            case FMOD -> {
+                c[0] = 1.0;
+                c[1] = -((a[0] - v) / a[1]);
+            }
+            case NEGATE -> c[0] = -1.0;
+            case COMMA -> {
+                c[0] = 0.0;
+                c[1] = 1.0;
+            }
+            case ABS -> c[0] = Math.signum(a[0]);
+            case ACOS -> c[0] = -1.0 / Math.sqrt(1.0 - a[0] * a[0]);
+            case ASIN -> c[0] = 1.0 / Math.sqrt(1.0 - a[0] * a[0]);
+            case ATAN -> c[0] = 1.0 / (1.0 + a[0] * a[0]);
+            case ATAN2 -> {
+                double r2 = a[0] * a[0] + a[1] * a[1];
+                c[0] = a[1] / r2;
+                c[1] = -a[0] / r2;
+            }
+            case CEIL, FLOOR, FAC -> c[0] = 0.0;
+            case NCR, NPR -> {
+                c[0] = 0.0;
+                c[1] = 0.0;
+            }
+            case COS -> c[0] = -Math.sin(a[0]);
+            case COSH -> c[0] = Math.sinh(a[0]);
+            case EXP -> c[0] = v;
+            case LN -> c[0] = 1.0 / a[0];
+            case LOG, LOG10 -> c[0] = 1.0 / (a[0] * Math.log(10.0));
+            case SIN -> c[0] = Math.cos(a[0]);
+            case SINH -> c[0] = Math.cosh(a[0]);
+            case SQRT -> c[0] = 0.5 / v;
+            case TAN -> c[0] = 1.0 + v * v;
+            case TANH -> c[0] = 1.0 - v * v;
+            case E, PI -> {
+            }
+        }
+    }
+
+    private static double partial(Node.Custom custom, double[] a, int k) {
+        if (custom.function() instanceof Function.Partials partials) return partials.partial(k, a);
+        double x = a[k];
+        double h = STEP * Math.max(1.0, Math.abs(x));
+        try {
+            a[k] = x + h;
+            double up = custom.apply(a);
+            a[k] = x - h;
+            double down = custom.apply(a);
+            return (up - down) / (2.0 * h);
+        } finally {
+            a[k] = x;
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) throw new IllegalStateException("Expression is closed");
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        for (int i = 0; i < bound.size(); i++) bound.get(i).unbind(slot(i));
+    }
+}
@@ -5,6 +5,22 @@ public interface Function extends ArgumentValue {
         return false;
     }
 
+    /*
+    optional for custom functions of a DifferentiableExpression, the partial derivative by the argument at index
+    args must not be modified, without it the derivative is estimated by central differences
+     */
+    interface Partials {
+        double partial(int argument, double... args);
+
+        static OneArgs of(OneArgs function, OneArgs derivative) {
+            return new Functions.Differentiable1(function, derivative);
+        }
+
+        static TwoArgs of(TwoArgs function, TwoArgs byFirst, TwoArgs bySecond) {
+            return new Functions.Differentiable2(function, byFirst, bySecond);
+        }
+    }
+
     interface NoArgs extends Function {
         double apply();
     }
@@ -0,0 +1,382 @@
+package com.valdisdot.util.jtinyexpr;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+bounded memo table in front of one pure Function, function() is passed as the argument instead of the function itself
+keys are the raw bits of the double arguments (0.0 and -0.0 differ, every NaN is the same key), nothing is boxed,
+an entry is allocated on a miss only, a function without arguments keeps its one entry in a field
+    - DIRECT: one entry per bucket, a new key overwrites the old one; cheapest, good for a few hot keys
+    - CLOCK: 4-way sets, a hit marks its entry, a miss replaces the first unmarked entry of the set and clears
+      the marks it passes (second chance, close to LRU within the set); empty ways are filled first
+entries are immutable and published through an AtomicReferenceArray, lookups take no lock and any thread may call in;
+two threads missing the same key both call the function and one result wins, which is harmless for a pure function
+ */
+public final class FunctionMemo {
+    public enum Eviction {
+        DIRECT, CLOCK
+    }
+
+    public record Stats(long hits, long misses, long evictions) {
+        public double hitRate() {
+            long calls = hits + misses;
+            return calls == 0 ? 0.0 : (double) hits / calls;
+        }
+    }
+
+    private static final int CLOCK_WAYS = 4;
+
+    private static final class Entry {
+        private final double[] args;
+        private final double value;
+        private volatile boolean referenced;
+
+        private Entry(double[] args, double value) {
+            this.args = args;
+            this.value = value;
+        }
+
+        private boolean matches(double a) {
+            return same(args[0], a);
+        }
+
+        private boolean matches(double a, double b) {
+            return same(args[0], a) && same(args[1], b);
+        }
+
+        private boolean matches(double a, double b, double c) {
+            return matches(a, b) && same(args[2], c);
+        }
+
+        private boolean matches(double a, double b, double c, double d) {
+            return matches(a, b, c) && same(args[3], d);
+        }
+
+        private boolean matches(double a, double b, double c, double d, double e) {
+            return matches(a, b, c, d) && same(args[4], e);
+        }
+
+        private boolean matches(double a, double b, double c, double d, double e, double f) {
+            return matches(a, b, c, d, e) && same(args[5], f);
+        }
+
+        private boolean matches(double a, double b, double c, double d, double e, double f, double g) {
+            return matches(a, b, c, d, e, f) && same(args[6], g);
+        }
+    }
+
+    private final Function function;
+    private final Eviction eviction;
+    private final int ways;
+    private final int setMask;
+    private final AtomicReferenceArray<Entry> table;
+    private final Function memoized;
+    //the only entry of a function without arguments
+    private volatile Entry constant;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private FunctionMemo(Function function, int arity, int capacity, Eviction eviction) {
+        this.function = function;
+        this.eviction = eviction;
+        this.ways = eviction == Eviction.CLOCK ? CLOCK_WAYS : 1;
+        int sets = Integer.highestOneBit(Math.max(1, (capacity + ways - 1) / ways) * 2 - 1);
+        this.setMask = sets - 1;
+        this.table = new AtomicReferenceArray<>(sets * ways);
+        this.memoized = wrap(arity);
+    }
+
+    //capacity is rounded up to a power of two
+    public static FunctionMemo of(Function function, int capacity, Eviction eviction) {
+        if (!function.isPure()) throw new IllegalArgumentException("Only pure functions can be memoized");
+        if (capacity <= 0) throw new IllegalArgumentException("Memo capacity must be positive");
+        try {
+            return new FunctionMemo(function, Functions.arity(function), capacity, eviction);
+        } catch (ExpressionCompilerException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+
+    //the memoized function, of the same arity and pure, so constant calls are still folded by the compilers
+    public Function function() {
+        return memoized;
+    }
+
+    public int capacity() {
+        return table.length();
+    }
+
+    public Eviction eviction() {
+        return eviction;
+    }
+
+    public Stats stats() {
+        return new Stats(hits.sum(), misses.sum(), evictions.sum());
+    }
+
+    //drops every entry, the stats are kept
+    public void clear() {
+        constant = null;
+        for (int i = 0; i < table.length(); i++) table.set(i, null);
+    }
+
+    private Function wrap(int arity) {
+        return switch (arity) {
+            case 0 -> new Function.NoArgs() {
+                @Override
+                public double apply() {
+                    return lookup();
+                }
+
+                @Override
+                public boolean isPure() {
+                    return true;
+                }
+            };
+            case 1 -> new Function.OneArgs() {
+                @Override
+                public double apply(double value) {
+                    return lookup(value);
+                }
+
+                @Override
+                public boolean isPure() {
+                    return true;
+                }
+            };
+            case 2 -> new Function.TwoArgs() {
+                @Override
+                public double apply(double value1, double value2) {
+                    return lookup(value1, value2);
+                }
+
+                @Override
+                public boolean isPure() {
+                    return true;
+                }
+            };
+            case 3 -> new Function.ThreeArgs() {
+                @Override
+                public double apply(double value1, double value2, double value3) {
+                    return lookup(value1, value2, value3);
+                }
+
+                @Override
+                public boolean isPure() {
+                    return true;
+                }
+            };
+            case 4 -> new Function.FourArgs() {
+                @Override
+                public double apply(double value1, double value2, double value3, double value4) {
+                    return lookup(value1, value2, value3, value4);
+                }
+
+                @Override
+                public boolean isPure() {
+                    return true;
+                }
+            };
+            case 5 -> new Function.FiveArgs() {
+                @Override
+                public double apply(double value1, double value2, double value3, double value4, double value5) {
+                    return lookup(value1, value2, value3, value4, value5);
+                }
+
+                @Override
+                public boolean isPure() {
+                    return true;
+                }
+            };
+            case 6 -> new Function.SixArgs() {
+                @Override
+                public double apply(double value1, double value2, double value3, double value4, double value5, double value6) {
+                    return lookup(value1, value2, value3, value4, value5, value6);
+                }
+
+                @Override
+                public boolean isPure() {
+                    return true;
+                }
+            };
+            case 7 -> new Function.SevenArgs() {
+                @Override
+                public double apply(double value1, double value2, double value3, double value4, double value5, double value6, double value7) {
+                    return lookup(value1, value2, value3, value4, value5, value6, value7);
+                }
+
+                @Override
+                public boolean isPure() {
+                    return true;
+                }
+            };
+            default -> throw new IllegalArgumentException("Unsupported arity: " + arity);
+        };
+    }
+
+    private double lookup() {
+        Entry entry = constant;
+        if (entry != null) return hit(entry);
+        misses.increment();
+        double value = ((Function.NoArgs) function).apply();
+        constant = new Entry(new double[0], value);
+        return value;
+    }
+
+    private double lookup(double a) {
+        long hash = mix(Double.doubleToLongBits(a));
+        int base = base(hash);
+        for (int w = 0; w < ways; w++) {
+            Entry entry = table.get(base + w);
+            if (entry != null && entry.matches(a)) return hit(entry);
+        }
+        misses.increment();
+        double value = ((Function.OneArgs) function).apply(a);
+        store(base, hash, new Entry(new double[]{a}, value));
+        return value;
+    }
+
+    private double lookup(double a, double b) {
+        long hash = mix(Double.doubleToLongBits(a));
+        hash = next(hash, b);
+        int base = base(hash);
+        for (int w = 0; w < ways; w++) {
+            Entry entry = table.get(base + w);
+            if (entry != null && entry.matches(a, b)) return hit(entry);
+        }
+        misses.increment();
+        double value = ((Function.TwoArgs) function).apply(a, b);
+        store(base, hash, new Entry(new double[]{a, b}, value));
+        return value;
+    }
+
+    private double lookup(double a, double b, double c) {
+        long hash = mix(Double.doubleToLongBits(a));
+        hash = next(hash, b);
+        hash = next(hash, c);
+        int base = base(hash);
+        for (int w = 0; w < ways; w++) {
+            Entry entry = table.get(base + w);
+            if (entry != null && entry.matches(a, b, c)) return hit(entry);
+        }
+        misses.increment();
+        double value = ((Function.ThreeArgs) function).apply(a, b, c);
+        store(base, hash, new Entry(new double[]{a, b, c}, value));
+        return value;
+    }
+
+    private double lookup(double a, double b, double c, double d) {
+        long hash = mix(Double.doubleToLongBits(a));
+        hash = next(hash, b);
+        hash = next(hash, c);
+        hash = next(hash, d);
+        int base = base(hash);
+        for (int w = 0; w < ways; w++) {
+            Entry entry = table.get(base + w);
+            if (entry != null && entry.matches(a, b, c, d)) return hit(entry);
+        }
+        misses.increment();
+        double value = ((Function.FourArgs) function).apply(a, b, c, d);
+        store(base, hash, new Entry(new double[]{a, b, c, d}, value));
+        return value;
+    }
+
+    private double lookup(double a, double b, double c, double d, double e) {
+        long hash = mix(Double.doubleToLongBits(a));
+        hash = next(hash, b);
+        hash = next(hash, c);
+        hash = next(hash, d);
+        hash = next(hash, e);
+        int base = base(hash);
+        for (int w = 0; w < ways; w++) {
+            Entry entry = table.get(base + w);
+            if (entry != null && entry.matches(a, b, c, d, e)) return hit(entry);
+        }
+        misses.increment();
+        double value = ((Function.FiveArgs) function).apply(a, b, c, d, e);
+        store(base, hash, new Entry(new double[]{a, b, c, d, e}, value));
+        return value;
+    }
+
+    private double lookup(double a, double b, double c, double d, double e, double f) {
+        long hash = mix(Double.doubleToLongBits(a));
+        hash = next(hash, b);
+        hash = next(hash, c);
+        hash = next(hash, d);
+        hash = next(hash, e);
+        hash = next(hash, f);
+        int base = base(hash);
+        for (int w = 0; w < ways; w++) {
+            Entry entry = table.get(base + w);
+            if (entry != null && entry.matches(a, b, c, d, e, f)) return hit(entry);
+        }
+        misses.increment();
+        double value = ((Function.SixArgs) function).apply(a, b, c, d, e, f);
+        store(base, hash, new Entry(new double[]{a, b, c, d, e, f}, value));
+        return value;
+    }
+
+    private double lookup(double a, double b, double c, double d, double e, double f, double g) {
+        long hash = mix(Double.doubleToLongBits(a));
+        hash = next(hash, b);
+        hash = next(hash, c);
+        hash = next(hash, d);
+        hash = next(hash, e);
+        hash = next(hash, f);
+        hash = next(hash, g);
+        int base = base(hash);
+        for (int w = 0; w < ways; w++) {
+            Entry entry = table.get(base + w);
+            if (entry != null && entry.matches(a, b, c, d, e, f, g)) return hit(entry);
+        }
+        misses.increment();
+        double value = ((Function.SevenArgs) function).apply(a, b, c, d, e, f, g);
+        store(base, hash, new Entry(new double[]{a, b, c, d, e, f, g}, value));
+        return value;
+    }
+
+    private double hit(Entry entry) {
+        hits.increment();
+        //read before write, a hot entry does not keep its cache line dirty
+        if (ways > 1 && !entry.referenced) entry.referenced = true;
+        return entry.value;
+    }
+
+    private void store(int base, long hash, Entry entry) {
+        int victim = -1;
+        for (int w = 0; w < ways && victim < 0; w++) {
+            if (table.get(base + w) == null) victim = w;
+        }
+        for (int w = 0; w < ways && victim < 0; w++) {
+            Entry current = table.get(base + w);
+            if (current == null || !current.referenced) victim = w;
+            else current.referenced = false;
+        }
+        //every way was marked: the marks are cleared now, replace one picked by the hash
+        if (victim < 0) victim = (int) (hash >>> 60) & (ways - 1);
+        if (table.getAndSet(base + victim, entry) != null) evictions.increment();
+    }
+
+    private int base(long hash) {
+        return ((int) hash & setMask) * ways;
+    }
+
+    private static long next(long hash, double value) {
+        return mix(hash ^ Double.doubleToLongBits(value));
+    }
+
+    private static boolean same(double x, double y) {
+        return Double.doubleToLongBits(x) == Double.doubleToLongBits(y);
+    }
+
+    //murmur3 finalizer, the low bits of small integral doubles are all zero and must not decide the set alone
+    private static long mix(long bits) {
+        bits ^= bits >>> 33;
+        bits *= 0xFF51AFD7ED558CCDL;
+        bits ^= bits >>> 33;
+        bits *= 0xC4CEB9FE1A85EC53L;
+        return bits ^ bits >>> 33;
+    }
+}
@@ -0,0 +1,82 @@
+package com.valdisdot.util.jtinyexpr;
+
+//arity resolution and generic invocation of the Function.*Args family
+final class Functions {
+    private Functions() {
+    }
+
+    static int arity(Function function) throws ExpressionCompilerException {
+        if (function instanceof Function.NoArgs) return 0;
+        if (function instanceof Function.OneArgs) return 1;
+        if (function instanceof Function.TwoArgs) return 2;
+        if (function instanceof Function.ThreeArgs) return 3;
+        if (function instanceof Function.FourArgs) return 4;
+        if (function instanceof Function.FiveArgs) return 5;
+        if (function instanceof Function.SixArgs) return 6;
+        if (function instanceof Function.SevenArgs) return 7;
+        throw new ExpressionCompilerException(String.format("Unknown function type: %s", function.getClass()));
+    }
+
+    static Class<? extends Function> type(int arity) {
+        return switch (arity) {
+            case 0 -> Function.NoArgs.class;
+            case 1 -> Function.OneArgs.class;
+            case 2 -> Function.TwoArgs.class;
+            case 3 -> Function.ThreeArgs.class;
+            case 4 -> Function.FourArgs.class;
+            case 5 -> Function.FiveArgs.class;
+            case 6 -> Function.SixArgs.class;
+            case 7 -> Function.SevenArgs.class;
+            default -> throw new IllegalArgumentException("Unsupported arity: " + arity);
+        };
+    }
+
+    static double apply(Function function, double... a) {
+        return switch (function) {
+            case Function.NoArgs fn -> fn.apply();
+            case Function.OneArgs fn -> fn.apply(a[0]);
+            case Function.TwoArgs fn -> fn.apply(a[0], a[1]);
+            case Function.ThreeArgs fn -> fn.apply(a[0], a[1], a[2]);
+            case Function.FourArgs fn -> fn.apply(a[0], a[1], a[2], a[3]);
+            case Function.FiveArgs fn -> fn.apply(a[0], a[1], a[2], a[3], a[4]);
+            case Function.SixArgs fn -> fn.apply(a[0], a[1], a[2], a[3], a[4], a[5]);
+            case Function.SevenArgs fn -> fn.apply(a[0], a[1], a[2], a[3], a[4], a[5], a[6]);
+            default -> throw new IllegalArgumentException(String.format("Unknown function type: %s", function.getClass()));
+        };
+    }
+
+    //Function.Partials.of, purity is the one of the function
+    record Differentiable1(Function.OneArgs function, Function.OneArgs derivative) implements Function.OneArgs, Function.Partials {
+        @Override
+        public double apply(double value) {
+            return function.apply(value);
+        }
+
+        @Override
+        public boolean isPure() {
+            return function.isPure();
+        }
+
+        @Override
+        public double partial(int argument, double... args) {
+            return derivative.apply(args[0]);
+        }
+    }
+
+    record Differentiable2(Function.TwoArgs function, Function.TwoArgs byFirst, Function.TwoArgs bySecond) implements Function.TwoArgs, Function.Partials {
+        @Override
+        public double apply(double value1, double value2) {
+            return function.apply(value1, value2);
+        }
+
+        @Override
+        public boolean isPure() {
+            return function.isPure();
+        }
+
+        @Override
+        public double partial(int argument, double... args) {
+            return (argument == 0 ? byFirst : bySecond).apply(args[0], args[1]);
+        }
+    }
+}
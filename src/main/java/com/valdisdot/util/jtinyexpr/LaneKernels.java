@@ -0,0 +1,13 @@
+package com.valdisdot.util.jtinyexpr;
+
+/*
+lane-wise loops used by VectorBatch, implemented by VectorKernels in src/main/vector (built with -Pvector only)
+each kernel covers rows [0, bound) and returns the bound, 0 when it has no loop for the builtin
+ */
+interface LaneKernels {
+    //a is a register or a column slice starting at offset
+    int unary(Node.Builtin builtin, double[] a, int offset, double[] target, int rows);
+
+    //a null array stands for its constant broadcast to every lane
+    int binary(Node.Builtin builtin, double[] a, int aOffset, double aConstant, double[] b, int bOffset, double bConstant, double[] target, int rows);
+}
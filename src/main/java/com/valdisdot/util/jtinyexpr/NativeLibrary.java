@@ -0,0 +1,247 @@
+package com.valdisdot.util.jtinyexpr;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/*
+native tinyexpr library and its downcall handles, initialized on first use of a handle (or by preload())
+the library is looked up in this order:
+    - the file named by -Djtinyexpr.library.path
+    - tinyexpr-<arch> / libtinyexpr on java.library.path
+    - the bundled resource, extracted once into a cache directory under a content-hash name and reused by later runs,
+      the directory is -Djtinyexpr.cache.dir, $XDG_CACHE_HOME/jtinyexpr or ~/.cache/jtinyexpr, java.io.tmpdir as last resort
+ */
+final class NativeLibrary {
+    static final String LIBRARY_PATH_PROPERTY = "jtinyexpr.library.path";
+    static final String CACHE_DIR_PROPERTY = "jtinyexpr.cache.dir";
+
+    private static final Linker LINKER = Linker.nativeLinker();
+
+    static final Path PATH;
+    static final long LOAD_NANOS;
+
+    static final MethodHandle te_interp;
+    static final MethodHandle te_compile;
+    static final MethodHandle te_free;
+    static final MethodHandle te_eval_batch;
+    static final MethodHandle te_eval_frame;
+    static final MethodHandle te_eval_program;
+    static final MethodHandle te_eval_flat;
+
+    /*
+    critical variants: no thread state transition and heap segments are passed as plain pointers
+    the native side must not call back into Java, so they only serve trees without custom functions
+     */
+    static final MethodHandle te_interp_critical;
+    static final MethodHandle te_compile_critical;
+    static final MethodHandle te_eval_frame_critical;
+    static final MethodHandle te_eval_program_critical;
+    static final MethodHandle te_eval_flat_critical;
+    //te_assemble never calls a function, so it is always critical
+    static final MethodHandle te_assemble;
+    //te_size, te_pack, te_flat_size and te_flatten only walk the tree
+    static final MethodHandle te_size;
+    static final MethodHandle te_pack;
+    static final MethodHandle te_flat_size;
+    static final MethodHandle te_flatten;
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    static {
+        long start = System.nanoTime();
+        try {
+            PATH = locate();
+            SymbolLookup lookup = SymbolLookup.libraryLookup(PATH, Arena.global());
+            setCLocale();
+
+            te_interp = LINKER.downcallHandle(lookup.find("te_interp").orElseThrow(), FunctionDescriptor.of(ValueLayout.JAVA_DOUBLE, ValueLayout.ADDRESS, ValueLayout.ADDRESS));
+            te_compile = LINKER.downcallHandle(lookup.find("te_compile").orElseThrow(), FunctionDescriptor.of(ValueLayout.ADDRESS, ValueLayout.ADDRESS, ValueLayout.ADDRESS, ValueLayout.JAVA_INT, ValueLayout.ADDRESS));
+            te_free = LINKER.downcallHandle(lookup.find("te_free").orElseThrow(), FunctionDescriptor.ofVoid(ValueLayout.ADDRESS));
+            te_eval_frame = LINKER.downcallHandle(lookup.find("te_eval_frame").orElseThrow(), FunctionDescriptor.of(ValueLayout.JAVA_DOUBLE, ValueLayout.ADDRESS, ValueLayout.ADDRESS, ValueLayout.JAVA_INT, ValueLayout.ADDRESS));
+            te_eval_batch = LINKER.downcallHandle(lookup.find("te_eval_batch").orElseThrow(), FunctionDescriptor.ofVoid(ValueLayout.ADDRESS, ValueLayout.ADDRESS, ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.ADDRESS, ValueLayout.JAVA_LONG));
+            te_eval_flat = LINKER.downcallHandle(lookup.find("te_eval_flat").orElseThrow(), FunctionDescriptor.of(ValueLayout.JAVA_DOUBLE, ValueLayout.ADDRESS));
+            te_eval_program = LINKER.downcallHandle(lookup.find("te_eval_program").orElseThrow(), FunctionDescriptor.ofVoid(ValueLayout.ADDRESS, ValueLayout.JAVA_INT, ValueLayout.ADDRESS));
+
+            Linker.Option critical = Linker.Option.critical(true);
+            te_interp_critical = LINKER.downcallHandle(lookup.find("te_interp").orElseThrow(), FunctionDescriptor.of(ValueLayout.JAVA_DOUBLE, ValueLayout.ADDRESS, ValueLayout.ADDRESS), critical);
+            te_compile_critical = LINKER.downcallHandle(lookup.find("te_compile").orElseThrow(), FunctionDescriptor.of(ValueLayout.ADDRESS, ValueLayout.ADDRESS, ValueLayout.ADDRESS, ValueLayout.JAVA_INT, ValueLayout.ADDRESS), critical);
+            te_eval_frame_critical = LINKER.downcallHandle(lookup.find("te_eval_frame").orElseThrow(), FunctionDescriptor.of(ValueLayout.JAVA_DOUBLE, ValueLayout.ADDRESS, ValueLayout.ADDRESS, ValueLayout.JAVA_INT, ValueLayout.ADDRESS), critical);
+            te_eval_program_critical = LINKER.downcallHandle(lookup.find("te_eval_program").orElseThrow(), FunctionDescriptor.ofVoid(ValueLayout.ADDRESS, ValueLayout.JAVA_INT, ValueLayout.ADDRESS), critical);
+            te_eval_flat_critical = LINKER.downcallHandle(lookup.find("te_eval_flat").orElseThrow(), FunctionDescriptor.of(ValueLayout.JAVA_DOUBLE, ValueLayout.ADDRESS), critical);
+            te_assemble = LINKER.downcallHandle(lookup.find("te_assemble").orElseThrow(), FunctionDescriptor.of(ValueLayout.ADDRESS, ValueLayout.ADDRESS, ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.JAVA_INT, ValueLayout.ADDRESS), critical);
+            te_size = LINKER.downcallHandle(lookup.find("te_size").orElseThrow(), FunctionDescriptor.of(ValueLayout.JAVA_LONG, ValueLayout.ADDRESS, ValueLayout.ADDRESS), critical);
+            te_pack = LINKER.downcallHandle(lookup.find("te_pack").orElseThrow(), FunctionDescriptor.of(ValueLayout.ADDRESS, ValueLayout.ADDRESS, ValueLayout.ADDRESS), critical);
+            te_flat_size = LINKER.downcallHandle(lookup.find("te_flat_size").orElseThrow(), FunctionDescriptor.of(ValueLayout.JAVA_LONG, ValueLayout.ADDRESS), critical);
+            te_flatten = LINKER.downcallHandle(lookup.find("te_flatten").orElseThrow(), FunctionDescriptor.of(ValueLayout.ADDRESS, ValueLayout.ADDRESS, ValueLayout.ADDRESS), critical);
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to initialize TinyExpr native library", e);
+        }
+        LOAD_NANOS = System.nanoTime() - start;
+    }
+
+    private NativeLibrary() {
+    }
+
+    //touching a static field runs the initializer exactly once
+    static long load() {
+        return LOAD_NANOS;
+    }
+
+    static Scratch scratch() {
+        return SCRATCH.get();
+    }
+
+    //per-thread heap buffers for critical downcalls: NUL-terminated expression text and the error offset
+    static final class Scratch {
+        private final int[] error = new int[1];
+        private byte[] text = new byte[256];
+
+        //UTF-8 like Arena.allocateFrom, ASCII is copied without an intermediate array
+        MemorySegment text(String expression) {
+            int length = expression.length();
+            if (text.length <= length) text = new byte[Math.max(length + 1, text.length * 2)];
+            for (int i = 0; i < length; i++) {
+                char c = expression.charAt(i);
+                if (c >= 0x80) return utf8(expression);
+                text[i] = (byte) c;
+            }
+            text[length] = 0;
+            return MemorySegment.ofArray(text);
+        }
+
+        private MemorySegment utf8(String expression) {
+            byte[] bytes = expression.getBytes(StandardCharsets.UTF_8);
+            if (text.length <= bytes.length) text = new byte[bytes.length + 1];
+            System.arraycopy(bytes, 0, text, 0, bytes.length);
+            text[bytes.length] = 0;
+            return MemorySegment.ofArray(text);
+        }
+
+        MemorySegment error() {
+            error[0] = 0;
+            return MemorySegment.ofArray(error);
+        }
+
+        int errorOffset() {
+            return error[0];
+        }
+    }
+
+    //fix for cases where "foo(5,5)" gets interpreted as foo(double var)
+    private static void setCLocale() {
+        String os = System.getProperty("os.name").toLowerCase();
+        int LC_ALL = os.contains("win") ? 0 : 6; // Windows=0, Linux/macOS=6
+
+        MethodHandle setlocale = LINKER.downcallHandle(
+                LINKER.defaultLookup().find("setlocale").get(),
+                FunctionDescriptor.of(ValueLayout.ADDRESS, ValueLayout.JAVA_INT, ValueLayout.ADDRESS)
+        );
+
+        try (Arena temp = Arena.ofConfined()) {
+            MemorySegment result = (MemorySegment) setlocale.invokeExact(LC_ALL, temp.allocateFrom("C"));
+            if (result.equals(MemorySegment.NULL)) {
+                System.err.println("Warning: Could not set C locale.");
+            }
+        } catch (Throwable e) {
+            throw new RuntimeException("Cannot set locale, floating numbers might be threat oddly", e);
+        }
+    }
+
+    private static Path locate() throws IOException {
+        String configured = System.getProperty(LIBRARY_PATH_PROPERTY);
+        if (configured != null && !configured.isBlank()) {
+            Path path = Path.of(configured);
+            if (!Files.isRegularFile(path)) throw new IOException("Native library not found: " + path);
+            return path;
+        }
+
+        String arch = System.getProperty("os.arch").toLowerCase();
+        String[] names = {System.mapLibraryName("tinyexpr-" + arch), "tinyexpr-" + arch + extension(), System.mapLibraryName("tinyexpr")};
+        for (String directory : System.getProperty("java.library.path", "").split(File.pathSeparator)) {
+            if (directory.isBlank()) continue;
+            for (String name : names) {
+                Path candidate = Path.of(directory, name);
+                if (Files.isRegularFile(candidate)) return candidate;
+            }
+        }
+
+        return extract("/lib/tinyexpr-" + arch + extension());
+    }
+
+    private static String extension() {
+        String os = System.getProperty("os.name").toLowerCase();
+        return os.contains("win") ? ".dll" : (os.contains("mac") ? ".dylib" : ".so");
+    }
+
+    //the file name carries the content hash, an existing file is already complete because it is published by an atomic move
+    private static Path extract(String resourceName) throws IOException {
+        byte[] library;
+        try (InputStream is = NativeLibrary.class.getResourceAsStream(resourceName)) {
+            if (is == null) throw new IOException("Native library not found: " + resourceName);
+            library = is.readAllBytes();
+        }
+        String fileName = resourceName.substring(resourceName.lastIndexOf('/') + 1);
+        int dot = fileName.lastIndexOf('.');
+        fileName = fileName.substring(0, dot) + "-" + sha256(library).substring(0, 16) + fileName.substring(dot);
+
+        IOException failure = null;
+        for (Path directory : cacheDirectories()) {
+            try {
+                Path target = directory.resolve(fileName);
+                if (Files.isRegularFile(target) && Files.size(target) == library.length) return target;
+                Files.createDirectories(directory);
+                Path temp = Files.createTempFile(directory, fileName, ".tmp");
+                try {
+                    Files.write(temp, library);
+                    try {
+                        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+                    } catch (AtomicMoveNotSupportedException e) {
+                        Files.move(temp, target);
+                    }
+                } catch (FileAlreadyExistsException e) {
+                    //another process published it first
+                } finally {
+                    Files.deleteIfExists(temp);
+                }
+                return target;
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+                else failure.addSuppressed(e);
+            }
+        }
+        throw failure;
+    }
+
+    private static Path[] cacheDirectories() {
+        String configured = System.getProperty(CACHE_DIR_PROPERTY);
+        if (configured != null && !configured.isBlank()) return new Path[]{Path.of(configured)};
+        String xdg = System.getenv("XDG_CACHE_HOME");
+        Path user = xdg != null && !xdg.isBlank() ? Path.of(xdg, "jtinyexpr") : Path.of(System.getProperty("user.home"), ".cache", "jtinyexpr");
+        return new Path[]{user, Path.of(System.getProperty("java.io.tmpdir"), "jtinyexpr-" + System.getProperty("user.name"))};
+    }
+
+    private static String sha256(byte[] content) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
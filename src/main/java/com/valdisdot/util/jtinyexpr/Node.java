@@ -0,0 +1,169 @@
+package com.valdisdot.util.jtinyexpr;
+
+import java.util.List;
+
+//java mirror of te_expr: constant, bound variable (by slot) or function call
+sealed interface Node permits Node.Constant, Node.Bound, Node.Call {
+    double evaluate(double[] slots);
+
+    record Constant(double value) implements Node {
+        @Override
+        public double evaluate(double[] slots) {
+            return value;
+        }
+    }
+
+    record Bound(int slot) implements Node {
+        @Override
+        public double evaluate(double[] slots) {
+            return slots[slot];
+        }
+    }
+
+    record Call(Callee callee, List<Node> args) implements Node {
+        public Call {
+            args = List.copyOf(args);
+            if (args.size() != callee.arity()) throw new IllegalArgumentException(String.format("%s expects %d arguments, got %d", callee.symbol(), callee.arity(), args.size()));
+        }
+
+        @Override
+        public double evaluate(double[] slots) {
+            double[] values = new double[args.size()];
+            for (int i = 0; i < values.length; i++) values[i] = args.get(i).evaluate(slots);
+            return callee.apply(values);
+        }
+    }
+
+    sealed interface Callee permits Builtin, Custom {
+        String symbol();
+
+        int arity();
+
+        boolean isPure();
+
+        double apply(double... args);
+    }
+
+    //operators and the functions[] table of tinyexpr.c, all of them are TE_FLAG_PURE
+    enum Builtin implements Callee {
+        ADD("+", 2), SUB("-", 2), MUL("*", 2), DIV("/", 2), POW("^", 2), FMOD("%", 2), NEGATE("-", 1), COMMA(",", 2),
+        ABS("abs", 1), ACOS("acos", 1), ASIN("asin", 1), ATAN("atan", 1), ATAN2("atan2", 2),
+        CEIL("ceil", 1), COS("cos", 1), COSH("cosh", 1), E("e", 0), EXP("exp", 1), FAC("fac", 1),
+        FLOOR("floor", 1), LN("ln", 1), LOG("log", 1), LOG10("log10", 1), NCR("ncr", 2), NPR("npr", 2),
+        PI("pi", 0), POWF("pow", 2), SIN("sin", 1), SINH("sinh", 1), SQRT("sqrt", 1), TAN("tan", 1), TANH("tanh", 1);
+
+        private final String symbol;
+        private final int arity;
+
+        Builtin(String symbol, int arity) {
+            this.symbol = symbol;
+            this.arity = arity;
+        }
+
+        @Override
+        public String symbol() {
+            return symbol;
+        }
+
+        @Override
+        public int arity() {
+            return arity;
+        }
+
+        @Override
+        public boolean isPure() {
+            return true;
+        }
+
+        @Override
+        public double apply(double... a) {
+            return switch (this) {
+                case ADD -> a[0] + a[1];
+                case SUB -> a[0] - a[1];
+                case MUL -> a[0] * a[1];
+                case DIV -> a[0] / a[1];
+                case POW, POWF -> Math.pow(a[0], a[1]);
+                case FMOD -> a[0] % a[1];
+                case NEGATE -> -a[0];
+                case COMMA -> a[1];
+                case ABS -> Math.abs(a[0]);
+                case ACOS -> Math.acos(a[0]);
+                case ASIN -> Math.asin(a[0]);
+                case ATAN -> Math.atan(a[0]);
+                case ATAN2 -> Math.atan2(a[0], a[1]);
+                case CEIL -> Math.ceil(a[0]);
+                case COS -> Math.cos(a[0]);
+                case COSH -> Math.cosh(a[0]);
+                case E -> Math.E;
+                case EXP -> Math.exp(a[0]);
+                case FAC -> fac(a[0]);
+                case FLOOR -> Math.floor(a[0]);
+                case LN -> Math.log(a[0]);
+                case LOG, LOG10 -> Math.log10(a[0]);
+                case NCR -> ncr(a[0], a[1]);
+                case NPR -> npr(a[0], a[1]);
+                case PI -> Math.PI;
+                case SIN -> Math.sin(a[0]);
+                case SINH -> Math.sinh(a[0]);
+                case SQRT -> Math.sqrt(a[0]);
+                case TAN -> Math.tan(a[0]);
+                case TANH -> Math.tanh(a[0]);
+            };
+        }
+
+        //lookup for identifiers, operators are not reachable by name
+        static Builtin find(String name) {
+            for (Builtin builtin : values()) {
+                if (builtin.ordinal() > COMMA.ordinal() && builtin.symbol.equals(name)) return builtin;
+            }
+            return null;
+        }
+
+        //ports of the tinyexpr.c helpers, unsigned int/long arithmetic included
+        static double fac(double a) {
+            if (a < 0.0) return Double.NaN;
+            if (a > 4294967295.0) return Double.POSITIVE_INFINITY;
+            long ua = (long) a;
+            long result = 1;
+            for (long i = 1; i <= ua; i++) {
+                if (Long.compareUnsigned(i, Long.divideUnsigned(-1L, result)) > 0) return Double.POSITIVE_INFINITY;
+                result *= i;
+            }
+            return unsigned(result);
+        }
+
+        static double ncr(double n, double r) {
+            if (n < 0.0 || r < 0.0 || n < r) return Double.NaN;
+            if (n > 4294967295.0 || r > 4294967295.0) return Double.POSITIVE_INFINITY;
+            long un = (long) n, ur = (long) r;
+            long result = 1;
+            if (ur > un / 2) ur = un - ur;
+            for (long i = 1; i <= ur; i++) {
+                if (Long.compareUnsigned(result, Long.divideUnsigned(-1L, un - ur + i)) > 0) return Double.POSITIVE_INFINITY;
+                result *= un - ur + i;
+                result = Long.divideUnsigned(result, i);
+            }
+            return unsigned(result);
+        }
+
+        static double npr(double n, double r) {
+            return ncr(n, r) * fac(r);
+        }
+
+        private static double unsigned(long value) {
+            return value >= 0 ? value : (double) (value >>> 1) * 2.0 + (value & 1);
+        }
+    }
+
+    record Custom(String symbol, Function function, int arity) implements Callee {
+        @Override
+        public boolean isPure() {
+            return function.isPure();
+        }
+
+        @Override
+        public double apply(double... args) {
+            return Functions.apply(function, args);
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.valdisdot.util.jtinyexpr;
+
+/*
+node counts of the optimizing pass
+    - nodesAfter counts a shared subexpression once, BytecodeExpressionCompiler evaluates it once
+    - treeNodes counts it at every use, TinyExpressionCompiler evaluates that many: te_expr trees cannot share nodes,
+      so the native side only gets the simplification and strength reduction, not the CSE
+ */
+public record OptimizationReport(int nodesBefore, int nodesAfter, int treeNodes, int sharedSubexpressions) {
+}
@@ -0,0 +1,197 @@
+package com.valdisdot.util.jtinyexpr;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+optimizing pass over a parsed tree, on top of the constant folding tinyexpr does:
+    - algebraic identities: x*1, 1*x, x/1, x+0, 0+x, x-0, x^1, -(-x), (pure, x) -> x, pure^0 -> 1
+    - strength reduction: x^2 -> x*x
+    - hash-consing of pure subtrees, so repeated subterms and pure Function calls with identical arguments
+      become one shared node (a DAG), which the bytecode compiler evaluates once per evaluation;
+      the native compiler gets the DAG printed back to text, every use of a shared node is evaluated again
+impure calls are never merged or dropped, every occurrence stays a call
+results may change in these ways:
+    - x+0 and 0+x may turn a -0.0 result into +0.0 the other way around
+    - constant calls are folded with Java Math (Node.Builtin.apply), transcendental built-ins (pow, sin, exp, ...)
+      may differ from the libm tinyexpr calls in the last bit, so the native compiler's optimizing() may differ from compile()
+ */
+final class Optimizer {
+    private final Map<Object, Node> interned = new HashMap<>();
+    private final Map<Node, Integer> ids = new IdentityHashMap<>();
+    private final boolean simplify;
+
+    record Result(Node root, OptimizationReport report) {
+    }
+
+    private Optimizer(boolean simplify) {
+        this.simplify = simplify;
+    }
+
+    static Result optimize(Node root) {
+        Node optimized = new Optimizer(true).rewrite(root);
+        Set<Node> shared = shared(List.of(optimized));
+        return new Result(optimized, new OptimizationReport(size(root), distinct(optimized), size(optimized), shared.size()));
+    }
+
+    //several roots in one DAG, so subtrees repeated across them are shared too; without simplify only the hash-consing runs
+    static List<Node> optimizeAll(List<Node> roots, boolean simplify) {
+        Optimizer optimizer = new Optimizer(simplify);
+        List<Node> optimized = new ArrayList<>(roots.size());
+        for (Node root : roots) optimized.add(optimizer.rewrite(root));
+        return optimized;
+    }
+
+    //call nodes reached more than once from the roots
+    static Set<Node> shared(List<Node> roots) {
+        Map<Node, Integer> uses = new IdentityHashMap<>();
+        for (Node root : roots) count(root, uses);
+        Set<Node> shared = Collections.newSetFromMap(new IdentityHashMap<>());
+        uses.forEach((node, n) -> {
+            if (n > 1 && node instanceof Node.Call) shared.add(node);
+        });
+        return shared;
+    }
+
+    private static void count(Node node, Map<Node, Integer> uses) {
+        //children of a shared node are visited once, they are evaluated once
+        if (uses.merge(node, 1, Integer::sum) > 1) return;
+        if (node instanceof Node.Call call) for (Node arg : call.args()) count(arg, uses);
+    }
+
+    private static int size(Node node) {
+        int size = 1;
+        if (node instanceof Node.Call call) for (Node arg : call.args()) size += size(arg);
+        return size;
+    }
+
+    private static int distinct(Node root) {
+        Map<Node, Integer> uses = new IdentityHashMap<>();
+        count(root, uses);
+        return uses.size();
+    }
+
+    private Node rewrite(Node node) {
+        if (!(node instanceof Node.Call call)) return intern(node);
+        List<Node> args = new ArrayList<>(call.args().size());
+        for (Node arg : call.args()) args.add(rewrite(arg));
+        Node simplified = simplify(call.callee(), args);
+        if (simplified instanceof Node.Call c && c.callee().isPure() && c.args().stream().allMatch(a -> a instanceof Node.Constant)) {
+            simplified = new Node.Constant(c.evaluate(new double[0]));
+        }
+        return intern(simplified);
+    }
+
+    private Node simplify(Node.Callee callee, List<Node> args) {
+        if (!simplify || !(callee instanceof Node.Builtin builtin)) return new Node.Call(callee, args);
+        Node a = args.isEmpty() ? null : args.get(0);
+        Node b = args.size() < 2 ? null : args.get(1);
+        switch (builtin) {
+            case ADD -> {
+                if (is(b, 0)) return a;
+                if (is(a, 0)) return b;
+            }
+            case SUB -> {
+                if (is(b, 0)) return a;
+            }
+            case MUL -> {
+                if (is(b, 1)) return a;
+                if (is(a, 1)) return b;
+            }
+            case DIV -> {
+                if (is(b, 1)) return a;
+            }
+            case POW, POWF -> {
+                if (is(b, 1)) return a;
+                if (is(b, 0) && pure(a)) return new Node.Constant(1);
+                if (is(b, 2) && pure(a)) return new Node.Call(Node.Builtin.MUL, List.of(a, a));
+            }
+            case NEGATE -> {
+                if (a instanceof Node.Call inner && inner.callee() == Node.Builtin.NEGATE) return inner.args().get(0);
+            }
+            case COMMA -> {
+                if (pure(a)) return b;
+            }
+            default -> {
+            }
+        }
+        return new Node.Call(builtin, args);
+    }
+
+    private static boolean is(Node node, double value) {
+        return node instanceof Node.Constant c && c.value() == value;
+    }
+
+    private boolean pure(Node node) {
+        return ids.containsKey(node);
+    }
+
+    //pure nodes are canonicalized by callee and child identities, impure calls are returned as they are
+    private Node intern(Node node) {
+        if (ids.containsKey(node)) return node;
+        Object key = switch (node) {
+            case Node.Constant c -> Double.doubleToRawLongBits(c.value());
+            case Node.Bound b -> List.of("bound", b.slot());
+            case Node.Call call -> {
+                if (!call.callee().isPure()) yield null;
+                List<Object> parts = new ArrayList<>(call.args().size() + 1);
+                parts.add(call.callee());
+                for (Node arg : call.args()) {
+                    Integer id = ids.get(arg);
+                    if (id == null) yield null;
+                    parts.add(id);
+                }
+                yield parts;
+            }
+        };
+        if (key == null) return node;
+        Node canonical = interned.computeIfAbsent(key, k -> node);
+        ids.putIfAbsent(canonical, ids.size());
+        return canonical;
+    }
+
+    //tinyexpr text of an optimized tree, fully parenthesized, shared nodes are printed at every use
+    static String print(Node root, List<Argument> variables) {
+        StringBuilder out = new StringBuilder();
+        print(root, variables, out);
+        return out.toString();
+    }
+
+    private static void print(Node node, List<Argument> variables, StringBuilder out) {
+        switch (node) {
+            case Node.Constant c -> {
+                double v = c.value();
+                if (Double.isNaN(v)) out.append("(0/0)");
+                else if (Double.isInfinite(v)) out.append(v > 0 ? "(1/0)" : "(-1/0)");
+                else if (v < 0 || (v == 0 && 1 / v < 0)) out.append("(-").append(-v).append(')');
+                else out.append(v);
+            }
+            case Node.Bound b -> out.append(variables.get(b.slot()).name());
+            case Node.Call call when call.callee() instanceof Node.Builtin builtin && builtin.ordinal() <= Node.Builtin.COMMA.ordinal() -> {
+                out.append('(');
+                if (builtin == Node.Builtin.NEGATE) {
+                    out.append('-');
+                    print(call.args().get(0), variables, out);
+                } else {
+                    print(call.args().get(0), variables, out);
+                    out.append(builtin == Node.Builtin.COMMA ? ", " : " " + builtin.symbol() + " ");
+                    print(call.args().get(1), variables, out);
+                }
+                out.append(')');
+            }
+            case Node.Call call -> {
+                out.append(call.callee().symbol()).append('(');
+                for (int i = 0; i < call.args().size(); i++) {
+                    if (i > 0) out.append(", ");
+                    print(call.args().get(i), variables, out);
+                }
+                out.append(')');
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.valdisdot.util.jtinyexpr;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+
+/*
+splits the rows of a batch into chunks evaluated concurrently by one SharedExpression, each chunk gets its own VariableFrame
+results are written at their row index, so the output is in input order whatever order the chunks finish in
+    - FORK_JOIN: a dedicated ForkJoinPool of the given parallelism, ranges are split in halves down to the chunk size
+    - VIRTUAL_THREADS: one virtual thread per chunk, at most parallelism of them run at once
+custom functions are called from many threads, the same as with SharedExpression
+the evaluator does not own the expression, close() only shuts down its threads
+ */
+public final class ParallelEvaluator implements AutoCloseable {
+    public static final int DEFAULT_CHUNK = 1 << 16;
+
+    public enum Mode {
+        FORK_JOIN, VIRTUAL_THREADS
+    }
+
+    private final SharedExpression expression;
+    private final int columnCount;
+    private final int parallelism;
+    private final int chunkSize;
+    private final ForkJoinPool pool;
+    private final ExecutorService virtualThreads;
+    private final Semaphore permits;
+
+    public ParallelEvaluator(SharedExpression expression) {
+        this(expression, Mode.FORK_JOIN, Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK);
+    }
+
+    public ParallelEvaluator(SharedExpression expression, Mode mode, int parallelism, int chunkSize) {
+        if (parallelism <= 0) throw new IllegalArgumentException("Parallelism must be positive");
+        if (chunkSize <= 0) throw new IllegalArgumentException("Chunk size must be positive");
+        this.expression = expression;
+        this.columnCount = expression.variables().size();
+        this.parallelism = parallelism;
+        this.chunkSize = chunkSize;
+        this.pool = mode == Mode.FORK_JOIN ? new ForkJoinPool(parallelism) : null;
+        this.virtualThreads = mode == Mode.VIRTUAL_THREADS ? Executors.newVirtualThreadPerTaskExecutor() : null;
+        this.permits = mode == Mode.VIRTUAL_THREADS ? new Semaphore(parallelism) : null;
+    }
+
+    public int parallelism() {
+        return parallelism;
+    }
+
+    public int chunkSize() {
+        return chunkSize;
+    }
+
+    //columns are in the order of expression.variables(), out.length rows are evaluated
+    public void evaluate(double[][] columns, double[] out) {
+        checkColumns(columns.length);
+        for (double[] column : columns) {
+            if (column.length < out.length) throw new IllegalArgumentException("Column is shorter than the output");
+        }
+        run(out.length, (frame, from, to) -> {
+            MemorySegment values = frame.segment();
+            for (int row = (int) from; row < to; row++) {
+                for (int i = 0; i < columns.length; i++) values.setAtIndex(ValueLayout.JAVA_DOUBLE, i, columns[i][row]);
+                out[row] = expression.evaluate(frame);
+            }
+        });
+    }
+
+    //the segments are read and written by other threads, so they must not come from a confined arena
+    public void evaluate(MemorySegment[] columns, MemorySegment out, long rows) {
+        checkColumns(columns.length);
+        long bytes = rows * ValueLayout.JAVA_DOUBLE.byteSize();
+        if (out.byteSize() < bytes) throw new IllegalArgumentException("Output is shorter than " + rows + " doubles");
+        for (MemorySegment column : columns) {
+            if (column.byteSize() < bytes) throw new IllegalArgumentException("Column is shorter than " + rows + " doubles");
+        }
+        run(rows, (frame, from, to) -> {
+            MemorySegment values = frame.segment();
+            for (long row = from; row < to; row++) {
+                for (int i = 0; i < columns.length; i++) values.setAtIndex(ValueLayout.JAVA_DOUBLE, i, columns[i].getAtIndex(ValueLayout.JAVA_DOUBLE, row));
+                out.setAtIndex(ValueLayout.JAVA_DOUBLE, row, expression.evaluate(frame));
+            }
+        });
+    }
+
+    private interface Chunk {
+        void evaluate(VariableFrame frame, long from, long to);
+    }
+
+    private void run(long rows, Chunk chunk) {
+        if (rows == 0) return;
+        if (pool != null) {
+            pool.invoke(new Range(chunk, 0, rows));
+            return;
+        }
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (long from = 0; from < rows; from += chunkSize) {
+                long start = from, end = Math.min(rows, from + chunkSize);
+                permits.acquire();
+                futures.add(virtualThreads.submit(() -> {
+                    try {
+                        evaluateChunk(chunk, start, end);
+                    } finally {
+                        permits.release();
+                    }
+                }));
+            }
+            for (Future<?> future : futures) future.get();
+        } catch (InterruptedException e) {
+            futures.forEach(f -> f.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Evaluation interrupted", e);
+        } catch (ExecutionException e) {
+            futures.forEach(f -> f.cancel(true));
+            if (e.getCause() instanceof RuntimeException runtime) throw runtime;
+            throw new RuntimeException("Evaluation failed", e.getCause());
+        }
+    }
+
+    //the frame lives as long as the chunk, the variable defaults are irrelevant because every slot is overwritten per row
+    private void evaluateChunk(Chunk chunk, long from, long to) {
+        try (Arena arena = Arena.ofConfined()) {
+            chunk.evaluate(new VariableFrame(arena, columnCount), from, to);
+        }
+    }
+
+    private final class Range extends RecursiveAction {
+        private final Chunk chunk;
+        private final long from;
+        private final long to;
+
+        private Range(Chunk chunk, long from, long to) {
+            this.chunk = chunk;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunkSize) {
+                evaluateChunk(chunk, from, to);
+                return;
+            }
+            long middle = from + (to - from) / 2;
+            invokeAll(new Range(chunk, from, middle), new Range(chunk, middle, to));
+        }
+    }
+
+    private void checkColumns(int count) {
+        if (count != columnCount) throw new IllegalArgumentException(String.format("Expected %d columns, one per variable, got %d", columnCount, count));
+    }
+
+    @Override
+    public void close() {
+        if (pool != null) pool.shutdown();
+        if (virtualThreads != null) virtualThreads.close();
+    }
+}
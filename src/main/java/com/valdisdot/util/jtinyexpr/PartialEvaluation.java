@@ -0,0 +1,71 @@
+package com.valdisdot.util.jtinyexpr;
+
+import java.lang.foreign.MemorySegment;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+partial evaluation of a parsed tree: frozen variables become constants and every pure call whose arguments are now
+all constant is folded, impure calls stay calls (their arguments are still folded)
+the residual tree goes through an image (ExpressionImage) into ExpressionCompiler.load, so it is never printed or parsed again
+and the compiler's own optimizing pass runs on it as on any loaded expression
+ */
+final class PartialEvaluation {
+    private PartialEvaluation() {
+    }
+
+    static Expression specialize(ExpressionCompiler compiler, TinyExprParser.Parsed parsed, Map<String, Double> frozen) throws ExpressionCompilerException {
+        List<Argument> slots = parsed.variables();
+        boolean[] fixed = new boolean[slots.size()];
+        double[] values = new double[slots.size()];
+        for (Map.Entry<String, Double> entry : frozen.entrySet()) {
+            boolean found = false;
+            for (int i = 0; i < slots.size(); i++) {
+                if (slots.get(i).name().equals(entry.getKey())) {
+                    fixed[i] = true;
+                    values[i] = entry.getValue();
+                    found = true;
+                }
+            }
+            if (!found) throw new ExpressionCompilerException(String.format("Variable '%s' is not provided", entry.getKey()));
+        }
+        Node root = fold(parsed.root(), fixed, values);
+
+        //the variables left, then the functions the residual tree still calls
+        List<Argument> residual = new ArrayList<>();
+        for (int i = 0; i < slots.size(); i++) {
+            if (!fixed[i]) residual.add(slots.get(i));
+        }
+        Map<String, Function> functions = new LinkedHashMap<>();
+        functions(root, functions);
+        functions.forEach((name, function) -> residual.add(Argument.of(name, function)));
+        byte[] image = ExpressionImage.encode(new TinyExprParser.Parsed(root, slots));
+        return compiler.load(MemorySegment.ofArray(image), residual);
+    }
+
+    private static Node fold(Node node, boolean[] fixed, double[] values) {
+        return switch (node) {
+            case Node.Constant c -> c;
+            case Node.Bound b -> fixed[b.slot()] ? new Node.Constant(values[b.slot()]) : b;
+            case Node.Call call -> {
+                List<Node> args = new ArrayList<>(call.args().size());
+                boolean known = true;
+                for (Node arg : call.args()) {
+                    Node folded = fold(arg, fixed, values);
+                    if (!(folded instanceof Node.Constant)) known = false;
+                    args.add(folded);
+                }
+                Node.Call folded = new Node.Call(call.callee(), args);
+                yield known && call.callee().isPure() ? new Node.Constant(folded.evaluate(new double[0])) : folded;
+            }
+        };
+    }
+
+    private static void functions(Node node, Map<String, Function> functions) {
+        if (!(node instanceof Node.Call call)) return;
+        if (call.callee() instanceof Node.Custom custom) functions.putIfAbsent(custom.symbol(), custom.function());
+        for (Node arg : call.args()) functions(arg, functions);
+    }
+}
@@ -0,0 +1,38 @@
+package com.valdisdot.util.jtinyexpr;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+//argument lists of a formula sheet: formula i sees the arguments followed by outputs 0..i-1 as placeholder variables
+final class Programs {
+    //tinyexpr identifiers
+    private static final Pattern NAME = Pattern.compile("[a-zA-Z][a-zA-Z0-9_]*");
+
+    private Programs() {
+    }
+
+    //variable slots: variables of the arguments in argument order, then output k at variableCount(arguments) + k
+    static List<List<Argument>> arguments(Map<String, String> formulas, Collection<Argument> arguments) throws ExpressionCompilerException {
+        if (formulas.isEmpty()) throw new ExpressionCompilerException("Program has no formulas");
+        Set<String> names = new HashSet<>();
+        for (Argument argument : arguments) names.add(argument.name());
+        List<List<Argument>> perFormula = new ArrayList<>(formulas.size());
+        List<Argument> visible = new ArrayList<>(arguments);
+        for (String output : formulas.keySet()) {
+            if (!NAME.matcher(output).matches()) throw new ExpressionCompilerException(String.format("Invalid output name '%s'", output));
+            if (!names.add(output)) throw new ExpressionCompilerException(String.format("Output '%s' clashes with an argument", output));
+            perFormula.add(List.copyOf(visible));
+            visible.add(Argument.of(output, new Variable(0)));
+        }
+        return perFormula;
+    }
+
+    static int variableCount(Collection<Argument> arguments) {
+        return (int) arguments.stream().filter(a -> a.value() instanceof Variable).count();
+    }
+}
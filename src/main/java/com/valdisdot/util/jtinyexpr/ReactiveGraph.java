@@ -0,0 +1,195 @@
+package com.valdisdot.util.jtinyexpr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/*
+named formulas with tracked dependencies: a formula depends on the variables it actually reads and on earlier formulas it references by name
+Variable.update() only marks the formulas reading that variable dirty and their dependents pending (possibly stale),
+then the graph recomputes in definition order, which is a topological order:
+    - LAZY: on value(name), only the pending ancestors of that formula
+    - EAGER: right away, every pending formula
+a recomputed formula whose value did not change does not dirty its dependents
+not thread-safe, like Variable
+ */
+public class ReactiveGraph implements AutoCloseable {
+    private static final Pattern NAME = Pattern.compile("[a-zA-Z][a-zA-Z0-9_]*");
+
+    public enum Mode {
+        LAZY, EAGER
+    }
+
+    private final ExpressionCompiler compiler;
+    private final Mode mode;
+    private final List<Formula> formulas = new ArrayList<>();
+    private final Map<String, Formula> byName = new HashMap<>();
+    private final Map<Variable, Runnable> observers = new IdentityHashMap<>();
+    private final Map<Variable, List<Formula>> readers = new IdentityHashMap<>();
+    private long recomputations;
+    private boolean propagating;
+
+    private final class Formula {
+        private final String name;
+        private final Expression expression;
+        //the value as a variable, bound into every dependent formula
+        private final Variable output;
+        private final List<Formula> upstream = new ArrayList<>();
+        private final List<Formula> dependents = new ArrayList<>();
+        private double value;
+        private boolean dirty;
+        private boolean pending;
+
+        private Formula(String name, Expression expression) {
+            this.name = name;
+            this.expression = expression;
+            this.value = expression.evaluate();
+            this.output = new Variable(value);
+        }
+    }
+
+    public ReactiveGraph(ExpressionCompiler compiler, Mode mode) {
+        this.compiler = compiler;
+        this.mode = mode;
+    }
+
+    public ReactiveGraph define(String name, String formula, Argument... args) throws ExpressionCompilerException {
+        return define(name, formula, Arrays.asList(args));
+    }
+
+    //the formula may reference formulas defined before it by name, arguments take precedence over them
+    public ReactiveGraph define(String name, String formula, Collection<Argument> args) throws ExpressionCompilerException {
+        if (!NAME.matcher(name).matches()) throw new ExpressionCompilerException(String.format("Invalid formula name '%s'", name));
+        if (byName.containsKey(name)) throw new ExpressionCompilerException(String.format("Formula '%s' is already defined", name));
+
+        List<Argument> visible = new ArrayList<>(args);
+        for (Formula f : formulas) visible.add(Argument.of(f.name, f.output));
+        refresh(formulas.size() - 1);
+
+        //what the formula really reads after folding, so unused arguments do not trigger it
+        TinyExprParser.Parsed parsed = TinyExprParser.parse(formula, visible);
+        Set<Integer> slots = new TreeSet<>();
+        collectSlots(parsed.root(), slots);
+
+        Formula node = new Formula(name, compiler.compile(formula, visible));
+        recomputations++;
+        for (int slot : slots) {
+            Variable variable = (Variable) parsed.variables().get(slot).value();
+            Formula source = outputOf(variable);
+            if (source != null) {
+                node.upstream.add(source);
+                source.dependents.add(node);
+            }
+            readers.computeIfAbsent(variable, v -> new ArrayList<>()).add(node);
+            observers.computeIfAbsent(variable, v -> {
+                Runnable observer = () -> changed(v);
+                v.observe(observer);
+                return observer;
+            });
+        }
+        formulas.add(node);
+        byName.put(name, node);
+        return this;
+    }
+
+    private Formula outputOf(Variable variable) {
+        for (Formula f : formulas) if (f.output == variable) return f;
+        return null;
+    }
+
+    private static void collectSlots(Node node, Set<Integer> slots) {
+        switch (node) {
+            case Node.Bound b -> slots.add(b.slot());
+            case Node.Call call -> call.args().forEach(arg -> collectSlots(arg, slots));
+            case Node.Constant c -> {
+            }
+        }
+    }
+
+    public double value(String name) {
+        Formula formula = byName.get(name);
+        if (formula == null) throw new IllegalArgumentException(String.format("Unknown formula '%s'", name));
+        refresh(formula);
+        return formula.value;
+    }
+
+    public List<String> names() {
+        return formulas.stream().map(f -> f.name).toList();
+    }
+
+    //how many formula evaluations the graph ran since it was created, initial ones included
+    public long recomputations() {
+        return recomputations;
+    }
+
+    private void changed(Variable variable) {
+        for (Formula reader : readers.getOrDefault(variable, List.of())) {
+            reader.dirty = true;
+            markPending(reader);
+        }
+        //outputs updated during a refresh only mark, the refresh in progress picks them up in order
+        if (mode == Mode.EAGER && !propagating) refresh(formulas.size() - 1);
+    }
+
+    private void markPending(Formula formula) {
+        if (formula.pending) return;
+        formula.pending = true;
+        for (Formula dependent : formula.dependents) markPending(dependent);
+    }
+
+    //every pending formula up to index, in definition order
+    private void refresh(int upTo) {
+        for (int i = 0; i <= upTo; i++) {
+            if (formulas.get(i).pending) refresh(formulas.get(i));
+        }
+    }
+
+    private void refresh(Formula formula) {
+        if (!formula.pending) return;
+        for (Formula source : formula.upstream) refresh(source);
+        if (formula.dirty) recompute(formula);
+        formula.pending = false;
+    }
+
+    private void recompute(Formula formula) {
+        formula.dirty = false;
+        recomputations++;
+        double value = formula.expression.evaluate();
+        if (Double.compare(value, formula.value) == 0) return;
+        formula.value = value;
+        //an output nobody reads yet is unbound, it only has to carry the value for formulas defined later
+        if (formula.dependents.isEmpty()) {
+            formula.output.reset(value);
+            return;
+        }
+        boolean nested = propagating;
+        propagating = true;
+        try {
+            formula.output.update(value);
+        } finally {
+            propagating = nested;
+        }
+    }
+
+    @Override
+    public void close() {
+        observers.forEach(Variable::unobserve);
+        observers.clear();
+        for (int i = formulas.size() - 1; i >= 0; i--) {
+            try {
+                formulas.get(i).expression.close();
+            } catch (Exception ignored) {
+            }
+        }
+        formulas.clear();
+        byName.clear();
+        readers.clear();
+    }
+}
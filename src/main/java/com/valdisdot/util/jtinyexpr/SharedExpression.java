@@ -0,0 +1,24 @@
+package com.valdisdot.util.jtinyexpr;
+
+import java.util.List;
+
+/*
+immutable compiled expression which can be evaluated by many threads at once
+variable values come from a VariableFrame (slots follow the order of variable arguments) instead of bound Variables
+custom functions are called concurrently, so they have to be thread-safe
+ */
+public interface SharedExpression extends AutoCloseable {
+    List<String> variables();
+
+    //frame filled with the values variables had at compile time
+    VariableFrame newFrame();
+
+    double evaluate(VariableFrame frame);
+
+    //values are copied into a per-thread frame
+    double evaluate(double... values);
+
+    //must not be called while other threads still evaluate
+    @Override
+    void close();
+}
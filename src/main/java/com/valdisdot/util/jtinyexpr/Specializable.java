@@ -0,0 +1,6 @@
+package com.valdisdot.util.jtinyexpr;
+
+//expression that can give back the tree it was compiled from, see ExpressionCompiler.specialize
+interface Specializable {
+    TinyExprParser.Parsed parsed() throws ExpressionCompilerException;
+}
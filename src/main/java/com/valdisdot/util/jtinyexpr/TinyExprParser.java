@@ -0,0 +1,354 @@
+package com.valdisdot.util.jtinyexpr;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+line-by-line port of the recursive descent parser from tinyexpr.c (te_compile + optimize)
+error offsets and constant folding follow the C code, so both compilers accept and reject the same expressions
+ */
+final class TinyExprParser {
+    private static final int TOK_NULL = 0, TOK_ERROR = 1, TOK_END = 2, TOK_SEP = 3, TOK_OPEN = 4,
+            TOK_CLOSE = 5, TOK_NUMBER = 6, TOK_VARIABLE = 7, TOK_INFIX = 8, TOK_FUNCTION = 9;
+
+    private final String expression;
+    private final Map<String, Object> lookup = new HashMap<>();
+    private final List<Argument> variables = new ArrayList<>();
+
+    private int next;
+    private int type;
+    private double value;
+    private int bound;
+    private Node.Callee function;
+    //why the first TOK_ERROR was set, tinyexpr itself only reports the offset
+    private String reason;
+
+    //root of the folded tree and the variable arguments in slot order
+    record Parsed(Node root, List<Argument> variables) {
+    }
+
+    private TinyExprParser(String expression, Collection<Argument> arguments) throws ExpressionCompilerException {
+        this.expression = expression;
+        for (Argument argument : arguments) {
+            ArgumentValue argumentValue = argument.value();
+            if (argumentValue instanceof Variable) {
+                lookup.putIfAbsent(argument.name(), variables.size());
+                variables.add(argument);
+            } else if (argumentValue instanceof Function f) {
+                lookup.putIfAbsent(argument.name(), new Node.Custom(argument.name(), f, Functions.arity(f)));
+            } else throw new ExpressionCompilerException(String.format("Unknown argument value type: %s", argumentValue.getClass()));
+        }
+    }
+
+    static Parsed parse(String expression, Collection<Argument> arguments) throws ExpressionCompilerException {
+        TinyExprParser parser = new TinyExprParser(expression, arguments);
+        parser.nextToken();
+        Node root = parser.list();
+        if (parser.type != TOK_END) throw ExpressionCompilerException.parsingError(expression, Math.max(parser.next, 1));
+        return new Parsed(optimize(root), List.copyOf(parser.variables));
+    }
+
+    //syntax and name resolution only: nothing is folded, so no Function is called
+    static ValidationResult check(String expression, Collection<Argument> arguments) {
+        try {
+            TinyExprParser parser = new TinyExprParser(expression, arguments);
+            parser.nextToken();
+            parser.list();
+            if (parser.type == TOK_END) return new ValidationResult(expression, 0, null);
+            if (parser.type != TOK_ERROR) parser.error("unexpected " + parser.token());
+            return new ValidationResult(expression, Math.max(parser.next, 1), parser.reason);
+        } catch (ExpressionCompilerException e) {
+            return new ValidationResult(expression, 0, e.getMessage());
+        }
+    }
+
+    private void error(String why) {
+        if (type != TOK_ERROR && reason == null) reason = why;
+        type = TOK_ERROR;
+    }
+
+    private String token() {
+        return switch (type) {
+            case TOK_END -> "end of expression";
+            case TOK_SEP -> "','";
+            case TOK_OPEN -> "'('";
+            case TOK_CLOSE -> "')'";
+            case TOK_NUMBER -> "number";
+            case TOK_VARIABLE -> "variable";
+            case TOK_INFIX -> "operator '" + function.symbol() + "'";
+            case TOK_FUNCTION -> "function '" + function.symbol() + "'";
+            default -> "token";
+        };
+    }
+
+    //evaluates as much as possible, only pure calls are folded (and only their subtrees are visited)
+    static Node optimize(Node node) {
+        if (node instanceof Node.Call call && call.callee().isPure()) {
+            List<Node> args = new ArrayList<>(call.args().size());
+            boolean known = true;
+            for (Node arg : call.args()) {
+                Node optimized = optimize(arg);
+                if (!(optimized instanceof Node.Constant)) known = false;
+                args.add(optimized);
+            }
+            Node.Call folded = new Node.Call(call.callee(), args);
+            return known ? new Node.Constant(folded.evaluate(new double[0])) : folded;
+        }
+        return node;
+    }
+
+    private char charAt(int index) {
+        return index < expression.length() ? expression.charAt(index) : '\0';
+    }
+
+    private static boolean isAlpha(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isHexDigit(char c) {
+        return isDigit(c) || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+    }
+
+    private void nextToken() {
+        type = TOK_NULL;
+
+        do {
+            char c = charAt(next);
+            if (c == '\0') {
+                type = TOK_END;
+                return;
+            }
+
+            if (isDigit(c) || c == '.') {
+                readNumber();
+                type = TOK_NUMBER;
+            } else if (isAlpha(c)) {
+                int start = next;
+                while (isAlpha(charAt(next)) || isDigit(charAt(next)) || charAt(next) == '_') next++;
+
+                String name = expression.substring(start, next);
+                Object var = lookup.get(name);
+                if (var == null) var = Node.Builtin.find(name);
+
+                if (var == null) {
+                    error(String.format("unknown identifier '%s'", name));
+                } else if (var instanceof Integer slot) {
+                    type = TOK_VARIABLE;
+                    bound = slot;
+                } else {
+                    type = TOK_FUNCTION;
+                    function = (Node.Callee) var;
+                }
+            } else {
+                next++;
+                switch (c) {
+                    case '+' -> infix(Node.Builtin.ADD);
+                    case '-' -> infix(Node.Builtin.SUB);
+                    case '*' -> infix(Node.Builtin.MUL);
+                    case '/' -> infix(Node.Builtin.DIV);
+                    case '^' -> infix(Node.Builtin.POW);
+                    case '%' -> infix(Node.Builtin.FMOD);
+                    case '(' -> type = TOK_OPEN;
+                    case ')' -> type = TOK_CLOSE;
+                    case ',' -> type = TOK_SEP;
+                    case ' ', '\t', '\n', '\r' -> {
+                    }
+                    default -> error(String.format("unexpected character '%c'", c));
+                }
+            }
+        } while (type == TOK_NULL);
+    }
+
+    private void infix(Node.Builtin operator) {
+        type = TOK_INFIX;
+        function = operator;
+    }
+
+    //strtod subset reachable from a digit or a dot: decimal and hexadecimal notations, no advance if nothing was read
+    private void readNumber() {
+        int start = next;
+        int i = start;
+        if (charAt(i) == '0' && (charAt(i + 1) == 'x' || charAt(i + 1) == 'X')
+                && (isHexDigit(charAt(i + 2)) || (charAt(i + 2) == '.' && isHexDigit(charAt(i + 3))))) {
+            i += 2;
+            int mantissa = i;
+            while (isHexDigit(charAt(i))) i++;
+            if (charAt(i) == '.') {
+                i++;
+                while (isHexDigit(charAt(i))) i++;
+            }
+            String digits = expression.substring(mantissa, i);
+            String exponent = "0";
+            int e = exponentEnd(i, 'p', 'P');
+            if (e > i) {
+                exponent = expression.substring(i + 1, e);
+                i = e;
+            }
+            value = Double.parseDouble("0x" + (digits.startsWith(".") ? "0" : "") + digits + "p" + exponent);
+            next = i;
+            return;
+        }
+
+        int digits = 0;
+        while (isDigit(charAt(i))) {
+            i++;
+            digits++;
+        }
+        if (charAt(i) == '.') {
+            i++;
+            while (isDigit(charAt(i))) {
+                i++;
+                digits++;
+            }
+        }
+        if (digits == 0) {
+            value = 0;
+            return;
+        }
+        i = Math.max(i, exponentEnd(i, 'e', 'E'));
+        value = Double.parseDouble(expression.substring(start, i));
+        next = i;
+    }
+
+    private int exponentEnd(int at, char lower, char upper) {
+        if (charAt(at) != lower && charAt(at) != upper) return at;
+        int i = at + 1;
+        if (charAt(i) == '+' || charAt(i) == '-') i++;
+        if (!isDigit(charAt(i))) return at;
+        while (isDigit(charAt(i))) i++;
+        return i;
+    }
+
+    private Node base() {
+        /* <base>      =    <constant> | <variable> | <function-0> {"(" ")"} | <function-1> <power> | <function-X> "(" <expr> {"," <expr>} ")" | "(" <list> ")" */
+        Node ret;
+
+        switch (type) {
+            case TOK_NUMBER -> {
+                ret = new Node.Constant(value);
+                nextToken();
+            }
+            case TOK_VARIABLE -> {
+                ret = new Node.Bound(bound);
+                nextToken();
+            }
+            case TOK_FUNCTION -> {
+                Node.Callee callee = function;
+                int arity = callee.arity();
+                if (arity == 0) {
+                    ret = new Node.Call(callee, List.of());
+                    nextToken();
+                    if (type == TOK_OPEN) {
+                        nextToken();
+                        if (type != TOK_CLOSE) error(String.format("expected ')' after '%s(', got %s", callee.symbol(), token()));
+                        else nextToken();
+                    }
+                } else if (arity == 1) {
+                    nextToken();
+                    ret = new Node.Call(callee, List.of(power()));
+                } else {
+                    Node[] parameters = new Node[arity];
+                    nextToken();
+
+                    if (type != TOK_OPEN) {
+                        error(String.format("expected '(' after '%s', got %s", callee.symbol(), token()));
+                    } else {
+                        int i;
+                        for (i = 0; i < arity; i++) {
+                            nextToken();
+                            parameters[i] = expr();
+                            if (type != TOK_SEP) break;
+                        }
+                        if (type != TOK_CLOSE || i != arity - 1) error(String.format("'%s' expects %d arguments, got %s", callee.symbol(), arity, type == TOK_SEP ? "more" : token()));
+                        else nextToken();
+                    }
+                    //unfilled parameters only happen on error, the tree is dropped then
+                    for (int i = 0; i < arity; i++) if (parameters[i] == null) parameters[i] = new Node.Constant(Double.NaN);
+                    ret = new Node.Call(callee, List.of(parameters));
+                }
+            }
+            case TOK_OPEN -> {
+                nextToken();
+                ret = list();
+                if (type != TOK_CLOSE) error("expected ')', got " + token());
+                else nextToken();
+            }
+            default -> {
+                ret = new Node.Constant(Double.NaN);
+                error("unexpected " + token());
+            }
+        }
+
+        return ret;
+    }
+
+    private Node power() {
+        /* <power>     =    {("-" | "+")} <base> */
+        int sign = 1;
+        while (type == TOK_INFIX && (function == Node.Builtin.ADD || function == Node.Builtin.SUB)) {
+            if (function == Node.Builtin.SUB) sign = -sign;
+            nextToken();
+        }
+
+        Node ret = base();
+        return sign == 1 ? ret : new Node.Call(Node.Builtin.NEGATE, List.of(ret));
+    }
+
+    private Node factor() {
+        /* <factor>    =    <power> {"^" <power>} */
+        Node ret = power();
+
+        while (type == TOK_INFIX && function == Node.Builtin.POW) {
+            Node.Callee t = function;
+            nextToken();
+            ret = new Node.Call(t, List.of(ret, power()));
+        }
+
+        return ret;
+    }
+
+    private Node term() {
+        /* <term>      =    <factor> {("*" | "/" | "%") <factor>} */
+        Node ret = factor();
+
+        while (type == TOK_INFIX && (function == Node.Builtin.MUL || function == Node.Builtin.DIV || function == Node.Builtin.FMOD)) {
+            Node.Callee t = function;
+            nextToken();
+            ret = new Node.Call(t, List.of(ret, factor()));
+        }
+
+        return ret;
+    }
+
+    private Node expr() {
+        /* <expr>      =    <term> {("+" | "-") <term>} */
+        Node ret = term();
+
+        while (type == TOK_INFIX && (function == Node.Builtin.ADD || function == Node.Builtin.SUB)) {
+            Node.Callee t = function;
+            nextToken();
+            ret = new Node.Call(t, List.of(ret, term()));
+        }
+
+        return ret;
+    }
+
+    private Node list() {
+        /* <list>      =    <expr> {"," <expr>} */
+        Node ret = expr();
+
+        while (type == TOK_SEP) {
+            nextToken();
+            ret = new Node.Call(Node.Builtin.COMMA, List.of(ret, expr()));
+        }
+
+        return ret;
+    }
+}
@@ -1,27 +1,17 @@
 package com.valdisdot.util.jtinyexpr;
 
-import java.io.IOException;
-import java.io.InputStream;
 import java.lang.foreign.*;
-import java.lang.invoke.MethodHandle;
-import java.lang.invoke.MethodHandles;
-import java.lang.invoke.MethodType;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.LinkedList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class TinyExpressionCompiler implements ExpressionCompiler {
-    private static final Linker LINKER = Linker.nativeLinker();
-    private static final SymbolLookup LOOKUP;
-
-    private static final MethodHandle te_interp;
-    private static final MethodHandle te_compile;
-    private static final MethodHandle te_eval;
-    private static final MethodHandle te_free;
+    //rows per native call when heap columns are copied off-heap
+    private static final int BATCH_CHUNK = 8192;
 
     private static final StructLayout TE_VARIABLE_LAYOUT = MemoryLayout.structLayout(
             ValueLayout.ADDRESS.withName("name"),
@@ -31,70 +21,82 @@ public class TinyExpressionCompiler implements ExpressionCompiler {
             ValueLayout.ADDRESS.withName("context")
     );
 
-    static {
-        try {
-            Path libPath = loadLibraryFromResources();
-            LOOKUP = SymbolLookup.libraryLookup(libPath, Arena.global());
-
-            String os = System.getProperty("os.name").toLowerCase();
-            int LC_ALL = os.contains("win") ? 0 : 6; // Windows=0, Linux/macOS=6
-
-            //fix for cases where "foo(5,5)" gets interpreted as foo(double var)
-            MethodHandle setlocale = LINKER.downcallHandle(
-                    LINKER.defaultLookup().find("setlocale").get(),
-                    FunctionDescriptor.of(ValueLayout.ADDRESS, ValueLayout.JAVA_INT, ValueLayout.ADDRESS)
-            );
-
-            try (Arena temp = Arena.ofConfined()) {
-                MemorySegment result = (MemorySegment) setlocale.invoke(LC_ALL, temp.allocateFrom("C"));
-                if (result.equals(MemorySegment.NULL)) {
-                    System.err.println("Warning: Could not set C locale.");
-                }
-            } catch (Throwable e) {
-                throw new RuntimeException("Cannot set locale, floating numbers might be threat oddly", e);
-            }
+    private final CompiledExpressionCache cache;
+    private final ExpressionMetrics metrics;
+    private final boolean optimize;
+    private final ExpressionSlab slab;
 
-            te_interp = LINKER.downcallHandle(LOOKUP.find("te_interp").orElseThrow(), FunctionDescriptor.of(ValueLayout.JAVA_DOUBLE, ValueLayout.ADDRESS, ValueLayout.ADDRESS));
-            te_compile = LINKER.downcallHandle(LOOKUP.find("te_compile").orElseThrow(), FunctionDescriptor.of(ValueLayout.ADDRESS, ValueLayout.ADDRESS, ValueLayout.ADDRESS, ValueLayout.JAVA_INT, ValueLayout.ADDRESS));
-            te_eval = LINKER.downcallHandle(LOOKUP.find("te_eval").orElseThrow(), FunctionDescriptor.of(ValueLayout.JAVA_DOUBLE, ValueLayout.ADDRESS));
-            te_free = LINKER.downcallHandle(LOOKUP.find("te_free").orElseThrow(), FunctionDescriptor.ofVoid(ValueLayout.ADDRESS));
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to initialize TinyExpr native library", e);
-        }
+    //loads the native library and links the downcalls now instead of on first use, returns how long the bootstrap took
+    public static Duration preload() {
+        return Duration.ofNanos(NativeLibrary.load());
     }
 
-    private static Path loadLibraryFromResources() throws IOException {
-        String os = System.getProperty("os.name").toLowerCase();
-        String arch = System.getProperty("os.arch").toLowerCase();
-        String extension = os.contains("win") ? ".dll" : (os.contains("mac") ? ".dylib" : ".so");
-        String resourceName = "/lib/tinyexpr-" + arch + extension;
+    public TinyExpressionCompiler() {
+        this(null, null);
+    }
 
-        try (InputStream is = TinyExpressionCompiler.class.getResourceAsStream(resourceName)) {
-            if (is == null) throw new IOException("Native library not found: " + resourceName);
-            Path tempLib = Files.createTempFile("tinyexpr-", extension);
-            Files.copy(is, tempLib, StandardCopyOption.REPLACE_EXISTING);
-            tempLib.toFile().deleteOnExit();
-            return tempLib;
-        }
+    //compiled trees are reused through the cache, expressions still have to be closed to return them
+    public TinyExpressionCompiler(CompiledExpressionCache cache) {
+        this(cache, null);
+    }
+
+    //both are optional, without metrics nothing is timed and JFR events are only built while a recording enables them
+    public TinyExpressionCompiler(CompiledExpressionCache cache, ExpressionMetrics metrics) {
+        this(cache, metrics, false, null);
+    }
+
+    private TinyExpressionCompiler(CompiledExpressionCache cache, ExpressionMetrics metrics, boolean optimize, ExpressionSlab slab) {
+        this.cache = cache;
+        this.metrics = metrics;
+        this.optimize = optimize;
+        this.slab = slab;
+    }
+
+    /*
+    te_expr nodes are freed one by one by te_free, a tree cannot share subtrees,
+    so the native side gets the simplified and strength-reduced text, common subexpressions stay duplicated;
+    folded constants come from Java Math, not libm, a transcendental one may differ from compile() in the last bit
+     */
+    @Override
+    public TinyExpressionCompiler optimizing() {
+        return optimize ? this : new TinyExpressionCompiler(cache, metrics, true, slab);
+    }
+
+    //trees compiled by the returned compiler are packed into the slab, see ExpressionSlab
+    public TinyExpressionCompiler withSlab(ExpressionSlab slab) {
+        return new TinyExpressionCompiler(cache, metrics, optimize, slab);
+    }
+
+    //native bytes held by an expression of this compiler
+    public static ExpressionFootprint footprint(Expression expression) {
+        if (expression instanceof NativeExpression nativeExpression) return nativeExpression.tree.footprint;
+        throw new IllegalArgumentException("Not a native expression: " + expression.getClass().getName());
+    }
+
+    public static ExpressionFootprint footprint(SharedExpression expression) {
+        if (expression instanceof NativeSharedExpression nativeExpression) return nativeExpression.tree.footprint;
+        throw new IllegalArgumentException("Not a native expression: " + expression.getClass().getName());
+    }
+
+    private String source(String expression, Collection<Argument> args) throws ExpressionCompilerException {
+        if (!optimize) return expression;
+        TinyExprParser.Parsed parsed = TinyExprParser.parse(expression, args);
+        return Optimizer.print(Optimizer.optimize(parsed.root()).root(), parsed.variables());
     }
 
     @Override
     public boolean validate(String nonConstantExpression, Collection<Argument> args) {
-        try (NativeExpression expression = new NativeExpression(nonConstantExpression, args)) {
-            //without assignment will be always false
-            double res = expression.evaluate();
-            return true;
-        } catch (Exception e) {
-            return false;
-        }
+        //the parser port accepts exactly what te_compile accepts, so nothing is compiled and no upcall stub is created
+        return check(nonConstantExpression, args).valid();
     }
 
+    //te_interp never calls back into Java, text and error offset go through thread-local heap buffers
     @Override public boolean validate(String constantExpression) {
-        try (Arena arena = Arena.ofConfined()) {
-            MemorySegment errorPtr = arena.allocate(ValueLayout.JAVA_INT);
+        try {
+            NativeLibrary.Scratch scratch = NativeLibrary.scratch();
             //without assignment will be always false
-            double result = (double) te_interp.invokeExact(arena.allocateFrom(constantExpression), errorPtr);
-            return errorPtr.get(ValueLayout.JAVA_INT, 0) == 0;
+            double result = (double) NativeLibrary.te_interp_critical.invokeExact(scratch.text(constantExpression), scratch.error());
+            return scratch.errorOffset() == 0;
         } catch (Throwable t) {
             return false;
         }
@@ -106,20 +108,57 @@ public class TinyExpressionCompiler implements ExpressionCompiler {
 
     @Override
     public double interpret(String constantExpression) throws ExpressionCompilerException {
-        try (Arena arena = Arena.ofConfined()) {
-            MemorySegment errorPtr = arena.allocate(ValueLayout.JAVA_INT);
-            double result = (double) te_interp.invokeExact(arena.allocateFrom(constantExpression), errorPtr);
-            int errorIndex = errorPtr.get(ValueLayout.JAVA_INT, 0);
+        ExpressionEvents.Interpreted event = new ExpressionEvents.Interpreted();
+        event.begin();
+        long start = metrics == null ? 0 : System.nanoTime();
+        boolean succeeded = false;
+        try {
+            NativeLibrary.Scratch scratch = NativeLibrary.scratch();
+            double result = (double) NativeLibrary.te_interp_critical.invokeExact(scratch.text(constantExpression), scratch.error());
+            int errorIndex = scratch.errorOffset();
             if (errorIndex > 0) throw ExpressionCompilerException.parsingError(constantExpression, errorIndex);
+            succeeded = true;
             return result;
         } catch (Throwable t) {
             throw new ExpressionCompilerException(t);
+        } finally {
+            if (metrics != null) {
+                metrics.interpret().record(System.nanoTime() - start);
+                if (!succeeded) metrics.error();
+            }
+            if (event.shouldCommit()) {
+                event.expression = constantExpression;
+                event.succeeded = succeeded;
+                event.commit();
+            }
         }
     }
 
     @Override
     public Expression compile(String nonConstantExpression, Collection<Argument> args) throws ExpressionCompilerException {
-        return new NativeExpression(nonConstantExpression, args);
+        ExpressionEvents.Compiled event = new ExpressionEvents.Compiled();
+        event.begin();
+        long start = metrics == null ? 0 : System.nanoTime();
+        NativeTree tree = null;
+        boolean hit = false;
+        try {
+            if (cache == null) {
+                tree = new NativeTree(source(nonConstantExpression, args), args, Arena.ofConfined(), null, metrics, slab);
+            } else {
+                CacheKey key = CacheKey.of(nonConstantExpression, optimize, slab, args);
+                if (slab != null) slab.attach(cache);
+                tree = cache.lease(key);
+                hit = tree != null;
+                if (tree == null) {
+                    //shared arena, a cached tree may be leased by another thread later
+                    tree = new NativeTree(source(nonConstantExpression, args), args, Arena.ofShared(), null, metrics, slab);
+                    cache.offer(key, tree);
+                }
+            }
+            return new NativeExpression(tree, args, true, metrics);
+        } finally {
+            compiled(event, nonConstantExpression, start, hit, tree != null);
+        }
     }
 
     @Override
@@ -132,123 +171,619 @@ public class TinyExpressionCompiler implements ExpressionCompiler {
         return compile(constantExpression, List.of());
     }
 
-    private static class NativeExpression implements Expression {
-        private final Arena arena = Arena.ofConfined();
+    @Override
+    public Expression load(MemorySegment image, Argument... args) throws ExpressionCompilerException {
+        return load(image, Arrays.asList(args));
+    }
+
+    //te_assemble builds the tree from the image, nothing goes through te_compile; never cached
+    @Override
+    public Expression load(MemorySegment image, Collection<Argument> args) throws ExpressionCompilerException {
+        ExpressionEvents.Compiled event = new ExpressionEvents.Compiled();
+        event.begin();
+        long start = metrics == null ? 0 : System.nanoTime();
+        NativeTree tree = null;
+        String label = "<image>";
+        try {
+            TinyExprParser.Parsed parsed = ExpressionImage.decode(image, args);
+            Node root = optimize ? Optimizer.optimize(parsed.root()).root() : parsed.root();
+            label = Optimizer.print(root, parsed.variables());
+            tree = new NativeTree(label, args, Arena.ofConfined(), null, metrics, slab, root);
+            return new NativeExpression(tree, args, true, metrics);
+        } finally {
+            compiled(event, label, start, false, tree != null);
+        }
+    }
+
+    //not confined to the compiling thread and never cached, ExpressionPool hands such expressions from thread to thread
+    Expression compileDetached(String nonConstantExpression, Collection<Argument> args) throws ExpressionCompilerException {
+        ExpressionEvents.Compiled event = new ExpressionEvents.Compiled();
+        event.begin();
+        long start = metrics == null ? 0 : System.nanoTime();
+        NativeTree tree = null;
+        try {
+            tree = new NativeTree(source(nonConstantExpression, args), args, Arena.ofShared(), null, metrics, slab);
+            return new NativeExpression(tree, args, true, metrics);
+        } finally {
+            compiled(event, nonConstantExpression, start, false, tree != null);
+        }
+    }
+
+    @Override
+    public SharedExpression compileShared(String nonConstantExpression, Argument... args) throws ExpressionCompilerException {
+        return compileShared(nonConstantExpression, Arrays.asList(args));
+    }
+
+    @Override
+    public SharedExpression compileShared(String nonConstantExpression, Collection<Argument> args) throws ExpressionCompilerException {
+        ExpressionEvents.Compiled event = new ExpressionEvents.Compiled();
+        event.begin();
+        long start = metrics == null ? 0 : System.nanoTime();
+        NativeTree tree = null;
+        try {
+            tree = new NativeTree(source(nonConstantExpression, args), args, Arena.ofShared(), null, metrics, slab);
+            return new NativeSharedExpression(tree, args, metrics);
+        } finally {
+            compiled(event, nonConstantExpression, start, false, tree != null);
+        }
+    }
+
+    @Override
+    public Expression compile(String nonConstantExpression, VariableFrame frame, Argument... args) throws ExpressionCompilerException {
+        return compile(nonConstantExpression, frame, Arrays.asList(args));
+    }
+
+    //the tree is compiled against the frame memory itself, never cached
+    @Override
+    public Expression compile(String nonConstantExpression, VariableFrame frame, Collection<Argument> args) throws ExpressionCompilerException {
+        ExpressionEvents.Compiled event = new ExpressionEvents.Compiled();
+        event.begin();
+        long start = metrics == null ? 0 : System.nanoTime();
+        NativeTree tree = null;
+        try {
+            tree = new NativeTree(source(nonConstantExpression, args), args, Arena.ofConfined(), frame, metrics, slab);
+            return new NativeExpression(tree, args, false, metrics);
+        } finally {
+            compiled(event, nonConstantExpression, start, false, tree != null);
+        }
+    }
+
+    @Override
+    public ExpressionProgram compileAll(Map<String, String> formulas, Argument... args) throws ExpressionCompilerException {
+        return compileAll(formulas, Arrays.asList(args));
+    }
+
+    /*
+    every formula is compiled against one frame: variables first, then the outputs, so a later formula reads an earlier result
+    straight from its output slot; te_expr trees cannot share nodes, so common subtrees are only shared through named outputs
+     */
+    @Override
+    public ExpressionProgram compileAll(Map<String, String> formulas, Collection<Argument> args) throws ExpressionCompilerException {
+        ExpressionEvents.Compiled event = new ExpressionEvents.Compiled();
+        event.begin();
+        long start = metrics == null ? 0 : System.nanoTime();
+        NativeProgram program = null;
+        try {
+            List<List<Argument>> perFormula = Programs.arguments(formulas, args);
+            int variableCount = Programs.variableCount(args);
+            Arena arena = Arena.ofConfined();
+            VariableFrame frame = new VariableFrame(arena, variableCount + formulas.size());
+            List<NativeTree> trees = new ArrayList<>(formulas.size());
+            try {
+                int i = 0;
+                for (String formula : formulas.values()) {
+                    List<Argument> visible = perFormula.get(i++);
+                    trees.add(new NativeTree(source(formula, visible), visible, Arena.ofConfined(), frame, metrics, slab));
+                }
+            } catch (ExpressionCompilerException e) {
+                trees.forEach(NativeTree::release);
+                arena.close();
+                throw e;
+            }
+            program = new NativeProgram(arena, frame, trees, args, List.copyOf(formulas.keySet()), metrics);
+            return program;
+        } finally {
+            compiled(event, String.join("; ", formulas.values()), start, false, program != null);
+        }
+    }
+
+    private void compiled(ExpressionEvents.Compiled event, String expression, long start, boolean cacheHit, boolean succeeded) {
+        if (metrics != null) {
+            metrics.compile().record(System.nanoTime() - start);
+            if (!succeeded) metrics.error();
+        }
+        if (event.shouldCommit()) {
+            event.expression = expression;
+            event.cacheHit = cacheHit;
+            event.succeeded = succeeded;
+            event.commit();
+        }
+    }
+
+    //compiled te_expr with its arena, shared by consecutive leases when cached
+    static final class NativeTree {
+        private final String expression;
+        private final Arena arena;
+        //a slab tree is packed into slab memory, it is not te_free'd and its arena only lives through compilation
+        private final ExpressionSlab slab;
         private final MemorySegment tePtr;
-        private final LinkedList<Variable> variables = new LinkedList<>();
+        //postfix form of the tree for evaluate(), te_eval_flat gives the same bits as te_eval without recursion
+        private final MemorySegment flat;
+        //one contiguous block (or the caller's frame), slots follow the order of variable arguments
+        private final MemorySegment variableValues;
+        private final int variableCount;
+        //TE_CLOSURE contexts of the function arguments, rebinding them points a cached tree to other Function instances
+        private final MemorySegment[] contexts;
+        //no custom functions means no upcalls, compile and evaluate may use critical downcalls
+        private final boolean critical;
+        private final long weight;
+        private final ExpressionFootprint footprint;
+        private final ExpressionMetrics metrics;
+        private int refs = 1;
+        private boolean leased = true;
+
+        private NativeTree(String expression, Collection<Argument> arguments, Arena arena, VariableFrame frame, ExpressionMetrics metrics, ExpressionSlab slab) throws ExpressionCompilerException {
+            this(expression, arguments, arena, frame, metrics, slab, null);
+        }
 
-        public NativeExpression(String expression, Collection<Argument> arguments) throws ExpressionCompilerException {
+        //with a root the tree is assembled from it by te_assemble, the expression text is only a label then
+        private NativeTree(String expression, Collection<Argument> arguments, Arena arena, VariableFrame frame, ExpressionMetrics metrics, ExpressionSlab slab, Node root) throws ExpressionCompilerException {
+            this.expression = expression;
+            this.arena = arena;
+            this.slab = slab;
+            this.metrics = metrics;
             List<Argument> args = arguments.stream()
                     .sorted((a, b) -> Integer.compare(b.name().length(), a.name().length()))
                     .toList();
+            Map<Argument, Integer> slots = new IdentityHashMap<>();
+            int variables = 0, functions = 0;
+            for (Argument arg : arguments) {
+                if (arg.value() instanceof Variable) slots.put(arg, variables++);
+                else if (arg.value() instanceof Function) slots.put(arg, functions++);
+            }
+            this.variableCount = variables;
+            this.contexts = new MemorySegment[functions];
+            this.critical = functions == 0;
+            long variableBytes = frame == null ? variableCount * ValueLayout.JAVA_DOUBLE.byteSize() : 0;
+            long metadataBytes = args.size() * TE_VARIABLE_LAYOUT.byteSize();
+            MemorySegment compiled = MemorySegment.NULL;
+            //every block taken from the slab so far, given back as released if compilation fails
+            long slabBytes = 0;
             try {
+                if (frame != null && frame.size() < variableCount) throw new ExpressionCompilerException(String.format("Frame holds %d values, expression needs %d", frame.size(), variableCount));
+                if (frame != null) this.variableValues = frame.segment();
+                else if (variableCount == 0) this.variableValues = MemorySegment.NULL;
+                else if (slab != null) {
+                    this.variableValues = slab.allocate(variableBytes, ValueLayout.JAVA_DOUBLE.byteAlignment());
+                    slabBytes = variableBytes;
+                } else this.variableValues = arena.allocate(ValueLayout.JAVA_DOUBLE, variableCount);
                 MemorySegment varArray = args.isEmpty() ? MemorySegment.NULL : arena.allocate(TE_VARIABLE_LAYOUT, args.size());
                 int i = 0;
+                int[] variableEntries = new int[variableCount];
+                Map<Function, Integer> functionEntries = new IdentityHashMap<>();
                 for (Argument arg : args) {
                     MemorySegment struct = varArray.asSlice(i * TE_VARIABLE_LAYOUT.byteSize(), TE_VARIABLE_LAYOUT);
-                    bindArgument(struct, arg);
+                    metadataBytes += bindArgument(struct, arg, slots.getOrDefault(arg, -1));
+                    if (arg.value() instanceof Variable) variableEntries[slots.get(arg)] = i;
+                    else if (arg.value() instanceof Function f) functionEntries.putIfAbsent(f, i);
                     i++;
                 }
-                MemorySegment errorOffset = arena.allocate(ValueLayout.JAVA_INT);
-                this.tePtr = (MemorySegment) te_compile.invokeExact( arena.allocateFrom(expression), varArray, args.size(), errorOffset);
-                if (tePtr.equals(MemorySegment.NULL)) throw ExpressionCompilerException.parsingError(expression, errorOffset.get(ValueLayout.JAVA_INT, 0));
-            } catch (ExpressionCompilerException e) {
-                arena.close();
-                throw e;
+                if (root != null) {
+                    ExpressionImage.Assembly assembly = ExpressionImage.Assembly.of(root, variableEntries, functionEntries);
+                    NativeLibrary.Scratch scratch = NativeLibrary.scratch();
+                    compiled = (MemorySegment) NativeLibrary.te_assemble.invokeExact(MemorySegment.ofArray(assembly.code()), assembly.code().length,
+                            MemorySegment.ofArray(assembly.constants()), assembly.constants().length, varArray, args.size(), scratch.error());
+                    if (compiled.equals(MemorySegment.NULL)) throw new ExpressionCompilerException(String.format("Failed to assemble '%s', error %d", expression, scratch.errorOffset()));
+                } else if (critical) {
+                    NativeLibrary.Scratch scratch = NativeLibrary.scratch();
+                    compiled = (MemorySegment) NativeLibrary.te_compile_critical.invokeExact(scratch.text(expression), varArray, args.size(), scratch.error());
+                    if (compiled.equals(MemorySegment.NULL)) throw ExpressionCompilerException.parsingError(expression, scratch.errorOffset());
+                } else {
+                    MemorySegment errorOffset = arena.allocate(ValueLayout.JAVA_INT);
+                    MemorySegment text = arena.allocateFrom(expression);
+                    metadataBytes += text.byteSize() + errorOffset.byteSize();
+                    compiled = (MemorySegment) NativeLibrary.te_compile.invokeExact(text, varArray, args.size(), errorOffset);
+                    if (compiled.equals(MemorySegment.NULL)) throw ExpressionCompilerException.parsingError(expression, errorOffset.get(ValueLayout.JAVA_INT, 0));
+                }
+                int[] nodes = new int[1];
+                long nodeBytes = (long) NativeLibrary.te_size.invokeExact(compiled, MemorySegment.ofArray(nodes));
+                if (slab != null) {
+                    //pre-order copy into one block, the malloc'ed nodes and the compile-time metadata are freed right away
+                    MemorySegment packed = slab.allocate(nodeBytes, ValueLayout.ADDRESS.byteAlignment());
+                    slabBytes += nodeBytes;
+                    this.tePtr = (MemorySegment) NativeLibrary.te_pack.invokeExact(compiled, packed);
+                    NativeLibrary.te_free.invokeExact(compiled);
+                    compiled = MemorySegment.NULL;
+                    arena.close();
+                    metadataBytes = 0;
+                } else this.tePtr = compiled;
+                long flatBytes = (long) NativeLibrary.te_flat_size.invokeExact(tePtr);
+                MemorySegment program;
+                if (slab != null) {
+                    program = slab.allocate(flatBytes, ValueLayout.ADDRESS.byteAlignment());
+                    slabBytes += flatBytes;
+                } else program = arena.allocate(flatBytes, ValueLayout.ADDRESS.byteAlignment());
+                this.flat = (MemorySegment) NativeLibrary.te_flatten.invokeExact(tePtr, program);
+                this.footprint = new ExpressionFootprint(nodes[0], nodeBytes, flatBytes, variableBytes, metadataBytes, slab != null);
             } catch (Throwable t) {
-                arena.close();
+                unregisterFunctions();
+                try {
+                    NativeLibrary.te_free.invokeExact(compiled);
+                } catch (Throwable ignored) {
+                }
+                if (arena.scope().isAlive()) arena.close();
+                if (slab != null) slab.release(slabBytes);
+                if (t instanceof ExpressionCompilerException e) throw e;
                 throw new ExpressionCompilerException(t);
             }
+            this.weight = footprint.totalBytes();
+            if (metrics != null) metrics.allocated(weight);
         }
 
-        private void bindArgument(MemorySegment struct, Argument argument) throws Throwable {
-            struct.set(ValueLayout.ADDRESS, 0, arena.allocateFrom(argument.name()));
+        //returns the bytes of the name when it is allocated for this tree alone
+        private long bindArgument(MemorySegment struct, Argument argument, int slot) throws Throwable {
+            MemorySegment name = slab != null ? slab.name(argument.name()) : arena.allocateFrom(argument.name());
+            struct.set(ValueLayout.ADDRESS, 0, name);
             ArgumentValue argumentValue = argument.value();
-            if (argumentValue instanceof Variable v) {
-                variables.add(v);
-                MemorySegment valPtr = arena.allocateFrom(ValueLayout.JAVA_DOUBLE, v.value());
-                v.onUpdate(val -> valPtr.set(ValueLayout.JAVA_DOUBLE, 0, val));
-
-                struct.set(ValueLayout.ADDRESS, 8, valPtr);
+            if (argumentValue instanceof Variable) {
+                struct.set(ValueLayout.ADDRESS, 8, slot(slot));
                 struct.set(ValueLayout.JAVA_INT, 16, 0);
             } else if (argumentValue instanceof Function f) {
-                bindFunction(struct, f);
+                bindFunction(struct, f, slot);
             } else throw new ExpressionCompilerException(String.format("Unknown argument value type: %s", argumentValue.getClass()));
+            return slab != null ? 0 : name.byteSize();
         }
 
-        private void bindFunction(MemorySegment struct, Function function) throws Throwable {
-            MemorySegment stub;
-            FunctionDescriptor desc;
-            int arity;
-            var lookup = MethodHandles.lookup();
-
-            if (function instanceof Function.NoArgs fn) {
-                arity = 0;
-                desc = FunctionDescriptor.of(ValueLayout.JAVA_DOUBLE);
-                MethodHandle mh = lookup.findVirtual(Function.NoArgs.class, "apply", MethodType.methodType(double.class)).bindTo(fn);
-                stub = LINKER.upcallStub(mh, desc, arena);
-            } else if (function instanceof Function.OneArgs fn) {
-                arity = 1;
-                desc = FunctionDescriptor.of(ValueLayout.JAVA_DOUBLE, ValueLayout.JAVA_DOUBLE);
-                MethodHandle mh = lookup.findVirtual(Function.OneArgs.class, "apply", MethodType.methodType(double.class, double.class)).bindTo(fn);
-                stub = LINKER.upcallStub(mh, desc, arena);
-            } else if (function instanceof Function.TwoArgs fn) {
-                arity = 2;
-                desc = FunctionDescriptor.of(ValueLayout.JAVA_DOUBLE, ValueLayout.JAVA_DOUBLE, ValueLayout.JAVA_DOUBLE);
-                MethodHandle mh = lookup.findVirtual(Function.TwoArgs.class, "apply", MethodType.methodType(double.class, double.class, double.class)).bindTo(fn);
-                stub = LINKER.upcallStub(mh, desc, arena);
-            } else if (function instanceof Function.ThreeArgs fn) {
-                arity = 3;
-                desc = FunctionDescriptor.of(ValueLayout.JAVA_DOUBLE, ValueLayout.JAVA_DOUBLE, ValueLayout.JAVA_DOUBLE, ValueLayout.JAVA_DOUBLE);
-                MethodHandle mh = lookup.findVirtual(Function.ThreeArgs.class, "apply", MethodType.methodType(double.class, double.class, double.class, double.class)).bindTo(fn);
-                stub = LINKER.upcallStub(mh, desc, arena);
-            } else if (function instanceof Function.FourArgs fn) {
-                arity = 4;
-                desc = FunctionDescriptor.of(ValueLayout.JAVA_DOUBLE, ValueLayout.JAVA_DOUBLE, ValueLayout.JAVA_DOUBLE, ValueLayout.JAVA_DOUBLE, ValueLayout.JAVA_DOUBLE);
-                MethodHandle mh = lookup.findVirtual(Function.FourArgs.class, "apply", MethodType.methodType(double.class, double.class, double.class, double.class, double.class)).bindTo(fn);
-                stub = LINKER.upcallStub(mh, desc, arena);
-            } else if (function instanceof Function.FiveArgs fn) {
-                arity = 5;
-                desc = FunctionDescriptor.of(ValueLayout.JAVA_DOUBLE, ValueLayout.JAVA_DOUBLE, ValueLayout.JAVA_DOUBLE, ValueLayout.JAVA_DOUBLE, ValueLayout.JAVA_DOUBLE, ValueLayout.JAVA_DOUBLE);
-                MethodHandle mh = lookup.findVirtual(Function.FiveArgs.class, "apply", MethodType.methodType(double.class, double.class, double.class, double.class, double.class, double.class)).bindTo(fn);
-                stub = LINKER.upcallStub(mh, desc, arena);
-            } else if (function instanceof Function.SixArgs fn) {
-                arity = 6;
-                desc = FunctionDescriptor.of(ValueLayout.JAVA_DOUBLE, ValueLayout.JAVA_DOUBLE, ValueLayout.JAVA_DOUBLE, ValueLayout.JAVA_DOUBLE, ValueLayout.JAVA_DOUBLE, ValueLayout.JAVA_DOUBLE, ValueLayout.JAVA_DOUBLE);
-                MethodHandle mh = lookup.findVirtual(Function.SixArgs.class, "apply", MethodType.methodType(double.class, double.class, double.class, double.class, double.class, double.class, double.class)).bindTo(fn);
-                stub = LINKER.upcallStub(mh, desc, arena);
-            } else if (function instanceof Function.SevenArgs fn) {
-                arity = 7;
-                desc = FunctionDescriptor.of(ValueLayout.JAVA_DOUBLE, ValueLayout.JAVA_DOUBLE, ValueLayout.JAVA_DOUBLE, ValueLayout.JAVA_DOUBLE, ValueLayout.JAVA_DOUBLE, ValueLayout.JAVA_DOUBLE, ValueLayout.JAVA_DOUBLE, ValueLayout.JAVA_DOUBLE);
-                MethodHandle mh = lookup.findVirtual(Function.SevenArgs.class, "apply", MethodType.methodType(double.class, double.class, double.class, double.class, double.class, double.class, double.class, double.class)).bindTo(fn);
-                stub = LINKER.upcallStub(mh, desc, arena);
-            } else {
-                throw new ExpressionCompilerException(String.format("Unknown function type: %s", function.getClass()));
-            }
+        private void bindFunction(MemorySegment struct, Function function, int index) throws Throwable {
+            int arity = Functions.arity(function);
+            MemorySegment context = ClosureRegistry.register(metrics == null ? function : metrics.timed(function));
+            contexts[index] = context;
 
-            int type = (8 + arity) | (function.isPure() ? 32 : 0);
-            struct.set(ValueLayout.ADDRESS, 8, stub);
+            int type = (16 + arity) | (function.isPure() ? 32 : 0);
+            struct.set(ValueLayout.ADDRESS, 8, ClosureRegistry.stub(arity));
             struct.set(ValueLayout.JAVA_INT, 16, type);
+            struct.set(ValueLayout.ADDRESS, 24, context);
+        }
+
+        private void unregisterFunctions() {
+            for (MemorySegment context : contexts) {
+                if (context != null) ClosureRegistry.unregister(context);
+            }
+        }
+
+        MemorySegment slot(int index) {
+            return variableValues.asSlice(index * ValueLayout.JAVA_DOUBLE.byteSize(), ValueLayout.JAVA_DOUBLE);
+        }
+
+        long weight() {
+            return weight;
+        }
+
+        //a tree serves one lease at a time, its variable slots and function targets belong to the lessee
+        synchronized boolean tryLease() {
+            if (leased || refs == 0) return false;
+            leased = true;
+            refs++;
+            return true;
+        }
+
+        synchronized void endLease() {
+            leased = false;
+            release();
+        }
+
+        synchronized void retain() {
+            refs++;
         }
 
+        synchronized void release() {
+            if (--refs > 0) return;
+            try {
+                if (slab == null) NativeLibrary.te_free.invokeExact(tePtr);
+            } catch (Throwable ignored) {
+            } finally {
+                unregisterFunctions();
+                if (slab == null) arena.close();
+                else slab.release(weight);
+                if (metrics != null) metrics.freed(weight);
+            }
+        }
+    }
+
+    //cache key: expression text, whether the tree was built from optimized source, the slab holding it (by identity, null for
+    //the heap), plus the argument signature in argument order
+    record CacheKey(String expression, boolean optimized, ExpressionSlab slab, List<Object> signature) {
+        private record Slot(String name, int arity, Function pure) {
+        }
+
+        //variables and impure functions are rebound on lease, pure functions may be folded into the tree so they are kept by identity
+        static CacheKey of(String expression, boolean optimized, ExpressionSlab slab, Collection<Argument> arguments) throws ExpressionCompilerException {
+            List<Object> signature = new ArrayList<>(arguments.size());
+            for (Argument arg : arguments) {
+                if (arg.value() instanceof Function f) signature.add(new Slot(arg.name(), Functions.arity(f), f.isPure() ? f : null));
+                else signature.add(new Slot(arg.name(), -1, null));
+            }
+            return new CacheKey(expression, optimized, slab, signature);
+        }
+    }
+
+    private static class NativeExpression implements Expression, Specializable {
+        private final NativeTree tree;
+        private final List<Argument> arguments;
+        private final List<Variable> variables = new ArrayList<>();
+        private final ExpressionMetrics metrics;
+        private int evaluations;
+
+        //unbound expressions read their variables from a frame the caller writes to
+        public NativeExpression(NativeTree tree, Collection<Argument> arguments, boolean bindVariables, ExpressionMetrics metrics) {
+            this.tree = tree;
+            //frame expressions have no variables of their own to keep bound in a specialization
+            this.arguments = bindVariables ? List.copyOf(arguments) : null;
+            this.metrics = metrics;
+            int function = 0;
+            for (Argument arg : arguments) {
+                if (arg.value() instanceof Variable v && bindVariables) {
+                    v.bind(tree.slot(variables.size()));
+                    variables.add(v);
+                } else if (arg.value() instanceof Function f) ClosureRegistry.rebind(tree.contexts[function++], metrics == null ? f : metrics.timed(f));
+            }
+            if (metrics != null) metrics.opened();
+        }
+
+        //the text of the tree (after the optimizing pass or printed from an image) parses back to the same tree
+        @Override
+        public TinyExprParser.Parsed parsed() throws ExpressionCompilerException {
+            if (arguments == null) throw new IllegalArgumentException("Expression does not keep its tree");
+            return TinyExprParser.parse(tree.expression, arguments);
+        }
+
+        //the event is scalar-replaced by the JIT, the uninstrumented path is a single te_eval downcall
         @Override
         public double evaluate() {
+            ExpressionEvents.Evaluated event = new ExpressionEvents.Evaluated();
+            if (metrics == null && !event.isEnabled()) return evaluateTree();
+            boolean sampled = event.isEnabled() && evaluations++ % ExpressionEvents.SAMPLE_RATE == 0;
+            if (sampled) event.begin();
+            long start = metrics == null ? 0 : System.nanoTime();
+            try {
+                return evaluateTree();
+            } finally {
+                if (metrics != null) metrics.evaluate().record(System.nanoTime() - start);
+                if (sampled && event.shouldCommit()) {
+                    event.expression = tree.expression;
+                    event.rows = 1;
+                    event.commit();
+                }
+            }
+        }
+
+        private double evaluateTree() {
+            try {
+                if (tree.critical) return (double) NativeLibrary.te_eval_flat_critical.invokeExact(tree.flat);
+                return (double) NativeLibrary.te_eval_flat.invokeExact(tree.flat);
+            } catch (Throwable t) {
+                throw new RuntimeException("Evaluation failed", t);
+            }
+        }
+
+        @Override
+        public void evaluateBatch(double[][] columns, double[] out) {
+            checkColumns(columns.length);
+            for (double[] column : columns) {
+                if (column.length < out.length) throw new IllegalArgumentException("Column is shorter than the output");
+            }
+            ExpressionEvents.Evaluated event = new ExpressionEvents.Evaluated();
+            event.begin();
+            long start = metrics == null ? 0 : System.nanoTime();
+            double[] saved = saveVariables();
+            try (Arena batchArena = Arena.ofConfined()) {
+                int chunk = Math.min(out.length, BATCH_CHUNK);
+                MemorySegment[] nativeColumns = new MemorySegment[columns.length];
+                for (int i = 0; i < columns.length; i++) nativeColumns[i] = batchArena.allocate(ValueLayout.JAVA_DOUBLE, Math.max(chunk, 1));
+                MemorySegment nativeOut = batchArena.allocate(ValueLayout.JAVA_DOUBLE, Math.max(chunk, 1));
+                MemorySegment pointers = pointers(batchArena, nativeColumns);
+                for (int from = 0; from < out.length; from += chunk) {
+                    int rows = Math.min(chunk, out.length - from);
+                    for (int i = 0; i < columns.length; i++) MemorySegment.copy(columns[i], from, nativeColumns[i], ValueLayout.JAVA_DOUBLE, 0, rows);
+                    evaluateBatch(pointers, columns.length, nativeOut, rows);
+                    MemorySegment.copy(nativeOut, ValueLayout.JAVA_DOUBLE, 0, out, from, rows);
+                }
+            } finally {
+                restoreVariables(saved);
+                batched(event, start, out.length);
+            }
+        }
+
+        @Override
+        public void evaluateBatch(MemorySegment[] columns, MemorySegment out, long rows) {
+            checkColumns(columns.length);
+            long bytes = rows * ValueLayout.JAVA_DOUBLE.byteSize();
+            if (!out.isNative() || out.byteSize() < bytes) throw new IllegalArgumentException("Output must be a native segment of at least " + rows + " doubles");
+            for (MemorySegment column : columns) {
+                if (!column.isNative() || column.byteSize() < bytes) throw new IllegalArgumentException("Columns must be native segments of at least " + rows + " doubles");
+            }
+            ExpressionEvents.Evaluated event = new ExpressionEvents.Evaluated();
+            event.begin();
+            long start = metrics == null ? 0 : System.nanoTime();
+            double[] saved = saveVariables();
+            try (Arena batchArena = Arena.ofConfined()) {
+                evaluateBatch(pointers(batchArena, columns), columns.length, out, rows);
+            } finally {
+                restoreVariables(saved);
+                batched(event, start, rows);
+            }
+        }
+
+        //batches are not sampled, one event per call
+        private void batched(ExpressionEvents.Evaluated event, long start, long rows) {
+            if (metrics != null) metrics.evaluate().record(rows, System.nanoTime() - start);
+            if (event.shouldCommit()) {
+                event.expression = tree.expression;
+                event.rows = rows;
+                event.commit();
+            }
+        }
+
+        private void evaluateBatch(MemorySegment pointers, int columnCount, MemorySegment out, long rows) {
+            try {
+                NativeLibrary.te_eval_batch.invokeExact(tree.tePtr, tree.variableValues, columnCount, pointers, out, rows);
+            } catch (Throwable t) {
+                throw new RuntimeException("Evaluation failed", t);
+            }
+        }
+
+        private void checkColumns(int count) {
+            if (count != tree.variableCount) throw new IllegalArgumentException(String.format("Expected %d columns, one per variable, got %d", tree.variableCount, count));
+        }
+
+        private static MemorySegment pointers(Arena arena, MemorySegment[] columns) {
+            MemorySegment pointers = arena.allocate(ValueLayout.ADDRESS, Math.max(columns.length, 1));
+            for (int i = 0; i < columns.length; i++) pointers.setAtIndex(ValueLayout.ADDRESS, i, columns[i]);
+            return pointers;
+        }
+
+        private double[] saveVariables() {
+            return tree.variableCount == 0 ? new double[0] : tree.variableValues.asSlice(0, tree.variableCount * ValueLayout.JAVA_DOUBLE.byteSize()).toArray(ValueLayout.JAVA_DOUBLE);
+        }
+
+        private void restoreVariables(double[] saved) {
+            MemorySegment.copy(saved, 0, tree.variableValues, ValueLayout.JAVA_DOUBLE, 0, saved.length);
+        }
+
+        @Override
+        public void close() {
+            for (int i = 0; i < variables.size(); i++) variables.get(i).unbind(tree.slot(i));
+            tree.endLease();
+            if (metrics != null) metrics.closed();
+        }
+    }
+
+    //one te_eval_program downcall evaluates all trees in order, results land in the output slots of the frame
+    private static class NativeProgram implements ExpressionProgram {
+        private final Arena arena;
+        private final VariableFrame frame;
+        private final List<NativeTree> trees;
+        private final List<Variable> variables = new ArrayList<>();
+        private final List<String> outputs;
+        private final ExpressionMetrics metrics;
+        private final MemorySegment expressions;
+        private final MemorySegment results;
+        private final boolean critical;
+
+        public NativeProgram(Arena arena, VariableFrame frame, List<NativeTree> trees, Collection<Argument> arguments, List<String> outputs, ExpressionMetrics metrics) {
+            this.arena = arena;
+            this.frame = frame;
+            this.trees = trees;
+            this.outputs = outputs;
+            this.metrics = metrics;
+            this.expressions = arena.allocate(ValueLayout.ADDRESS, trees.size());
+            for (int i = 0; i < trees.size(); i++) expressions.setAtIndex(ValueLayout.ADDRESS, i, trees.get(i).tePtr);
+            int variableCount = Programs.variableCount(arguments);
+            this.results = frame.segment().asSlice(variableCount * ValueLayout.JAVA_DOUBLE.byteSize(), outputs.size() * ValueLayout.JAVA_DOUBLE.byteSize());
+            this.critical = trees.stream().allMatch(t -> t.critical);
+            for (Argument arg : arguments) {
+                if (arg.value() instanceof Variable v) {
+                    v.bind(slot(variables.size()));
+                    variables.add(v);
+                }
+            }
+            if (metrics != null) metrics.opened();
+        }
+
+        private MemorySegment slot(int index) {
+            return frame.segment().asSlice(index * ValueLayout.JAVA_DOUBLE.byteSize(), ValueLayout.JAVA_DOUBLE);
+        }
+
+        @Override
+        public List<String> outputs() {
+            return outputs;
+        }
+
+        @Override
+        public void evaluateInto(double[] out) {
+            if (out.length < outputs.size()) throw new IllegalArgumentException(String.format("Expected room for %d outputs, got %d", outputs.size(), out.length));
+            long start = metrics == null ? 0 : System.nanoTime();
             try {
-                return (double) te_eval.invokeExact(tePtr);
+                if (critical) NativeLibrary.te_eval_program_critical.invokeExact(expressions, trees.size(), results);
+                else NativeLibrary.te_eval_program.invokeExact(expressions, trees.size(), results);
             } catch (Throwable t) {
                 throw new RuntimeException("Evaluation failed", t);
             }
+            if (metrics != null) metrics.evaluate().record(outputs.size(), System.nanoTime() - start);
+            MemorySegment.copy(results, ValueLayout.JAVA_DOUBLE, 0, out, 0, outputs.size());
         }
 
         @Override
         public void close() {
+            for (int i = 0; i < variables.size(); i++) variables.get(i).unbind(slot(i));
+            trees.forEach(NativeTree::release);
+            arena.close();
+            if (metrics != null) metrics.closed();
+        }
+    }
+
+    //the tree is never written after te_compile, te_eval_frame reads variable values from the caller's frame
+    private static class NativeSharedExpression implements SharedExpression {
+        private final NativeTree tree;
+        private final List<String> variables;
+        private final double[] defaults;
+        private final ExpressionMetrics metrics;
+
+        public NativeSharedExpression(NativeTree tree, Collection<Argument> arguments, ExpressionMetrics metrics) {
+            this.tree = tree;
+            this.metrics = metrics;
+            this.variables = arguments.stream().filter(a -> a.value() instanceof Variable).map(Argument::name).toList();
+            this.defaults = arguments.stream().filter(a -> a.value() instanceof Variable).mapToDouble(a -> ((Variable) a.value()).value()).toArray();
+            if (metrics != null) metrics.opened();
+        }
+
+        @Override
+        public List<String> variables() {
+            return variables;
+        }
+
+        @Override
+        public VariableFrame newFrame() {
+            return new VariableFrame(defaults.length).set(defaults);
+        }
+
+        @Override
+        public double evaluate(VariableFrame frame) {
+            if (frame.size() < defaults.length) throw new IllegalArgumentException(String.format("Expected a frame of %d variables, got %d", defaults.length, frame.size()));
+            return evaluate(frame.segment());
+        }
+
+        @Override
+        public double evaluate(double... values) {
+            if (values.length != defaults.length) throw new IllegalArgumentException(String.format("Expected %d values, got %d", defaults.length, values.length));
+            //the array itself is the frame when no upcall can run while native code holds it
+            return evaluate(tree.critical ? MemorySegment.ofArray(values) : VariableFrame.scratch(values).segment());
+        }
+
+        //not sampled per expression, threads would contend on a shared counter
+        private double evaluate(MemorySegment frame) {
+            if (metrics == null) return evaluateTree(frame);
+            long start = System.nanoTime();
             try {
-                te_free.invokeExact(tePtr);
-                while (!variables.isEmpty()) variables.pop().reset();
-            } catch (Throwable ignored) {
+                return evaluateTree(frame);
             } finally {
-                arena.close();
+                metrics.evaluate().record(System.nanoTime() - start);
             }
         }
+
+        private double evaluateTree(MemorySegment frame) {
+            try {
+                if (tree.critical) return (double) NativeLibrary.te_eval_frame_critical.invokeExact(tree.tePtr, tree.variableValues, tree.variableCount, frame);
+                return (double) NativeLibrary.te_eval_frame.invokeExact(tree.tePtr, tree.variableValues, tree.variableCount, frame);
+            } catch (Throwable t) {
+                throw new RuntimeException("Evaluation failed", t);
+            }
+        }
+
+        @Override
+        public void close() {
+            tree.release();
+            if (metrics != null) metrics.closed();
+        }
     }
-}
\ No newline at end of file
+}
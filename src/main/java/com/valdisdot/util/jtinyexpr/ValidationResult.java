@@ -0,0 +1,8 @@
+package com.valdisdot.util.jtinyexpr;
+
+//errorOffset is the 1-based character position tinyexpr reports, 0 if the expression is valid or the arguments are at fault
+public record ValidationResult(String expression, int errorOffset, String reason) {
+    public boolean valid() {
+        return reason == null;
+    }
+}
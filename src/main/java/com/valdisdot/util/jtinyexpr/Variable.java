@@ -1,11 +1,20 @@
 package com.valdisdot.util.jtinyexpr;
 
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Arrays;
 import java.util.function.Consumer;
 
+//value slots of every expression the variable is bound to, updates are plain stores without boxing
 public class Variable implements ArgumentValue {
+    private static final MemorySegment[] UNBOUND = new MemorySegment[0];
+    private static final Runnable[] UNOBSERVED = new Runnable[0];
+
     private final double initialValue;
     private double lastValue;
-    private Consumer<Double> listener;
+    private MemorySegment[] slots = UNBOUND;
+    //run after every change, used by ReactiveGraph to mark dependent formulas
+    private Runnable[] observers = UNOBSERVED;
 
     public Variable(double value) {
         this.lastValue = value;
@@ -17,31 +26,82 @@ public class Variable implements ArgumentValue {
     }
 
     public void update(double value) {
-        if (listener == null) throw new IllegalStateException("Variable not bound to an expression");
+        checkBound();
         this.lastValue = value;
-        this.listener.accept(this.lastValue);
+        store();
     }
 
     public void increment() {
-        if (listener == null) throw new IllegalStateException("Variable not bound to an expression");
+        checkBound();
         this.lastValue++;
-        this.listener.accept(this.lastValue);
+        store();
     }
 
     public void decrement() {
-        if (listener == null) throw new IllegalStateException("Variable not bound to an expression");
+        checkBound();
         this.lastValue--;
-        this.listener.accept(this.lastValue);
+        store();
+    }
+
+    private void checkBound() {
+        if (slots.length == 0 && observers.length == 0) throw new IllegalStateException("Variable not bound to an expression");
+    }
+
+    private void store() {
+        for (MemorySegment slot : slots) slot.set(ValueLayout.JAVA_DOUBLE, 0, lastValue);
+        for (Runnable observer : observers) observer.run();
+    }
+
+    void observe(Runnable observer) {
+        observers = Arrays.copyOf(observers, observers.length + 1);
+        observers[observers.length - 1] = observer;
+    }
+
+    void unobserve(Runnable observer) {
+        for (int i = 0; i < observers.length; i++) {
+            if (observers[i] == observer) {
+                Runnable[] rest = new Runnable[observers.length - 1];
+                System.arraycopy(observers, 0, rest, 0, i);
+                System.arraycopy(observers, i + 1, rest, i, rest.length - i);
+                observers = rest;
+                return;
+            }
+        }
+    }
+
+    //slot is a single double of an expression (native or heap), it receives the current value right away
+    void bind(MemorySegment slot) {
+        slot.set(ValueLayout.JAVA_DOUBLE, 0, lastValue);
+        slots = Arrays.copyOf(slots, slots.length + 1);
+        slots[slots.length - 1] = slot;
+    }
+
+    //the variable returns to its initial value once the last expression is closed
+    void unbind(MemorySegment slot) {
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i].equals(slot)) {
+                MemorySegment[] rest = new MemorySegment[slots.length - 1];
+                System.arraycopy(slots, 0, rest, 0, i);
+                System.arraycopy(slots, i + 1, rest, i, rest.length - i);
+                slots = rest;
+                if (slots.length == 0) lastValue = initialValue;
+                return;
+            }
+        }
     }
 
+    //bound expressions are notified through their slots now, the listener is called with the value after every change
+    //and counts as a binding for update(); listeners are not removed by reset()
+    @Deprecated
     protected void onUpdate(Consumer<Double> listener) {
-        if (this.listener == null) this.listener = listener;
-        else throw new IllegalStateException("Variable has already bound to an expression");
+        observe(() -> listener.accept(lastValue));
     }
 
+    //the value of every bound expression goes back to withValue, observers are not notified;
+    //unlike before slots, reset() does not unbind, a variable is unbound when its last expression is closed
     protected void reset(double withValue) {
         this.lastValue = withValue;
-        this.listener = null;
+        for (MemorySegment slot : slots) slot.set(ValueLayout.JAVA_DOUBLE, 0, withValue);
     }
 
     protected void reset() {
@@ -0,0 +1,62 @@
+package com.valdisdot.util.jtinyexpr;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+//contiguous off-heap block of variable values, one frame per thread or per call of a SharedExpression
+public final class VariableFrame {
+    private static final ThreadLocal<VariableFrame> SCRATCH = new ThreadLocal<>();
+
+    private final MemorySegment values;
+    private final int size;
+
+    //memory is released by the garbage collector
+    public VariableFrame(int size) {
+        this(Arena.ofAuto(), size);
+    }
+
+    public VariableFrame(Arena arena, int size) {
+        if (size < 0) throw new IllegalArgumentException("Frame size is negative");
+        this.size = size;
+        this.values = arena.allocate(ValueLayout.JAVA_DOUBLE, Math.max(size, 1));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public double get(int index) {
+        return values.getAtIndex(ValueLayout.JAVA_DOUBLE, checkIndex(index));
+    }
+
+    public VariableFrame set(int index, double value) {
+        values.setAtIndex(ValueLayout.JAVA_DOUBLE, checkIndex(index), value);
+        return this;
+    }
+
+    public VariableFrame set(double... values) {
+        if (values.length > size) throw new IllegalArgumentException(String.format("Frame holds %d values, got %d", size, values.length));
+        MemorySegment.copy(values, 0, this.values, ValueLayout.JAVA_DOUBLE, 0, values.length);
+        return this;
+    }
+
+    //per-thread frame reused by SharedExpression.evaluate(double...)
+    static VariableFrame scratch(double... values) {
+        VariableFrame frame = SCRATCH.get();
+        if (frame == null || frame.size < values.length) {
+            frame = new VariableFrame(Math.max(values.length, 8));
+            SCRATCH.set(frame);
+        }
+        return frame.set(values);
+    }
+
+    MemorySegment segment() {
+        return values;
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException(String.format("Index %d out of frame of size %d", index, size));
+        return index;
+    }
+}
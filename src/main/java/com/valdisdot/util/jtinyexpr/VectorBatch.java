@@ -0,0 +1,183 @@
+package com.valdisdot.util.jtinyexpr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/*
+batch-only engine evaluating the optimized tree one node at a time over blocks of rows (column at a time, not row at a time),
+operators and built-ins run lane-wise with jdk.incubator.vector, nodes the Vector API has no operator for
+(custom Functions, %, ceil, floor, fac, ncr, npr) run row by row over the same block
+path() reports what the expression got:
+    - VECTOR: every node runs lane-wise
+    - MIXED: some nodes fall back to scalar
+    - SCALAR: the lane-wise kernels are not built (mvn -Pvector) or jdk.incubator.vector is not available
+      (run with --add-modules jdk.incubator.vector), everything is scalar
+lane-wise transcendental functions and pow are within 1 ulp of Math, so results may differ from tinyexpr in the last bit
+custom functions are called once per row and occurrence like tinyexpr does, but a whole block at a time, not row by row
+immutable and thread-safe, every call works on its own buffers
+ */
+public final class VectorBatch {
+    public enum Path {
+        VECTOR, MIXED, SCALAR
+    }
+
+    //null without the kernels or without the module, the default build does not compile against the incubating module
+    private static final LaneKernels KERNELS = kernels();
+    static final boolean VECTOR_API = KERNELS != null;
+
+    private static final int BLOCK = 1024;
+    private static final Set<Node.Builtin> LANE_WISE = EnumSet.of(
+            Node.Builtin.ADD, Node.Builtin.SUB, Node.Builtin.MUL, Node.Builtin.DIV, Node.Builtin.POW, Node.Builtin.POWF, Node.Builtin.ATAN2,
+            Node.Builtin.NEGATE, Node.Builtin.ABS, Node.Builtin.ACOS, Node.Builtin.ASIN, Node.Builtin.ATAN, Node.Builtin.COS, Node.Builtin.COSH,
+            Node.Builtin.EXP, Node.Builtin.LN, Node.Builtin.LOG, Node.Builtin.LOG10, Node.Builtin.SIN, Node.Builtin.SINH, Node.Builtin.SQRT,
+            Node.Builtin.TAN, Node.Builtin.TANH);
+
+    //a constant, a column (slot) or the register of an earlier instruction
+    private record Operand(Kind kind, double value, int index) {
+        enum Kind {CONSTANT, COLUMN, REGISTER}
+    }
+
+    private record Instruction(Node.Callee callee, Operand[] args, boolean laneWise) {
+    }
+
+    private final String expression;
+    private final int columnCount;
+    private final List<Instruction> instructions;
+    private final Operand result;
+    private final Path path;
+
+    private VectorBatch(String expression, int columnCount, List<Instruction> instructions, Operand result) {
+        this.expression = expression;
+        this.columnCount = columnCount;
+        this.instructions = instructions;
+        this.result = result;
+        if (!VECTOR_API) path = Path.SCALAR;
+        else path = instructions.stream().allMatch(Instruction::laneWise) ? Path.VECTOR : Path.MIXED;
+    }
+
+    private static LaneKernels kernels() {
+        Optional<Module> vector = ModuleLayer.boot().findModule("jdk.incubator.vector");
+        if (vector.isEmpty()) return null;
+        try {
+            //the module does not require it, the read edge is added before VectorKernels links against it
+            VectorBatch.class.getModule().addReads(vector.get());
+            return (LaneKernels) Class.forName("com.valdisdot.util.jtinyexpr.VectorKernels").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    public static VectorBatch compile(String expression, Argument... args) throws ExpressionCompilerException {
+        return compile(expression, Arrays.asList(args));
+    }
+
+    //the variables only name the columns, their values are not read
+    public static VectorBatch compile(String expression, Collection<Argument> args) throws ExpressionCompilerException {
+        TinyExprParser.Parsed parsed = TinyExprParser.parse(expression, args);
+        Node root = Optimizer.optimize(parsed.root()).root();
+        List<Instruction> instructions = new ArrayList<>();
+        Operand result = lower(root, new IdentityHashMap<>(), instructions);
+        return new VectorBatch(expression, parsed.variables().size(), List.copyOf(instructions), result);
+    }
+
+    //post-order, a shared node of the optimized DAG becomes one instruction
+    private static Operand lower(Node node, Map<Node, Operand> lowered, List<Instruction> instructions) {
+        Operand known = lowered.get(node);
+        if (known != null) return known;
+        Operand operand = switch (node) {
+            case Node.Constant c -> new Operand(Operand.Kind.CONSTANT, c.value(), -1);
+            case Node.Bound b -> new Operand(Operand.Kind.COLUMN, 0, b.slot());
+            case Node.Call call when call.callee() == Node.Builtin.COMMA -> {
+                lower(call.args().get(0), lowered, instructions);
+                yield lower(call.args().get(1), lowered, instructions);
+            }
+            case Node.Call call -> {
+                Operand[] args = new Operand[call.args().size()];
+                for (int i = 0; i < args.length; i++) args[i] = lower(call.args().get(i), lowered, instructions);
+                boolean laneWise = VECTOR_API && call.callee() instanceof Node.Builtin builtin && LANE_WISE.contains(builtin);
+                instructions.add(new Instruction(call.callee(), args, laneWise));
+                yield new Operand(Operand.Kind.REGISTER, 0, instructions.size() - 1);
+            }
+        };
+        lowered.put(node, operand);
+        return operand;
+    }
+
+    public String expression() {
+        return expression;
+    }
+
+    public Path path() {
+        return path;
+    }
+
+    //columns are in the order the variables were passed to compile, out.length rows are evaluated
+    public void evaluate(double[][] columns, double[] out) {
+        if (columns.length != columnCount) throw new IllegalArgumentException(String.format("Expected %d columns, one per variable, got %d", columnCount, columns.length));
+        for (double[] column : columns) {
+            if (column.length < out.length) throw new IllegalArgumentException("Column is shorter than the output");
+        }
+        double[][] registers = new double[instructions.size()][Math.min(BLOCK, out.length)];
+        double[] args = new double[7];
+        try {
+            for (int start = 0; start < out.length; start += BLOCK) {
+                int rows = Math.min(BLOCK, out.length - start);
+                for (int i = 0; i < instructions.size(); i++) run(instructions.get(i), registers[i], columns, registers, start, rows, args);
+                switch (result.kind()) {
+                    case CONSTANT -> Arrays.fill(out, start, start + rows, result.value());
+                    case COLUMN -> System.arraycopy(columns[result.index()], start, out, start, rows);
+                    case REGISTER -> System.arraycopy(registers[result.index()], 0, out, start, rows);
+                }
+            }
+        } catch (RuntimeException e) {
+            throw new RuntimeException("Evaluation failed", e);
+        }
+    }
+
+    private static void run(Instruction instruction, double[] target, double[][] columns, double[][] registers, int start, int rows, double[] args) {
+        Operand[] operands = instruction.args();
+        int done = 0;
+        if (instruction.laneWise()) {
+            Node.Builtin builtin = (Node.Builtin) instruction.callee();
+            Operand a = operands[0];
+            if (operands.length == 1) {
+                done = KERNELS.unary(builtin, array(a, columns, registers), offset(a, start), target, rows);
+            } else {
+                Operand b = operands[1];
+                done = KERNELS.binary(builtin, array(a, columns, registers), offset(a, start), a.value(), array(b, columns, registers), offset(b, start), b.value(), target, rows);
+            }
+        }
+        for (int row = done; row < rows; row++) {
+            for (int i = 0; i < operands.length; i++) args[i] = read(operands[i], columns, registers, start, row);
+            target[row] = instruction.callee().apply(args);
+        }
+    }
+
+    private static double[] array(Operand operand, double[][] columns, double[][] registers) {
+        return switch (operand.kind()) {
+            case CONSTANT -> null;
+            case COLUMN -> columns[operand.index()];
+            case REGISTER -> registers[operand.index()];
+        };
+    }
+
+    //registers hold the current block only, columns are indexed by absolute row
+    private static int offset(Operand operand, int start) {
+        return operand.kind() == Operand.Kind.COLUMN ? start : 0;
+    }
+
+    private static double read(Operand operand, double[][] columns, double[][] registers, int start, int row) {
+        return switch (operand.kind()) {
+            case CONSTANT -> operand.value();
+            case COLUMN -> columns[operand.index()][start + row];
+            case REGISTER -> registers[operand.index()][row];
+        };
+    }
+}
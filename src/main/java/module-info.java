@@ -10,5 +10,8 @@ WARNING: Restricted methods will be blocked in a future release unless native ac
 
 module com.github.codeplea.tinyexpr {
     requires java.base;
+    //ExpressionEvents, JFR events of compile, interpret and evaluate
+    requires jdk.jfr;
+    //jdk.incubator.vector is not required here, VectorBatch reads it at runtime when the vector profile built its kernels
     exports com.valdisdot.util.jtinyexpr;
 }
\ No newline at end of file
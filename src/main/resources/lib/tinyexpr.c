@@ -42,6 +42,7 @@ For log = natural log uncomment the next line. */
 #include <stdio.h>
 #include <ctype.h>
 #include <limits.h>
+#include <stddef.h>
 
 #ifndef NAN
 #define NAN (0.0/0.0)
@@ -636,6 +637,316 @@ double te_eval(const te_expr *n) {
 #undef TE_FUN
 #undef M
 
+#define TE_FUN(...) ((double(*)(__VA_ARGS__))n->function)
+#define M(e) te_eval_frame(n->parameters[e], variables, variable_count, frame)
+
+double te_eval_frame(const te_expr *n, const double *variables, int variable_count, const double *frame) {
+    if (!n) return NAN;
+
+    switch(TYPE_MASK(n->type)) {
+        case TE_CONSTANT: return n->value;
+        case TE_VARIABLE: {
+            const ptrdiff_t slot = n->bound - variables;
+            return (slot >= 0 && slot < variable_count) ? frame[slot] : *n->bound;
+        }
+
+        case TE_FUNCTION0: case TE_FUNCTION1: case TE_FUNCTION2: case TE_FUNCTION3:
+        case TE_FUNCTION4: case TE_FUNCTION5: case TE_FUNCTION6: case TE_FUNCTION7:
+            switch(ARITY(n->type)) {
+                case 0: return TE_FUN(void)();
+                case 1: return TE_FUN(double)(M(0));
+                case 2: return TE_FUN(double, double)(M(0), M(1));
+                case 3: return TE_FUN(double, double, double)(M(0), M(1), M(2));
+                case 4: return TE_FUN(double, double, double, double)(M(0), M(1), M(2), M(3));
+                case 5: return TE_FUN(double, double, double, double, double)(M(0), M(1), M(2), M(3), M(4));
+                case 6: return TE_FUN(double, double, double, double, double, double)(M(0), M(1), M(2), M(3), M(4), M(5));
+                case 7: return TE_FUN(double, double, double, double, double, double, double)(M(0), M(1), M(2), M(3), M(4), M(5), M(6));
+                default: return NAN;
+            }
+
+        case TE_CLOSURE0: case TE_CLOSURE1: case TE_CLOSURE2: case TE_CLOSURE3:
+        case TE_CLOSURE4: case TE_CLOSURE5: case TE_CLOSURE6: case TE_CLOSURE7:
+            switch(ARITY(n->type)) {
+                case 0: return TE_FUN(void*)(n->parameters[0]);
+                case 1: return TE_FUN(void*, double)(n->parameters[1], M(0));
+                case 2: return TE_FUN(void*, double, double)(n->parameters[2], M(0), M(1));
+                case 3: return TE_FUN(void*, double, double, double)(n->parameters[3], M(0), M(1), M(2));
+                case 4: return TE_FUN(void*, double, double, double, double)(n->parameters[4], M(0), M(1), M(2), M(3));
+                case 5: return TE_FUN(void*, double, double, double, double, double)(n->parameters[5], M(0), M(1), M(2), M(3), M(4));
+                case 6: return TE_FUN(void*, double, double, double, double, double, double)(n->parameters[6], M(0), M(1), M(2), M(3), M(4), M(5));
+                case 7: return TE_FUN(void*, double, double, double, double, double, double, double)(n->parameters[7], M(0), M(1), M(2), M(3), M(4), M(5), M(6));
+                default: return NAN;
+            }
+
+        default: return NAN;
+    }
+}
+
+#undef TE_FUN
+#undef M
+
+void te_eval_batch(const te_expr *n, double *variables, int variable_count, const double *const *columns, double *out, long long rows) {
+    long long row;
+    int i;
+    for (row = 0; row < rows; ++row) {
+        for (i = 0; i < variable_count; ++i) {
+            variables[i] = columns[i][row];
+        }
+        out[row] = te_eval(n);
+    }
+}
+
+void te_eval_program(const te_expr *const *expressions, int count, double *outputs) {
+    int i;
+    for (i = 0; i < count; ++i) {
+        outputs[i] = te_eval(expressions[i]);
+    }
+}
+
+te_expr *te_assemble(const int *code, int length, const double *constants, int constant_count, const te_variable *variables, int var_count, int *error) {
+    static const void *const operators[] = {add, sub, mul, divide, pow, fmod, negate, comma};
+    const int operator_count = sizeof(operators) / sizeof(operators[0]);
+    const int builtin_count = sizeof(functions) / sizeof(te_variable) - 1;
+    te_expr **stack;
+    int top = 0, i;
+
+    if (error) *error = 0;
+    stack = malloc(sizeof(te_expr*) * (length / 2 + 1));
+    if (!stack) {
+        if (error) *error = -1;
+        return 0;
+    }
+
+    for (i = 0; i + 1 < length; i += 2) {
+        const int op = code[i], operand = code[i + 1];
+        te_expr *n = 0;
+        int type = 0, arity, k;
+        const void *function = 0;
+        void *context = 0;
+
+        switch (op) {
+            case TE_ASM_CONSTANT:
+                if (operand < 0 || operand >= constant_count) goto fail;
+                n = new_expr(TE_CONSTANT, 0);
+                if (!n) goto out_of_memory;
+                n->value = constants[operand];
+                break;
+
+            case TE_ASM_VARIABLE:
+                if (operand < 0 || operand >= var_count || TYPE_MASK(variables[operand].type) != TE_VARIABLE) goto fail;
+                n = new_expr(TE_VARIABLE, 0);
+                if (!n) goto out_of_memory;
+                n->bound = variables[operand].address;
+                break;
+
+            case TE_ASM_CALL:
+                if (operand < 0 || operand >= var_count || (!IS_FUNCTION(variables[operand].type) && !IS_CLOSURE(variables[operand].type))) goto fail;
+                type = variables[operand].type;
+                function = variables[operand].address;
+                context = variables[operand].context;
+                break;
+
+            case TE_ASM_BUILTIN:
+                if (operand < 0 || operand >= operator_count + builtin_count) goto fail;
+                if (operand < operator_count) {
+                    type = (operators[operand] == negate ? TE_FUNCTION1 : TE_FUNCTION2) | TE_FLAG_PURE;
+                    function = operators[operand];
+                } else {
+                    type = functions[operand - operator_count].type;
+                    function = functions[operand - operator_count].address;
+                }
+                break;
+
+            default:
+                goto fail;
+        }
+
+        if (!n) {
+            arity = ARITY(type);
+            if (top < arity) goto fail;
+            n = new_expr(type, 0);
+            if (!n) goto out_of_memory;
+            n->function = function;
+            for (k = 0; k < arity; ++k) n->parameters[k] = stack[top - arity + k];
+            if (IS_CLOSURE(type)) n->parameters[arity] = context;
+            top -= arity;
+        }
+        stack[top++] = n;
+    }
+
+    if (top == 1 && i == length) {
+        te_expr *root = stack[0];
+        free(stack);
+        return root;
+    }
+
+fail:
+    if (error) *error = i / 2 + 1;
+    goto cleanup;
+out_of_memory:
+    if (error) *error = -1;
+cleanup:
+    while (top > 0) te_free(stack[--top]);
+    free(stack);
+    return 0;
+}
+
+
+static size_t node_size(const te_expr *n) {
+    const int arity = ARITY(n->type);
+    return (sizeof(te_expr) - sizeof(void*)) + sizeof(void*) * arity + (IS_CLOSURE(n->type) ? sizeof(void*) : 0);
+}
+
+size_t te_size(const te_expr *n, int *nodes) {
+    size_t size;
+    int i;
+    if (!n) return 0;
+    size = node_size(n);
+    if (nodes) ++*nodes;
+    for (i = 0; i < ARITY(n->type); ++i) size += te_size(n->parameters[i], nodes);
+    return size;
+}
+
+static char *pack(const te_expr *n, char *at, te_expr **copy) {
+    const size_t size = node_size(n);
+    te_expr *ret = (te_expr*)at;
+    int i;
+    memcpy(ret, n, size);
+    at += size;
+    for (i = 0; i < ARITY(n->type); ++i) at = pack(n->parameters[i], at, (te_expr**)&ret->parameters[i]);
+    *copy = ret;
+    return at;
+}
+
+te_expr *te_pack(const te_expr *n, void *buffer) {
+    te_expr *root;
+    if (!n) return 0;
+    pack(n, buffer, &root);
+    return root;
+}
+
+
+/* flat program: postfix ops over a value stack, operators get their own code so the hot ones are not indirect calls */
+enum {FLAT_CONSTANT, FLAT_VARIABLE, FLAT_ADD, FLAT_SUB, FLAT_MUL, FLAT_DIVIDE, FLAT_NEGATE, FLAT_FUNCTION, FLAT_CLOSURE};
+
+typedef struct te_flat_op {
+    int code;
+    int arity;
+    union {double value; const double *bound; const void *function;};
+    void *context;
+} te_flat_op;
+
+struct te_flat {
+    int length;
+    int depth;
+    te_flat_op ops[];
+};
+
+static void flat_count(const te_expr *n, int height, int *length, int *depth) {
+    int i;
+    ++*length;
+    if (height + 1 > *depth) *depth = height + 1;
+    /* the i-th argument is computed above the i earlier ones */
+    for (i = 0; i < ARITY(n->type); ++i) flat_count(n->parameters[i], height + i, length, depth);
+}
+
+size_t te_flat_size(const te_expr *n) {
+    int length = 0, depth = 0;
+    if (!n) return 0;
+    flat_count(n, 0, &length, &depth);
+    return sizeof(te_flat) + sizeof(te_flat_op) * (size_t)length;
+}
+
+static te_flat_op *flatten(const te_expr *n, te_flat_op *op) {
+    const int arity = ARITY(n->type);
+    int i;
+    for (i = 0; i < arity; ++i) op = flatten(n->parameters[i], op);
+    op->arity = arity;
+    op->context = 0;
+    switch (TYPE_MASK(n->type)) {
+        case TE_CONSTANT: op->code = FLAT_CONSTANT; op->value = n->value; break;
+        case TE_VARIABLE: op->code = FLAT_VARIABLE; op->bound = n->bound; break;
+        default:
+            op->function = n->function;
+            if (IS_CLOSURE(n->type)) {
+                op->code = FLAT_CLOSURE;
+                op->context = n->parameters[arity];
+            } else if (n->function == add) op->code = FLAT_ADD;
+            else if (n->function == sub) op->code = FLAT_SUB;
+            else if (n->function == mul) op->code = FLAT_MUL;
+            else if (n->function == divide) op->code = FLAT_DIVIDE;
+            else if (n->function == negate) op->code = FLAT_NEGATE;
+            else op->code = FLAT_FUNCTION;
+    }
+    return op + 1;
+}
+
+te_flat *te_flatten(const te_expr *n, void *buffer) {
+    te_flat *p = buffer;
+    if (!n) return 0;
+    p->length = 0;
+    p->depth = 0;
+    flat_count(n, 0, &p->length, &p->depth);
+    flatten(n, p->ops);
+    return p;
+}
+
+#define TE_FUN(...) ((double(*)(__VA_ARGS__))op->function)
+#define A(e) top[e]
+
+double te_eval_flat(const te_flat *p) {
+    double stack[p->depth];
+    double *top = stack;
+    const te_flat_op *op = p->ops, *const end = p->ops + p->length;
+    double r;
+    for (; op < end; ++op) {
+        switch (op->code) {
+            case FLAT_CONSTANT: *top++ = op->value; continue;
+            case FLAT_VARIABLE: *top++ = *op->bound; continue;
+            case FLAT_ADD: --top; top[-1] = top[-1] + top[0]; continue;
+            case FLAT_SUB: --top; top[-1] = top[-1] - top[0]; continue;
+            case FLAT_MUL: --top; top[-1] = top[-1] * top[0]; continue;
+            case FLAT_DIVIDE: --top; top[-1] = top[-1] / top[0]; continue;
+            case FLAT_NEGATE: top[-1] = -top[-1]; continue;
+            case FLAT_FUNCTION:
+                top -= op->arity;
+                switch (op->arity) {
+                    case 0: r = TE_FUN(void)(); break;
+                    case 1: r = TE_FUN(double)(A(0)); break;
+                    case 2: r = TE_FUN(double, double)(A(0), A(1)); break;
+                    case 3: r = TE_FUN(double, double, double)(A(0), A(1), A(2)); break;
+                    case 4: r = TE_FUN(double, double, double, double)(A(0), A(1), A(2), A(3)); break;
+                    case 5: r = TE_FUN(double, double, double, double, double)(A(0), A(1), A(2), A(3), A(4)); break;
+                    case 6: r = TE_FUN(double, double, double, double, double, double)(A(0), A(1), A(2), A(3), A(4), A(5)); break;
+                    case 7: r = TE_FUN(double, double, double, double, double, double, double)(A(0), A(1), A(2), A(3), A(4), A(5), A(6)); break;
+                    default: r = NAN;
+                }
+                *top++ = r;
+                continue;
+            case FLAT_CLOSURE:
+                top -= op->arity;
+                switch (op->arity) {
+                    case 0: r = TE_FUN(void*)(op->context); break;
+                    case 1: r = TE_FUN(void*, double)(op->context, A(0)); break;
+                    case 2: r = TE_FUN(void*, double, double)(op->context, A(0), A(1)); break;
+                    case 3: r = TE_FUN(void*, double, double, double)(op->context, A(0), A(1), A(2)); break;
+                    case 4: r = TE_FUN(void*, double, double, double, double)(op->context, A(0), A(1), A(2), A(3)); break;
+                    case 5: r = TE_FUN(void*, double, double, double, double, double)(op->context, A(0), A(1), A(2), A(3), A(4)); break;
+                    case 6: r = TE_FUN(void*, double, double, double, double, double, double)(op->context, A(0), A(1), A(2), A(3), A(4), A(5)); break;
+                    case 7: r = TE_FUN(void*, double, double, double, double, double, double, double)(op->context, A(0), A(1), A(2), A(3), A(4), A(5), A(6)); break;
+                    default: r = NAN;
+                }
+                *top++ = r;
+                continue;
+        }
+    }
+    return stack[0];
+}
+
+#undef TE_FUN
+#undef A
+
+
 static void optimize(te_expr *n) {
     /* Evaluates as much as possible. */
     if (n->type == TE_CONSTANT) return;
@@ -27,6 +27,8 @@
 #define TINYEXPR_H
 
 
+#include <stddef.h>
+
 #ifdef __cplusplus
 extern "C" {
 #endif
@@ -72,6 +74,43 @@ te_expr *te_compile(const char *expression, const te_variable *variables, int va
 /* Evaluates the expression. */
 double te_eval(const te_expr *n);
 
+/* Evaluates the expression once per row, storing columns[i][row] into variables[i] before each evaluation. */
+/* The expression must be compiled against the variables block. (jtinyexpr addition) */
+void te_eval_batch(const te_expr *n, double *variables, int variable_count, const double *const *columns, double *out, long long rows);
+
+/* Evaluates the expression reading variables bound inside variables[0..variable_count) from frame instead. */
+/* Does not write to the expression, so one compiled tree can be evaluated by many threads. (jtinyexpr addition) */
+double te_eval_frame(const te_expr *n, const double *variables, int variable_count, const double *frame);
+
+/* Evaluates expressions[0..count) in order into outputs[0..count). */
+/* A later expression may be compiled with outputs[i] bound as a variable to read an earlier result. (jtinyexpr addition) */
+void te_eval_program(const te_expr *const *expressions, int count, double *outputs);
+
+/* Builds a tree from postfix code instead of parsing, code holds (op, operand) pairs: */
+/* TE_ASM_CONSTANT pushes constants[operand], TE_ASM_VARIABLE binds variables[operand], */
+/* TE_ASM_CALL calls the function or closure variables[operand], TE_ASM_BUILTIN calls an operator */
+/* (+ - * / ^ % negate comma) or, from 8 on, the built-in function table in alphabetical order. */
+/* Nothing is folded and no function is called. On error returns 0 and sets *error to the */
+/* 1-based pair index, or -1 when out of memory. (jtinyexpr addition) */
+enum {TE_ASM_CONSTANT = 0, TE_ASM_VARIABLE, TE_ASM_CALL, TE_ASM_BUILTIN};
+te_expr *te_assemble(const int *code, int length, const double *constants, int constant_count, const te_variable *variables, int var_count, int *error);
+
+/* Bytes the tree takes when packed, *nodes (if not 0) is increased by the node count. (jtinyexpr addition) */
+size_t te_size(const te_expr *n, int *nodes);
+
+/* Copies the tree into buffer (te_size bytes, pointer aligned), nodes in pre-order, and returns the copy. */
+/* The copy must not be passed to te_free, the original is left as it is. (jtinyexpr addition) */
+te_expr *te_pack(const te_expr *n, void *buffer);
+
+/* Postfix form of a tree: one contiguous block evaluated by a loop over a value stack instead of recursion. */
+/* Calls the same functions with the same arguments as te_eval, so results are bit-identical, but arguments */
+/* are always evaluated left to right. te_flat_size is the size of the block te_flatten fills (pointer aligned), */
+/* the block is owned by the caller and stays valid while the variables and closure contexts do. (jtinyexpr addition) */
+typedef struct te_flat te_flat;
+size_t te_flat_size(const te_expr *n);
+te_flat *te_flatten(const te_expr *n, void *buffer);
+double te_eval_flat(const te_flat *p);
+
 /* Prints debugging information on the syntax tree. */
 void te_print(const te_expr *n);
 
@@ -0,0 +1,76 @@
+package com.valdisdot.util.jtinyexpr;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/*
+lane-wise loops of VectorBatch, the only class touching jdk.incubator.vector; compiled by the vector profile only,
+VectorBatch loads it reflectively when the module is in the boot layer
+every case passes a constant operator, so the loops are intrinsified once inlined
+each kernel covers rows [0, loopBound) and returns the bound, the caller finishes the tail with scalar code
+ */
+final class VectorKernels implements LaneKernels {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    VectorKernels() {
+    }
+
+    //constants are folded away for unary builtins
+    @Override
+    public int unary(Node.Builtin builtin, double[] a, int offset, double[] target, int rows) {
+        return switch (builtin) {
+            case NEGATE -> unary(VectorOperators.NEG, a, offset, target, rows);
+            case ABS -> unary(VectorOperators.ABS, a, offset, target, rows);
+            case ACOS -> unary(VectorOperators.ACOS, a, offset, target, rows);
+            case ASIN -> unary(VectorOperators.ASIN, a, offset, target, rows);
+            case ATAN -> unary(VectorOperators.ATAN, a, offset, target, rows);
+            case COS -> unary(VectorOperators.COS, a, offset, target, rows);
+            case COSH -> unary(VectorOperators.COSH, a, offset, target, rows);
+            case EXP -> unary(VectorOperators.EXP, a, offset, target, rows);
+            case LN -> unary(VectorOperators.LOG, a, offset, target, rows);
+            case LOG, LOG10 -> unary(VectorOperators.LOG10, a, offset, target, rows);
+            case SIN -> unary(VectorOperators.SIN, a, offset, target, rows);
+            case SINH -> unary(VectorOperators.SINH, a, offset, target, rows);
+            case SQRT -> unary(VectorOperators.SQRT, a, offset, target, rows);
+            case TAN -> unary(VectorOperators.TAN, a, offset, target, rows);
+            case TANH -> unary(VectorOperators.TANH, a, offset, target, rows);
+            default -> 0;
+        };
+    }
+
+    @Override
+    public int binary(Node.Builtin builtin, double[] a, int aOffset, double aConstant, double[] b, int bOffset, double bConstant, double[] target, int rows) {
+        return switch (builtin) {
+            case ADD -> binary(VectorOperators.ADD, a, aOffset, aConstant, b, bOffset, bConstant, target, rows);
+            case SUB -> binary(VectorOperators.SUB, a, aOffset, aConstant, b, bOffset, bConstant, target, rows);
+            case MUL -> binary(VectorOperators.MUL, a, aOffset, aConstant, b, bOffset, bConstant, target, rows);
+            case DIV -> binary(VectorOperators.DIV, a, aOffset, aConstant, b, bOffset, bConstant, target, rows);
+            case POW, POWF -> binary(VectorOperators.POW, a, aOffset, aConstant, b, bOffset, bConstant, target, rows);
+            case ATAN2 -> binary(VectorOperators.ATAN2, a, aOffset, aConstant, b, bOffset, bConstant, target, rows);
+            default -> 0;
+        };
+    }
+
+    private static int unary(VectorOperators.Unary operator, double[] a, int offset, double[] target, int rows) {
+        if (a == null) return 0;
+        int bound = SPECIES.loopBound(rows);
+        for (int i = 0; i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, offset + i).lanewise(operator).intoArray(target, i);
+        }
+        return bound;
+    }
+
+    private static int binary(VectorOperators.Binary operator, double[] a, int aOffset, double aConstant, double[] b, int bOffset, double bConstant, double[] target, int rows) {
+        if (a == null && b == null) return 0;
+        int bound = SPECIES.loopBound(rows);
+        for (int i = 0; i < bound; i += SPECIES.length()) {
+            load(a, aOffset, aConstant, i).lanewise(operator, load(b, bOffset, bConstant, i)).intoArray(target, i);
+        }
+        return bound;
+    }
+
+    private static DoubleVector load(double[] array, int offset, double constant, int i) {
+        return array == null ? DoubleVector.broadcast(SPECIES, constant) : DoubleVector.fromArray(SPECIES, array, offset + i);
+    }
+}
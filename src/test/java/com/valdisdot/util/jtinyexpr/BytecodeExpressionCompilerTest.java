@@ -0,0 +1,215 @@
+package com.valdisdot.util.jtinyexpr;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BytecodeExpressionCompilerTest {
+
+    private BytecodeExpressionCompiler compiler;
+
+    @BeforeEach
+    void setUp() {
+        compiler = new BytecodeExpressionCompiler();
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = ';', value = {
+            "5 + 5 * 2; 15.0",
+            "2^3^2; 64.0",
+            "-2^2; 4.0",
+            "10 % 4; 2.0",
+            "sqrt 25; 5.0",
+            "atan2(1, 1) * 4; 3.141592653589793",
+            "fac(5) + ncr(5, 2) + npr(5, 2); 150.0",
+            "1, 2, 3; 3.0",
+            "pi - pi(); 0.0",
+            "0x10 + 1e2 + .5; 116.5"
+    })
+    @DisplayName("Should evaluate constant expressions like tinyexpr does")
+    void testConstantExpression(String formula, double expected) throws Exception {
+        assertEquals(expected, compiler.interpret(formula), 1e-12);
+        try (Expression expr = compiler.compile(formula)) {
+            assertEquals(expected, expr.evaluate(), 1e-12);
+        }
+    }
+
+    @Test
+    @DisplayName("Should bind and update variables correctly")
+    void testVariableBindingAndUpdates() throws Exception {
+        Variable x = new Variable(10.0);
+        Variable y = new Variable(1.0);
+
+        try (Expression expr = compiler.compile("x * 2 + y", Argument.of("x", x), Argument.of("y", y))) {
+            assertEquals(21.0, expr.evaluate());
+
+            x.update(50.0);
+            y.decrement();
+            assertEquals(100.0, expr.evaluate());
+        }
+        assertThrows(IllegalStateException.class, () -> x.update(1.0));
+    }
+
+    @Test
+    @DisplayName("Should call custom functions of every arity")
+    void testCustomFunctions() throws Exception {
+        Variable x = new Variable(2.0);
+        try (Expression expr = compiler.compile("f0() + f1(x) + f2(x, 1) + f7(1, 2, 3, 4, 5, 6, x)",
+                Argument.of("x", x),
+                Argument.of("f0", (Function.NoArgs) () -> 1),
+                Argument.of("f1", (Function.OneArgs) v -> v * 10),
+                Argument.of("f2", (Function.TwoArgs) (a, b) -> a - b),
+                Argument.of("f7", (Function.SevenArgs) (a, b, c, d, e, f, g) -> a + b + c + d + e + f + g))) {
+            assertEquals(1 + 20 + 1 + 23, expr.evaluate());
+        }
+    }
+
+    @Test
+    @DisplayName("Should fold pure functions with constant arguments at compile time")
+    void testPureFunctionFolding() throws Exception {
+        int[] callCount = {0};
+        Function.OneArgs pureFunc = new Function.OneArgs() {
+            @Override public double apply(double value) {
+                callCount[0]++;
+                return value * 2;
+            }
+            @Override public boolean isPure() { return true; }
+        };
+
+        try (Expression expr = compiler.compile("p(21)", Argument.of("p", pureFunc))) {
+            assertEquals(1, callCount[0]);
+            assertEquals(42.0, expr.evaluate());
+            assertEquals(42.0, expr.evaluate());
+            assertEquals(1, callCount[0]);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"5 + (2 * 3", "1+e()-1^", "x + 1", "pow(1)", "pow(1, 2, 3)", "e(1)", ""})
+    @DisplayName("Should reject invalid expressions")
+    void testInvalidExpressions(String formula) {
+        assertFalse(compiler.validate(formula));
+        ExpressionCompilerException exception = assertThrows(ExpressionCompilerException.class, () -> compiler.compile(formula));
+        assertTrue(exception.getMessage().contains("Parsing error"));
+    }
+
+    @Test
+    @DisplayName("Should report the same error offset as tinyexpr")
+    void testErrorOffset() {
+        ExpressionCompilerException exception = assertThrows(ExpressionCompilerException.class, () -> compiler.interpret("1 + foo + 2"));
+        assertTrue(exception.getMessage().contains("character 7"));
+    }
+
+    @Test
+    @DisplayName("Should evaluate batches from heap segments and restore the bound slots")
+    void testEvaluateBatch() throws Exception {
+        //column checks and results are shared with the native engine and covered by its test, these are bytecode-only
+        Variable x = new Variable(1.0);
+        double[] xs = {1, 2, 3};
+        try (Expression expr = compiler.compile("x * x", Argument.of("x", x))) {
+            x.update(5.0);
+            MemorySegment out = MemorySegment.ofArray(new double[3]);
+            expr.evaluateBatch(new MemorySegment[]{MemorySegment.ofArray(xs)}, out, 3);
+            assertArrayEquals(new double[]{1, 4, 9}, out.toArray(ValueLayout.JAVA_DOUBLE));
+            assertEquals(25.0, expr.evaluate());
+        }
+    }
+
+    @Test
+    @DisplayName("Should evaluate batches lane-wise and fall back to scalar for custom functions")
+    void testVectorBatch() throws Exception {
+        int rows = 2500;
+        double[] xs = new double[rows];
+        double[] ys = new double[rows];
+        for (int i = 0; i < rows; i++) {
+            xs[i] = i * 0.01;
+            ys[i] = 3 - i * 0.002;
+        }
+        Variable x = new Variable(0);
+        Variable y = new Variable(0);
+        Function.OneArgs half = v -> v / 2;
+        String[] formulas = {"sqrt(x*x + y*y) - exp(-x) * sin(y)", "floor(x) + half(y) * 2^x", "x", "-1.5"};
+        VectorBatch.Path[] paths = {VectorBatch.Path.VECTOR, VectorBatch.Path.MIXED, VectorBatch.Path.VECTOR, VectorBatch.Path.VECTOR};
+
+        for (int f = 0; f < formulas.length; f++) {
+            VectorBatch batch = VectorBatch.compile(formulas[f], Argument.of("x", x), Argument.of("y", y), Argument.of("half", half));
+            assertEquals(VectorBatch.VECTOR_API ? paths[f] : VectorBatch.Path.SCALAR, batch.path());
+            double[] expected = new double[rows];
+            double[] actual = new double[rows];
+            try (Expression expr = compiler.compile(formulas[f], Argument.of("x", x), Argument.of("y", y), Argument.of("half", half))) {
+                expr.evaluateBatch(new double[][]{xs, ys}, expected);
+            }
+            batch.evaluate(new double[][]{xs, ys}, actual);
+            for (int i = 0; i < rows; i++) assertEquals(expected[i], actual[i], Math.ulp(expected[i]) * 2);
+        }
+        assertThrows(IllegalArgumentException.class, () -> VectorBatch.compile("x + y", Argument.of("x", x), Argument.of("y", y)).evaluate(new double[][]{xs}, new double[1]));
+    }
+
+    @Test
+    @DisplayName("Should share common subexpressions and pure calls in optimized code")
+    void testOptimizer() throws Exception {
+        int[] callCount = {0};
+        Function.OneArgs pureFunc = new Function.OneArgs() {
+            @Override public double apply(double value) {
+                callCount[0]++;
+                return value + 1;
+            }
+            @Override public boolean isPure() { return true; }
+        };
+        String formula = "sqrt(x*x + y*y) + sqrt(x*x + y*y) * 1 + 0 + x^2 + p(x) - p(x) + -(-y)";
+        List<Argument> args = List.of(Argument.of("x", new Variable(3.0)), Argument.of("y", new Variable(4.0)), Argument.of("p", pureFunc));
+
+        OptimizationReport report = compiler.optimize(formula, args);
+        assertTrue(report.nodesAfter() < report.nodesBefore());
+        assertTrue(report.sharedSubexpressions() >= 2);
+        //the native tree repeats what the bytecode shares
+        assertTrue(report.treeNodes() > report.nodesAfter());
+
+        try (Expression plain = compiler.compile(formula, args);
+             Expression optimized = compiler.optimizing().compile(formula, args)) {
+            assertEquals(23.0, plain.evaluate());
+            assertEquals(2, callCount[0]);
+            assertEquals(23.0, optimized.evaluate());
+            assertEquals(3, callCount[0]);
+        }
+    }
+
+    @Test
+    @DisplayName("Should evaluate a formula sheet in one call with references to earlier outputs")
+    void testCompileAll() throws Exception {
+        Variable x = new Variable(3.0);
+        Variable y = new Variable(4.0);
+        Map<String, String> formulas = new LinkedHashMap<>();
+        formulas.put("r", "sqrt(x*x + y*y)");
+        formulas.put("twice", "r * 2");
+        formulas.put("scaled", "f(twice) + sqrt(x*x + y*y)");
+        double[] out = new double[3];
+
+        try (ExpressionProgram program = compiler.compileAll(formulas, Argument.of("x", x), Argument.of("y", y), Argument.of("f", (Function.OneArgs) v -> v / 10))) {
+            assertEquals(List.of("r", "twice", "scaled"), program.outputs());
+            program.evaluateInto(out);
+            assertArrayEquals(new double[]{5, 10, 6}, out);
+            x.update(0.0);
+            assertArrayEquals(new double[]{4, 8, 4.8}, program.evaluate());
+            assertThrows(IllegalArgumentException.class, () -> program.evaluateInto(new double[2]));
+        }
+
+        formulas.put("x", "1");
+        assertThrows(ExpressionCompilerException.class, () -> compiler.compileAll(formulas, Argument.of("x", x)));
+        Map<String, String> forward = new LinkedHashMap<>();
+        forward.put("a", "later + 1");
+        forward.put("later", "1");
+        assertThrows(ExpressionCompilerException.class, () -> compiler.compileAll(forward));
+    }
+}
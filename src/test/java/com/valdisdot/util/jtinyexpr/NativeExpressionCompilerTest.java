@@ -1,11 +1,37 @@
 package com.valdisdot.util.jtinyexpr;
 
+import org.junit.jupiter.api.Assumptions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.CsvSource;
 
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 class TinyExpressionCompilerTest {
@@ -17,6 +43,14 @@ class TinyExpressionCompilerTest {
         compiler = new TinyExpressionCompiler();
     }
 
+    @Test
+    @DisplayName("Should bootstrap the native library once")
+    void testPreload() {
+        Duration first = TinyExpressionCompiler.preload();
+        assertFalse(first.isNegative());
+        assertEquals(first, TinyExpressionCompiler.preload());
+    }
+
     @Test
     @DisplayName("Should evaluate simple constant expressions")
     void testConstantExpression() throws Exception {
@@ -185,4 +219,678 @@ class TinyExpressionCompilerTest {
         double result = compiler.interpret("((10 + 5) * 2) / (3 + 2)");
         assertEquals(6.0, result, 1e-9);
     }
+
+    @Test
+    @DisplayName("Should evaluate column batches without touching bound variables")
+    void testEvaluateBatch() throws Exception {
+        Variable x = new Variable(1.0);
+        Variable y = new Variable(2.0);
+        double[] xs = {1, 2, 3, 4};
+        double[] ys = {10, 20, 30, 40};
+        double[] out = new double[4];
+
+        try (Expression expr = compiler.compile("y - x * 2", Argument.of("y", y), Argument.of("x", x));
+             Arena arena = Arena.ofConfined()) {
+            expr.evaluateBatch(new double[][]{ys, xs}, out);
+            assertArrayEquals(new double[]{8, 16, 24, 32}, out);
+            assertEquals(0.0, expr.evaluate());
+
+            MemorySegment nativeOut = arena.allocate(ValueLayout.JAVA_DOUBLE, 4);
+            expr.evaluateBatch(new MemorySegment[]{arena.allocateFrom(ValueLayout.JAVA_DOUBLE, ys), arena.allocateFrom(ValueLayout.JAVA_DOUBLE, xs)}, nativeOut, 4);
+            assertArrayEquals(new double[]{8, 16, 24, 32}, nativeOut.toArray(ValueLayout.JAVA_DOUBLE));
+
+            assertThrows(IllegalArgumentException.class, () -> expr.evaluateBatch(new double[][]{ys}, out));
+        }
+    }
+
+    @Test
+    @DisplayName("Should reuse cached trees and rebind variables and functions")
+    void testCompiledExpressionCache() throws Exception {
+        CompiledExpressionCache cache = new CompiledExpressionCache(1);
+        TinyExpressionCompiler cachingCompiler = new TinyExpressionCompiler(cache);
+
+        Variable x = new Variable(2.0);
+        try (Expression expr = cachingCompiler.compile("f(x) + 1", Argument.of("x", x), Argument.of("f", (Function.OneArgs) v -> v * 10))) {
+            assertEquals(21.0, expr.evaluate());
+        }
+        Variable y = new Variable(3.0);
+        try (Expression expr = cachingCompiler.compile("f(x) + 1", Argument.of("x", y), Argument.of("f", (Function.OneArgs) v -> v * 100))) {
+            assertEquals(301.0, expr.evaluate());
+            //leased tree is not shared, a second expression gets its own
+            try (Expression other = cachingCompiler.compile("f(x) + 1", Argument.of("x", new Variable(1.0)), Argument.of("f", (Function.OneArgs) v -> v))) {
+                assertEquals(2.0, other.evaluate());
+            }
+            assertEquals(301.0, expr.evaluate());
+        }
+        assertEquals(1, cache.hits());
+        assertEquals(2, cache.misses());
+
+        try (Expression expr = cachingCompiler.compile("x * 2", Argument.of("x", x))) {
+            assertEquals(4.0, expr.evaluate());
+        }
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.evictions());
+
+        //an optimizing compiler on the same cache never leases a plain tree, nor the other way around
+        CompiledExpressionCache modes = new CompiledExpressionCache(4);
+        TinyExpressionCompiler plain = new TinyExpressionCompiler(modes);
+        try (Expression expr = plain.compile("x^1 * 1", Argument.of("x", x))) {
+            assertEquals(2.0, expr.evaluate());
+        }
+        try (Expression expr = plain.optimizing().compile("x^1 * 1", Argument.of("x", x))) {
+            assertEquals(2.0, expr.evaluate());
+        }
+        //a slab tree lives as long as its slab, it is never leased by a heap compiler and leaves the cache with the slab
+        ExpressionSlab slab = new ExpressionSlab();
+        TinyExpressionCompiler slabCompiler = plain.withSlab(slab);
+        try (Expression expr = slabCompiler.compile("x^1 * 1", Argument.of("x", x))) {
+            assertEquals(2.0, expr.evaluate());
+        }
+        assertEquals(3, modes.size());
+        slab.close();
+        assertEquals(2, modes.size());
+        assertThrows(IllegalStateException.class, () -> slabCompiler.compile("x^1 * 1", Argument.of("x", x)));
+        assertEquals(0, modes.hits());
+        assertEquals(3, modes.misses());
+    }
+
+    @Test
+    @DisplayName("Should evaluate one shared expression from many threads with their own frames")
+    void testSharedExpression() throws Exception {
+        Variable x = new Variable(1.0);
+        try (SharedExpression expr = compiler.compileShared("x * y + f(x)",
+                Argument.of("x", x),
+                Argument.of("y", new Variable(2.0)),
+                Argument.of("f", (Function.OneArgs) v -> v + 1))) {
+            assertEquals(List.of("x", "y"), expr.variables());
+            assertEquals(4.0, expr.evaluate(expr.newFrame()));
+
+            //variables are not bound by a shared expression
+            assertThrows(IllegalStateException.class, () -> x.update(2.0));
+
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                List<Future<Double>> results = new ArrayList<>();
+                for (int i = 0; i < 100; i++) {
+                    double value = i;
+                    results.add(executor.submit(() -> expr.evaluate(value, 3.0)));
+                }
+                for (int i = 0; i < 100; i++) assertEquals(i * 3.0 + i + 1, results.get(i).get());
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Should feed several expressions from one variable and one frame")
+    void testVariableFrame() throws Exception {
+        Variable x = new Variable(1.0);
+        try (Expression doubled = compiler.compile("x * 2", Argument.of("x", x));
+             Expression tripled = compiler.compile("x * 3", Argument.of("x", x))) {
+            x.update(5.0);
+            assertEquals(10.0, doubled.evaluate());
+            assertEquals(15.0, tripled.evaluate());
+        }
+
+        VariableFrame frame = new VariableFrame(2).set(1.0, 2.0);
+        try (Expression sum = compiler.compile("a + b", frame, Argument.of("a", new Variable(0)), Argument.of("b", new Variable(0)));
+             Expression product = compiler.compile("a * b", frame, Argument.of("a", new Variable(0)), Argument.of("b", new Variable(0)))) {
+            assertEquals(3.0, sum.evaluate());
+            frame.set(1, 10.0);
+            assertEquals(11.0, sum.evaluate());
+            assertEquals(10.0, product.evaluate());
+        }
+    }
+
+    @Test
+    @DisplayName("Should keep expressions bound across reset and unbind when the last one is closed")
+    @SuppressWarnings("deprecation")
+    void testVariableReset() throws Exception {
+        Variable x = new Variable(1.0);
+        Variable y = new Variable(10.0);
+        List<Double> seen = new ArrayList<>();
+        x.onUpdate(seen::add);
+        try (Expression expr = compiler.compile("x * 2 + y", Argument.of("x", x), Argument.of("y", y))) {
+            x.update(5.0);
+            y.update(20.0);
+            x.reset();
+            y.reset(30.0);
+            assertEquals(1.0, x.value());
+            assertEquals(32.0, expr.evaluate());
+            y.update(0.0);
+            assertEquals(2.0, expr.evaluate());
+        }
+        assertEquals(List.of(5.0), seen);
+        assertEquals(10.0, y.value());
+        assertThrows(IllegalStateException.class, () -> y.update(1.0));
+        //the listener keeps x updatable without an expression
+        x.update(7.0);
+        assertEquals(List.of(5.0, 7.0), seen);
+    }
+
+    @Test
+    @DisplayName("Should count compilations, evaluations, upcalls and live native memory")
+    void testExpressionMetrics() throws Exception {
+        ExpressionMetrics metrics = new ExpressionMetrics();
+        TinyExpressionCompiler instrumented = new TinyExpressionCompiler(null, metrics);
+
+        try (Expression expr = instrumented.compile("f(x) * 2", Argument.of("x", new Variable(2.0)), Argument.of("f", (Function.OneArgs) v -> v + 1))) {
+            assertEquals(1, metrics.liveExpressions());
+            assertTrue(metrics.nativeBytes() > 0);
+            for (int i = 0; i < 10; i++) assertEquals(6.0, expr.evaluate());
+            expr.evaluateBatch(new double[][]{{1, 2, 3}}, new double[3]);
+        }
+        assertThrows(ExpressionCompilerException.class, () -> instrumented.compile("1 +"));
+        assertEquals(7.0, instrumented.interpret("3 + 4"));
+
+        assertEquals(0, metrics.liveExpressions());
+        assertEquals(0, metrics.nativeBytes());
+        assertEquals(2, metrics.compile().count());
+        assertEquals(1, metrics.interpret().count());
+        assertEquals(1, metrics.errors());
+        assertEquals(13, metrics.evaluate().count());
+        assertEquals(13, metrics.upcall().count());
+        assertTrue(metrics.evaluate().percentileNanos(0.5) <= metrics.evaluate().percentileNanos(1.0));
+    }
+
+    @Test
+    @DisplayName("Should take the critical path for expressions without custom functions")
+    void testCriticalDowncalls() throws Exception {
+        for (int i = 0; i < 1000; i++) assertEquals(i + 1.0, compiler.interpret(i + " + 1"));
+        assertTrue(compiler.validate("sqrt(4) * " + "1 + ".repeat(200) + "1"));
+        assertFalse(compiler.validate("1 + \u00e4"));
+
+        try (Expression expr = compiler.compile("x * 2", Argument.of("x", new Variable(4.0)));
+             SharedExpression shared = compiler.compileShared("a - b", Argument.of("a", new Variable(0)), Argument.of("b", new Variable(0)))) {
+            assertEquals(8.0, expr.evaluate());
+            assertEquals(1.0, shared.evaluate(3.0, 2.0));
+            assertEquals(-1.0, shared.evaluate(shared.newFrame().set(1.0, 2.0)));
+        }
+    }
+
+    @Test
+    @DisplayName("Should compile the optimized text to the same result")
+    void testOptimizingCompiler() throws Exception {
+        Variable x = new Variable(3.0);
+        Variable y = new Variable(-4.0);
+        String formula = "sqrt(x*x + y*y) * 1 + 0 + x^2 + y^1 - -(-2) + pow(y, 0) * 1e-3";
+        ExpressionCompiler optimizing = compiler.optimizing();
+        try (Expression plain = compiler.compile(formula, Argument.of("x", x), Argument.of("y", y));
+             Expression optimized = optimizing.compile(formula, Argument.of("x", x), Argument.of("y", y))) {
+            assertEquals(plain.evaluate(), optimized.evaluate());
+            x.update(-0.5);
+            assertEquals(plain.evaluate(), optimized.evaluate());
+        }
+        assertSame(optimizing, optimizing.optimizing());
+    }
+
+    @Test
+    @DisplayName("Should keep impure calls the optimizer could drop")
+    void testOptimizerKeepsImpureCalls() throws Exception {
+        int[] calls = {0};
+        Function.NoArgs impure = () -> ++calls[0];
+        Variable x = new Variable(2.0);
+        List<Argument> args = List.of(Argument.of("f", impure), Argument.of("x", x));
+        try (Expression nativeExpr = compiler.optimizing().compile("f()^0 + x", args);
+             Expression bytecodeExpr = new BytecodeExpressionCompiler().optimizing().compile("f()^0 + x", args);
+             DifferentiableExpression gradient = compiler.compileDifferentiable("f()^0 + x", List.of("x"), args)) {
+            assertEquals(3.0, nativeExpr.evaluate());
+            assertEquals(3.0, bytecodeExpr.evaluate());
+            assertEquals(3.0, gradient.evaluate());
+            assertEquals(3, calls[0]);
+        }
+    }
+
+    @Test
+    @DisplayName("Should evaluate a formula sheet in one call with references to earlier outputs")
+    void testCompileAll() throws Exception {
+        Variable x = new Variable(3.0);
+        Variable y = new Variable(4.0);
+        Map<String, String> formulas = new LinkedHashMap<>();
+        formulas.put("r", "sqrt(x*x + y*y)");
+        formulas.put("twice", "r * 2");
+        formulas.put("scaled", "f(twice) + sqrt(x*x + y*y)");
+        double[] out = new double[3];
+
+        try (ExpressionProgram program = compiler.compileAll(formulas, Argument.of("x", x), Argument.of("y", y), Argument.of("f", (Function.OneArgs) v -> v / 10))) {
+            assertEquals(List.of("r", "twice", "scaled"), program.outputs());
+            program.evaluateInto(out);
+            assertArrayEquals(new double[]{5, 10, 6}, out);
+            x.update(0.0);
+            assertArrayEquals(new double[]{4, 8, 4.8}, program.evaluate());
+            assertThrows(IllegalArgumentException.class, () -> program.evaluateInto(new double[2]));
+        }
+
+        formulas.put("x", "1");
+        assertThrows(ExpressionCompilerException.class, () -> compiler.compileAll(formulas, Argument.of("x", x)));
+        Map<String, String> forward = new LinkedHashMap<>();
+        forward.put("a", "later + 1");
+        forward.put("later", "1");
+        assertThrows(ExpressionCompilerException.class, () -> compiler.compileAll(forward));
+    }
+
+    @Test
+    @DisplayName("Should recompute only formulas affected by a variable change")
+    void testReactiveGraph() throws Exception {
+        Variable x = new Variable(3.0);
+        Variable y = new Variable(4.0);
+        Variable z = new Variable(1.0);
+        try (ReactiveGraph graph = new ReactiveGraph(compiler, ReactiveGraph.Mode.LAZY)
+                .define("r", "sqrt(x*x + y*y)", Argument.of("x", x), Argument.of("y", y))
+                .define("area", "r * r * pi")
+                .define("shifted", "z + 1", Argument.of("z", z), Argument.of("x", x))
+                .define("size", "abs(r)", Argument.of("x", x))) {
+            assertEquals(5.0, graph.value("r"));
+            assertEquals(4, graph.recomputations());
+
+            z.update(2.0);
+            assertEquals(3.0, graph.value("shifted"));
+            assertEquals(5, graph.recomputations());
+
+            x.update(0.0);
+            assertEquals(5, graph.recomputations());
+            assertEquals(16 * Math.PI, graph.value("area"), 1e-12);
+            assertEquals(7, graph.recomputations());
+            //shifted takes x but does not read it
+            assertEquals(3.0, graph.value("shifted"));
+            assertEquals(7, graph.recomputations());
+        }
+    }
+
+    @Test
+    @DisplayName("Should evaluate streams and publishers in bounded chunks")
+    void testExpressionStreams() throws Exception {
+        try (Expression expr = compiler.compile("y - x * 2", Argument.of("y", new Variable(0)), Argument.of("x", new Variable(0)))) {
+            double[] results = ExpressionStreams.evaluate(expr, IntStream.range(0, 10).mapToObj(i -> new double[]{10 * i, i}), 4).toArray();
+            assertArrayEquals(IntStream.range(0, 10).mapToDouble(i -> 8 * i).toArray(), results);
+            assertThrows(IllegalArgumentException.class, () -> ExpressionStreams.evaluate(expr, DoubleStream.of(1, 2).mapToObj(v -> new double[]{v}), 4).sum());
+
+            List<double[]> chunks = new ArrayList<>();
+            boolean[] completed = new boolean[1];
+            try (SubmissionPublisher<double[]> rows = new SubmissionPublisher<>(Runnable::run, 16)) {
+                ExpressionStreams.evaluate(expr, rows, 4).subscribe(new Flow.Subscriber<>() {
+                    private Flow.Subscription subscription;
+
+                    @Override
+                    public void onSubscribe(Flow.Subscription subscription) {
+                        this.subscription = subscription;
+                        subscription.request(1);
+                    }
+
+                    @Override
+                    public void onNext(double[] chunk) {
+                        chunks.add(chunk);
+                        subscription.request(1);
+                    }
+
+                    @Override
+                    public void onError(Throwable throwable) {
+                        fail(throwable);
+                    }
+
+                    @Override
+                    public void onComplete() {
+                        completed[0] = true;
+                    }
+                });
+                for (int i = 0; i < 10; i++) rows.submit(new double[]{10 * i, i});
+            }
+            assertTrue(completed[0]);
+            assertEquals(List.of(4, 4, 2), chunks.stream().map(c -> c.length).toList());
+            assertArrayEquals(new double[]{64, 72}, chunks.get(2));
+        }
+        try (Expression square = compiler.compile("x^2", Argument.of("x", new Variable(0)))) {
+            assertEquals(385.0, ExpressionStreams.evaluate(square, DoubleStream.iterate(1, v -> v + 1).limit(10), 3).sum());
+        }
+    }
+
+    @Test
+    @DisplayName("Should evaluate mapped column files in chunks")
+    void testColumnFiles(@TempDir Path dir) throws Exception {
+        int rows = 10;
+        ByteBuffer xs = ByteBuffer.allocate(rows * 8).order(ByteOrder.nativeOrder());
+        ByteBuffer ys = ByteBuffer.allocate(rows * 8).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < rows; i++) {
+            xs.putDouble(i);
+            ys.putDouble(10 * i);
+        }
+        Files.write(dir.resolve("x.bin"), xs.array());
+        Files.write(dir.resolve("y.bin"), ys.array());
+
+        Map<String, Path> columns = new LinkedHashMap<>();
+        columns.put("y", dir.resolve("y.bin"));
+        columns.put("x", dir.resolve("x.bin"));
+        Path out = dir.resolve("out.bin");
+        assertEquals(rows, ColumnFiles.evaluate(compiler, "y - twice(x)", columns, out, 3, Argument.of("twice", (Function.OneArgs) v -> 2 * v)));
+
+        double[] results = new double[rows];
+        ByteBuffer.wrap(Files.readAllBytes(out)).order(ByteOrder.nativeOrder()).asDoubleBuffer().get(results);
+        assertArrayEquals(IntStream.range(0, rows).mapToDouble(i -> 8 * i).toArray(), results);
+
+        Files.write(dir.resolve("short.bin"), new byte[8]);
+        columns.put("x", dir.resolve("short.bin"));
+        assertThrows(IOException.class, () -> ColumnFiles.evaluate(compiler, "y - x", columns, out));
+    }
+
+    @Test
+    @DisplayName("Should evaluate chunks in parallel and keep the row order")
+    void testParallelEvaluator() throws Exception {
+        int rows = 100_000;
+        double[] xs = IntStream.range(0, rows).mapToDouble(i -> i).toArray();
+        double[] ys = IntStream.range(0, rows).mapToDouble(i -> 10 * i).toArray();
+        double[] expected = IntStream.range(0, rows).mapToDouble(i -> 8 * i).toArray();
+
+        try (SharedExpression expr = compiler.compileShared("y - x * 2", Argument.of("y", new Variable(0)), Argument.of("x", new Variable(0)))) {
+            for (ParallelEvaluator.Mode mode : ParallelEvaluator.Mode.values()) {
+                try (ParallelEvaluator evaluator = new ParallelEvaluator(expr, mode, 4, 1000)) {
+                    double[] out = new double[rows];
+                    evaluator.evaluate(new double[][]{ys, xs}, out);
+                    assertArrayEquals(expected, out);
+                    assertThrows(IllegalArgumentException.class, () -> evaluator.evaluate(new double[][]{ys}, out));
+                }
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Should lend pooled expressions with reset variables across threads")
+    void testExpressionPool() throws Exception {
+        try (ExpressionPool<String> pool = new ExpressionPool<>(compiler, 1, 2, Duration.ZERO)) {
+            pool.define("score", "a * x + 1", Argument.of("a", new Variable(2.0)), Argument.of("x", new Variable(0.0)));
+            assertEquals(1, pool.idle("score"));
+
+            ExpressionPool<String>.Lease first = pool.borrow("score");
+            first.variable("x").update(5.0);
+            assertEquals(11.0, first.evaluate());
+
+            ExpressionPool<String>.Lease second;
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                second = executor.submit(() -> pool.borrow("score")).get();
+            }
+            assertEquals(1.0, second.evaluate());
+            assertEquals(2, pool.size("score"));
+            assertNull(pool.borrow("score", Duration.ofMillis(10)));
+
+            first.close();
+            second.close();
+            assertThrows(IllegalStateException.class, first::evaluate);
+            try (ExpressionPool<String>.Lease again = pool.borrow("score")) {
+                assertEquals(1.0, again.evaluate());
+            }
+            pool.evictIdle();
+            assertEquals(1, pool.size("score"));
+            assertThrows(ExpressionCompilerException.class, () -> pool.define("broken", "a +"));
+        }
+    }
+
+    @Test
+    @DisplayName("Should validate without compiling or calling functions")
+    void testValidateAll() {
+        int[] calls = new int[1];
+        Function.OneArgs counted = new Function.OneArgs() {
+            @Override
+            public double apply(double value) {
+                calls[0]++;
+                return value;
+            }
+
+            @Override
+            public boolean isPure() {
+                return true;
+            }
+        };
+        List<Argument> args = List.of(Argument.of("x", new Variable(0)), Argument.of("f", counted));
+
+        ValidationResult unknown = compiler.check("x + y", args);
+        assertFalse(unknown.valid());
+        assertEquals(5, unknown.errorOffset());
+        assertEquals("unknown identifier 'y'", unknown.reason());
+        assertTrue(compiler.validate("f(2) + x", args));
+        assertEquals(0, calls[0]);
+
+        List<String> formulas = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) formulas.add(i % 2 == 0 ? "f(x) * " + i : "atan2(x) + " + i);
+        List<ValidationResult> results = compiler.validateAll(formulas, args);
+        for (int i = 0; i < formulas.size(); i++) {
+            assertEquals(formulas.get(i), results.get(i).expression());
+            assertEquals(i % 2 == 0, results.get(i).valid());
+        }
+        assertEquals("'atan2' expects 2 arguments, got ')'", results.get(1).reason());
+    }
+
+    @Test
+    @DisplayName("Should save expressions to a catalog and load them without parsing")
+    void testExpressionCatalog(@TempDir Path dir) throws Exception {
+        Function.TwoArgs hypot = Math::hypot;
+        List<Argument> args = List.of(Argument.of("x", new Variable(3.0)), Argument.of("y", new Variable(4.0)), Argument.of("hypot", hypot));
+        Map<String, byte[]> images = new LinkedHashMap<>();
+        images.put("distance", compiler.save("hypot(x, y) * 2^3 - -x", args));
+        images.put("constant", compiler.save("sqrt(16) + pi", args));
+        Path file = dir.resolve("catalog.bin");
+        ExpressionCatalog.write(file, images);
+
+        Variable x = new Variable(6.0);
+        Variable y = new Variable(8.0);
+        try (ExpressionCatalog catalog = ExpressionCatalog.open(file);
+             Expression distance = compiler.load(catalog.image("distance"), Argument.of("y", y), Argument.of("x", x), Argument.of("hypot", hypot));
+             Expression constant = compiler.load(catalog.image("constant"));
+             Expression bytecode = new BytecodeExpressionCompiler().load(catalog.image("distance"), Argument.of("x", x), Argument.of("y", y), Argument.of("hypot", hypot))) {
+            assertEquals(List.of("distance", "constant"), List.copyOf(catalog.names()));
+            assertEquals(86.0, distance.evaluate());
+            assertEquals(86.0, bytecode.evaluate());
+            x.update(0.0);
+            assertEquals(64.0, distance.evaluate());
+            assertEquals(4 + Math.PI, constant.evaluate());
+
+            assertThrows(ExpressionCompilerException.class, () -> compiler.load(catalog.image("distance"), Argument.of("x", x)));
+            byte[] future = images.get("constant").clone();
+            future[4] = 2;
+            assertThrows(ExpressionCompilerException.class, () -> compiler.load(MemorySegment.ofArray(future)));
+        }
+    }
+
+    @Test
+    @DisplayName("Should pack trees into a slab and report their footprint")
+    void testExpressionSlab() throws Exception {
+        Variable x = new Variable(3.0);
+        Variable y = new Variable(4.0);
+        Function.OneArgs twice = a -> 2 * a;
+        try (ExpressionSlab slab = new ExpressionSlab(4096)) {
+            TinyExpressionCompiler slabCompiler = new TinyExpressionCompiler().withSlab(slab);
+            Expression first = slabCompiler.compile("sqrt(x*x + y*y) + twice(-x)", Argument.of("x", x), Argument.of("y", y), Argument.of("twice", twice));
+            Expression second = slabCompiler.compile("x * y", Argument.of("x", x), Argument.of("y", y));
+            assertEquals(-1.0, first.evaluate());
+            assertEquals(12.0, second.evaluate());
+            x.update(0.0);
+            assertEquals(4.0, first.evaluate());
+
+            ExpressionFootprint footprint = TinyExpressionCompiler.footprint(first);
+            assertTrue(footprint.slab());
+            assertEquals(12, footprint.nodes());
+            assertEquals(0, footprint.metadataBytes());
+            assertEquals(16, footprint.variableBytes());
+            //x and y are interned once for both expressions
+            assertEquals(3, slab.names());
+            try (Expression plain = new TinyExpressionCompiler().compile("x * y", Argument.of("x", x), Argument.of("y", y))) {
+                ExpressionFootprint heap = TinyExpressionCompiler.footprint(plain);
+                assertFalse(heap.slab());
+                assertEquals(TinyExpressionCompiler.footprint(second).nodeBytes(), heap.nodeBytes());
+                assertTrue(heap.metadataBytes() > 0);
+            }
+
+            long used = slab.usedBytes();
+            first.close();
+            second.close();
+            assertTrue(slab.releasedBytes() > 0 && slab.releasedBytes() < used);
+            assertTrue(slab.reservedBytes() >= used);
+
+            //a failed compile gives back everything it took, the names are interned already
+            long live = slab.usedBytes() - slab.releasedBytes();
+            assertThrows(ExpressionCompilerException.class, () -> slabCompiler.compile("x * y +", Argument.of("x", x), Argument.of("y", y)));
+            assertEquals(live, slab.usedBytes() - slab.releasedBytes());
+        }
+    }
+
+    @Test
+    @DisplayName("Should compute gradients by forward-mode differentiation")
+    void testDifferentiableExpression() throws Exception {
+        Variable x = new Variable(2.0);
+        Variable y = new Variable(3.0);
+        Function.OneArgs softplus = Function.Partials.of(a -> Math.log1p(Math.exp(a)), a -> 1.0 / (1.0 + Math.exp(-a)));
+        Function.TwoArgs hypot = Math::hypot;
+        try (DifferentiableExpression f = compiler.compileDifferentiable("x^2 * y + sin(x) + softplus(y) + hypot(x, y) + floor(x)", List.of("x", "y"),
+                Argument.of("x", x), Argument.of("y", y), Argument.of("softplus", softplus), Argument.of("hypot", hypot))) {
+            double[] gradient = new double[2];
+            double value = f.evaluate(gradient);
+            assertEquals(12 + Math.sin(2) + Math.log1p(Math.exp(3)) + Math.hypot(2, 3) + 2, value, 1e-12);
+            assertEquals(value, f.evaluate());
+            assertEquals(12 + Math.cos(2) + 2 / Math.sqrt(13), gradient[0], 1e-9);
+            assertEquals(4 + 1 / (1 + Math.exp(-3)) + 3 / Math.sqrt(13), gradient[1], 1e-9);
+
+            x.update(-1.0);
+            f.evaluate(gradient);
+            assertEquals(-6 + Math.cos(-1) - 1 / Math.sqrt(10), gradient[0], 1e-9);
+        }
+        try (DifferentiableExpression g = compiler.compileDifferentiable("y^2 / x", List.of("y"), Argument.of("x", x), Argument.of("y", y))) {
+            double[] gradient = new double[1];
+            //closing f returned x to its initial value
+            assertEquals(4.5, g.evaluate(gradient));
+            assertEquals(3.0, gradient[0]);
+        }
+        assertThrows(ExpressionCompilerException.class, () -> compiler.compileDifferentiable("x", List.of("z"), Argument.of("x", x)));
+    }
+
+    @Test
+    @DisplayName("Should evaluate the flat program bit-identically to the tree walk")
+    void testFlatEvaluation() throws Exception {
+        Variable x = new Variable(0.0);
+        Variable y = new Variable(0.0);
+        Function.TwoArgs blend = (a, b) -> a * 0.25 + b;
+        String formula = "sqrt(x*x + y^2) + sin(x)*cos(y) - atan2(y, x) % 0.3 + blend(x, blend(y, -x)) / (x - y + 0.5) + fac(5)";
+        try (Expression flat = compiler.compile(formula, Argument.of("x", x), Argument.of("y", y), Argument.of("blend", blend))) {
+            double[] xs = new double[64], ys = new double[64], out = new double[64];
+            for (int i = 0; i < 64; i++) {
+                xs[i] = (i - 32) * 0.173;
+                ys[i] = (i % 7) * -0.71 + 1.3;
+            }
+            //evaluate() runs the postfix program, the batch path still walks the tree, both have to agree to the bit
+            flat.evaluateBatch(new double[][]{xs, ys}, out);
+            for (int i = 0; i < 64; i++) {
+                x.update(xs[i]);
+                y.update(ys[i]);
+                assertEquals(Double.doubleToRawLongBits(out[i]), Double.doubleToRawLongBits(flat.evaluate()), "row " + i);
+            }
+            assertTrue(TinyExpressionCompiler.footprint(flat).programBytes() > 0);
+        }
+    }
+
+    @Test
+    @DisplayName("Should memoize pure functions with bounded eviction")
+    void testFunctionMemo() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        Function.OneArgs curve = new Function.OneArgs() {
+            @Override
+            public double apply(double value) {
+                calls.incrementAndGet();
+                return Math.sqrt(value) * 3;
+            }
+
+            @Override
+            public boolean isPure() {
+                return true;
+            }
+        };
+        FunctionMemo memo = FunctionMemo.of(curve, 16, FunctionMemo.Eviction.CLOCK);
+        Variable x = new Variable(0.0);
+        try (Expression expression = compiler.compile("curve(x) + curve(x + 1)", Argument.of("x", x), Argument.of("curve", memo.function()))) {
+            for (int i = 0; i < 30; i++) {
+                x.update(i % 3);
+                assertEquals(Math.sqrt(i % 3) * 3 + Math.sqrt(i % 3 + 1) * 3, expression.evaluate());
+            }
+        }
+        //keys 0, 1, 2 and 3
+        assertEquals(4, calls.get());
+        assertEquals(new FunctionMemo.Stats(56, 4, 0), memo.stats());
+        assertEquals(56 / 60.0, memo.stats().hitRate());
+
+        FunctionMemo direct = FunctionMemo.of(curve, 1, FunctionMemo.Eviction.DIRECT);
+        Function.OneArgs single = (Function.OneArgs) direct.function();
+        for (int i = 0; i < 10; i++) single.apply(i % 2);
+        assertEquals(new FunctionMemo.Stats(0, 10, 9), direct.stats());
+
+        Function.ThreeArgs blend = new Function.ThreeArgs() {
+            @Override
+            public double apply(double value1, double value2, double value3) {
+                calls.incrementAndGet();
+                return value1 + value2 * value3;
+            }
+
+            @Override
+            public boolean isPure() {
+                return true;
+            }
+        };
+        FunctionMemo wide = FunctionMemo.of(blend, 16, FunctionMemo.Eviction.CLOCK);
+        Function.ThreeArgs cached = (Function.ThreeArgs) wide.function();
+        calls.set(0);
+        for (int i = 0; i < 20; i++) assertEquals(1 + (i % 4) * -0.0, cached.apply(1, i % 4, -0.0));
+        assertEquals(4, calls.get());
+        assertEquals(new FunctionMemo.Stats(16, 4, 0), wide.stats());
+        assertThrows(IllegalArgumentException.class, () -> FunctionMemo.of((Function.OneArgs) Math::sin, 16, FunctionMemo.Eviction.DIRECT));
+    }
+
+    @Test
+    @DisplayName("Should fold frozen variables into a residual expression")
+    void testSpecialize() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        Function.OneArgs curve = new Function.OneArgs() {
+            @Override
+            public double apply(double value) {
+                calls.incrementAndGet();
+                return value * value + 1;
+            }
+
+            @Override
+            public boolean isPure() {
+                return true;
+            }
+        };
+        Variable a = new Variable(2.0), b = new Variable(-3.0), k = new Variable(0.5), x = new Variable(4.0);
+        List<Argument> args = List.of(Argument.of("a", a), Argument.of("b", b), Argument.of("k", k), Argument.of("x", x), Argument.of("curve", curve));
+        String formula = "a*x^2 + b*x + curve(k*2) * sqrt(a + 2) + curve(x)";
+        Map<String, Double> frozen = Map.of("a", 2.0, "b", -3.0, "k", 0.5);
+        try (Expression general = compiler.compile(formula, args);
+             Expression special = compiler.specialize(general, frozen);
+             Expression bytecode = new BytecodeExpressionCompiler().specialize(formula, frozen, args)) {
+            calls.set(0);
+            for (double value : new double[]{4.0, -1.5, 10.0}) {
+                x.update(value);
+                assertEquals(general.evaluate(), special.evaluate());
+                assertEquals(general.evaluate(), bytecode.evaluate());
+            }
+            //curve(k*2) was folded while specializing: 2 calls per evaluation of general, 1 per evaluation of a residual
+            assertEquals(3 * (2 * 2 + 1 + 1), calls.get());
+            //frozen variables are constants now, updates do not reach the residual
+            a.update(100.0);
+            x.update(1.0);
+            assertEquals(2 - 3 + 2 * 2 + 2.0, special.evaluate());
+        }
+        assertThrows(ExpressionCompilerException.class, () -> compiler.specialize(formula, Map.of("z", 1.0), args));
+    }
+
+    @Test
+    @DisplayName("Should start the native image and evaluate on the first run")
+    void testNativeImageStartup(TestReporter reporter) throws Exception {
+        //built by mvn -Pnative package, skipped otherwise
+        Path image = Path.of("target", "jtinyexpr");
+        Assumptions.assumeTrue(Files.isExecutable(image), "native image is not built");
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(image.toAbsolutePath().toString()).redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes());
+        assertTrue(process.waitFor(30, TimeUnit.SECONDS));
+        Duration startup = Duration.ofNanos(System.nanoTime() - start);
+        reporter.publishEntry("startup", startup.toMillis() + " ms");
+        assertEquals(0, process.exitValue(), output);
+        //a native image starts in milliseconds, a second means it fell back to a JVM or is doing work at startup
+        assertTrue(startup.compareTo(Duration.ofSeconds(1)) < 0, "native image ran in " + startup.toMillis() + " ms");
+        assertTrue(output.contains("1 + 2 + e() + 1 = " + (1 + 2 + Math.E + 1)), output);
+    }
 }